@@ -0,0 +1,59 @@
+package fileSynchronizer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each {@link CopyEngine.Strategy} on a single file. The copy replaces the destination of the previous
+ * invocation, as a sync does when a file changed. With resumable set, the file is copied through the checksummed
+ * chunks of {@link ResumableCopyEngine} instead of by the strategy itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CopyEngineBenchmark {
+
+    @Param({"FILES", "TRANSFER", "REFLINK", "BUFFERED"})
+    public CopyEngine.Strategy strategy;
+
+    @Param({"4096", "1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"false", "true"})
+    public boolean resumable;
+
+    private Path parent, source, destination;
+    private BasicFileAttributes sourceAttributes;
+    private CopyEngine engine;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        parent = Files.createTempDirectory("filesync-bench");
+        SyntheticTree.create(parent.resolve("source"), 0, 0, 1, fileSize);
+        source = parent.resolve("source").resolve("file0");
+        destination = parent.resolve("destination");
+        sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+
+        SyncOptions defaults = new SyncOptions();
+        engine = CopyEngine.create(strategy, defaults.getCopyChunkSize(), resumable ? 1 : Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteParent() throws IOException {
+        SyntheticTree.delete(parent);
+    }
+
+    @Benchmark
+    public void copy() throws IOException {
+        engine.copy(source, destination, sourceAttributes);
+    }
+
+}
@@ -0,0 +1,70 @@
+package fileSynchronizer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link FileCopier}'s exclusion check, which runs for every file and directory that is copied
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ExclusionBenchmark {
+
+    private static final int CANDIDATES = 1024;
+    private static final Path SOURCE = Path.of("/source");
+
+    @Param({"4", "64", "1024"})
+    public int excludedCount;
+
+    // Share of candidates that end in an excluded path
+    @Param({"0.1"})
+    public double excludedShare;
+
+    private FileCopier copier;
+    private Path[] candidates;
+
+    @Setup(Level.Trial)
+    public void createPaths() {
+        Random random = new Random(42);
+
+        Set<String> excludedPaths = new HashSet<>();
+        for (int i = 0; i < excludedCount; i++) {
+            excludedPaths.add("excluded" + i + "/cache" + i);
+        }
+        excludedPaths.add("*.class");
+        excludedPaths.add("build-*");
+        excludedPaths.add("**/generated/*.java");
+        copier = new FileCopier(SOURCE, Path.of("/destination"), excludedPaths, "local", "remote", false);
+
+        candidates = new Path[CANDIDATES];
+        for (int i = 0; i < CANDIDATES; i++) {
+            Path directory = SOURCE.resolve(Path.of("projects", "project" + random.nextInt(100), "src"));
+            candidates[i] = (random.nextDouble() < excludedShare)
+                    ? directory.resolve(Path.of("excluded" + random.nextInt(excludedCount), "cache" + random.nextInt(excludedCount)))
+                    : directory.resolve(Path.of("module" + random.nextInt(50), "File" + i + ".java"));
+        }
+    }
+
+    /**
+     * Checks every candidate path once. The reported time is per batch of {@value #CANDIDATES} paths
+     */
+    @Benchmark
+    public int isExcludedPath() {
+        int excluded = 0;
+        for (Path candidate : candidates) {
+            if (copier.isExcludedPath(candidate)) excluded++;
+        }
+
+        return excluded;
+    }
+
+}
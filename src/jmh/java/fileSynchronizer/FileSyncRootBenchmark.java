@@ -0,0 +1,114 @@
+package fileSynchronizer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the individual tree operations of {@link FileSyncRoot}: trashing a subtree, copying a subtree from the other
+ * root and clearing the trash. Every invocation starts from a freshly generated tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileSyncRootBenchmark {
+
+    private static final Path TREE = Path.of("tree");
+
+    @State(Scope.Thread)
+    public static class Roots {
+
+        @Param({"DEEP", "WIDE", "SMALL_FILES", "LARGE_FILES"})
+        public SyntheticTree.Shape shape;
+
+        Path parent, localPath, remotePath;
+        FileSyncRoot local, remote;
+
+        @Setup(Level.Trial)
+        public void createParent() throws IOException {
+            parent = Files.createTempDirectory("filesync-bench");
+            localPath = parent.resolve("local");
+            remotePath = parent.resolve("remote");
+        }
+
+        void reset() throws IOException {
+            SyntheticTree.delete(localPath);
+            SyntheticTree.delete(remotePath);
+            Files.createDirectories(localPath);
+            Files.createDirectories(remotePath);
+
+            local = new FileSyncRoot(localPath.toString(), "local", "remote", false);
+            remote = new FileSyncRoot(remotePath.toString(), "remote", "local", false);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteParent() throws IOException {
+            SyntheticTree.delete(parent);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TreeToTrash extends Roots {
+
+        @Setup(Level.Invocation)
+        public void createTree() throws IOException {
+            reset();
+            SyntheticTree.create(localPath.resolve(TREE), shape);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TreeToCopy extends Roots {
+
+        @Setup(Level.Invocation)
+        public void createTree() throws IOException {
+            reset();
+            SyntheticTree.create(remotePath.resolve(TREE), shape);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FullTrash extends Roots {
+
+        @Setup(Level.Invocation)
+        public void createTree() throws IOException {
+            reset();
+            SyntheticTree.create(local.getSyncTrash().resolve(TREE), shape);
+        }
+
+        @TearDown(Level.Invocation)
+        public void awaitPurge() {
+            local.awaitTrashPurge();
+        }
+    }
+
+    @Benchmark
+    public void trash(TreeToTrash roots) {
+        roots.local.trash(TREE);
+    }
+
+    @Benchmark
+    public void copyFromRemote(TreeToCopy roots) {
+        roots.local.copyFromRemote(TREE, roots.remote.getRoot());
+    }
+
+    /**
+     * Time until the sync can continue. The old trash is still being deleted in the background when this returns
+     */
+    @Benchmark
+    public void clearTrash(FullTrash roots) {
+        roots.local.clearTrash();
+    }
+
+    @Benchmark
+    public void clearTrashAndPurge(FullTrash roots) {
+        roots.local.clearTrash();
+        roots.local.awaitTrashPurge();
+    }
+
+}
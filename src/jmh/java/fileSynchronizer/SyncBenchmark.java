@@ -0,0 +1,92 @@
+package fileSynchronizer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of {@link FileSynchronizer#synchronizeFileTrees()}: a first sync that copies a whole tree to an empty
+ * directory, and a repeated sync of two trees that are already equal, which is pure scanning.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SyncBenchmark {
+
+    @State(Scope.Thread)
+    public static class EmptyRemote {
+
+        @Param({"DEEP", "WIDE", "SMALL_FILES", "LARGE_FILES"})
+        public SyntheticTree.Shape shape;
+
+        Path parent, local, remote;
+
+        @Setup(Level.Trial)
+        public void createParent() throws IOException {
+            parent = Files.createTempDirectory("filesync-bench");
+            local = parent.resolve("local");
+            remote = parent.resolve("remote");
+        }
+
+        @Setup(Level.Invocation)
+        public void createTrees() throws IOException {
+            SyntheticTree.delete(local);
+            SyntheticTree.delete(remote);
+            SyntheticTree.create(local, shape);
+            Files.createDirectories(remote);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteParent() throws IOException {
+            SyntheticTree.delete(parent);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SyncedTrees {
+
+        @Param({"DEEP", "WIDE", "SMALL_FILES", "LARGE_FILES"})
+        public SyntheticTree.Shape shape;
+
+        Path parent, local, remote;
+
+        @Setup(Level.Trial)
+        public void createTrees() throws IOException {
+            parent = Files.createTempDirectory("filesync-bench");
+            local = parent.resolve("local");
+            remote = parent.resolve("remote");
+
+            SyntheticTree.create(local, shape);
+            Files.createDirectories(remote);
+            synchronizer(local, remote, "1").synchronizeFileTrees();
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteParent() throws IOException {
+            SyntheticTree.delete(parent);
+        }
+    }
+
+    @Benchmark
+    public void firstSync(EmptyRemote trees) {
+        synchronizer(trees.local, trees.remote, "1").synchronizeFileTrees();
+    }
+
+    @Benchmark
+    public void unchangedSync(SyncedTrees trees) {
+        synchronizer(trees.local, trees.remote).synchronizeFileTrees();
+    }
+
+    private static FileSynchronizer synchronizer(Path local, Path remote, String... answers) {
+        String input = String.join(System.lineSeparator(), answers) + System.lineSeparator();
+        return new FileSynchronizer(local.toString(), remote.toString(), "local", "remote", new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+}
@@ -0,0 +1,73 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates file trees of a given shape for the benchmarks. The contents are pseudo-random but seeded, so every
+ * trial works on the same bytes.
+ */
+public final class SyntheticTree {
+
+    public enum Shape {
+        // A single chain of nested directories with a few files at every level
+        DEEP(16, 1, 8, 4 * 1024),
+        // One level of many sibling directories
+        WIDE(1, 256, 8, 4 * 1024),
+        // A bushy tree of many small files
+        SMALL_FILES(2, 12, 48, 1024),
+        // A handful of large files directly under the root
+        LARGE_FILES(0, 0, 4, 32 * 1024 * 1024);
+
+        private final int depth, fanout, filesPerDirectory, fileSize;
+
+        Shape(int depth, int fanout, int filesPerDirectory, int fileSize) {
+            this.depth = depth;
+            this.fanout = fanout;
+            this.filesPerDirectory = filesPerDirectory;
+            this.fileSize = fileSize;
+        }
+    }
+
+    private SyntheticTree() {}
+
+    /**
+     * Creates a tree of the given shape at directory, creating directory itself if needed
+     */
+    public static void create(Path directory, Shape shape) throws IOException {
+        create(directory, shape.depth, shape.fanout, shape.filesPerDirectory, shape.fileSize);
+    }
+
+    /**
+     * Creates a tree at directory that is depth levels deep, with fanout subdirectories and filesPerDirectory files of fileSize bytes in every directory
+     */
+    public static void create(Path directory, int depth, int fanout, int filesPerDirectory, int fileSize) throws IOException {
+        byte[] contents = new byte[fileSize];
+        new Random(depth * 31L + fanout).nextBytes(contents);
+
+        createLevel(directory, depth, fanout, filesPerDirectory, contents);
+    }
+
+    private static void createLevel(Path directory, int remainingDepth, int fanout, int filesPerDirectory, byte[] contents) throws IOException {
+        Files.createDirectories(directory);
+
+        for (int i = 0; i < filesPerDirectory; i++) {
+            Files.write(directory.resolve("file" + i), contents);
+        }
+
+        if (remainingDepth == 0) return;
+        for (int i = 0; i < fanout; i++) {
+            createLevel(directory.resolve("dir" + i), remainingDepth - 1, fanout, filesPerDirectory, contents);
+        }
+    }
+
+    /**
+     * Deletes directory and everything below it, if it exists
+     */
+    public static void delete(Path directory) throws IOException {
+        if (Files.exists(directory)) Files.walkFileTree(directory, new FileDeleter("benchmark", directory, false));
+    }
+
+}
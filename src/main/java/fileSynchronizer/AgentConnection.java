@@ -0,0 +1,311 @@
+package fileSynchronizer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client end of a connection to a {@link SyncAgent}. Any number of threads may make requests at once. Each request
+ * gets its own stream, and a single reader thread hands every incoming frame to the request it belongs to, so the
+ * replies of concurrent requests share the connection without waiting for each other.
+ */
+public class AgentConnection implements Closeable {
+
+    public record Hello(String nickname, long lastSyncMillis, Set<String> excludedPaths) {}
+
+    @FunctionalInterface
+    private interface FrameHandler {
+        /**
+         * Handles one reply frame and returns true once the request is complete
+         */
+        boolean handle(AgentProtocol.Frame frame) throws IOException;
+    }
+
+    private record PendingRequest(FrameHandler handler, CompletableFuture<Void> completion) {}
+
+    private final String address;
+    private final RateLimiter rateLimiter;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final AtomicInteger nextStream = new AtomicInteger(1);
+    private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+    private volatile IOException connectionFailure;
+
+    private AgentConnection(String address, Socket socket, RateLimiter rateLimiter) throws IOException {
+        this.address = address;
+        this.rateLimiter = rateLimiter;
+        this.socket = socket;
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), AgentProtocol.MAX_PAYLOAD));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), AgentProtocol.MAX_PAYLOAD));
+
+        Thread reader = new Thread(this::readReplies, "filesync-agent-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects to the agent at an address of the form filesync://host:port
+     */
+    public static AgentConnection connect(String address) throws IOException {
+        return connect(address, new RateLimiter());
+    }
+
+    /**
+     * Connects to the agent at address, with uploads and downloads paced by rateLimiter
+     */
+    public static AgentConnection connect(String address, RateLimiter rateLimiter) throws IOException {
+        if (!isAgentAddress(address)) throw new IOException("'" + address + "' is not of the form " + AgentProtocol.ADDRESS_PREFIX + "host:port");
+
+        String hostAndPort = address.substring(AgentProtocol.ADDRESS_PREFIX.length());
+        int portStart = hostAndPort.lastIndexOf(':');
+        if (portStart < 1) throw new IOException("'" + address + "' has no port");
+
+        Socket socket = new Socket(hostAndPort.substring(0, portStart), Integer.parseInt(hostAndPort.substring(portStart + 1)));
+        socket.setTcpNoDelay(true);
+        return new AgentConnection(address, socket, rateLimiter);
+    }
+
+    public static boolean isAgentAddress(String path) {
+        return path.startsWith(AgentProtocol.ADDRESS_PREFIX);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Introduces this client to the agent with their shared secret. The agent then opens its root for a sync with
+     * clientNickname and compresses the files it sends at compressionLevel
+     */
+    public Hello hello(String secret, String clientNickname, int compressionLevel) throws IOException {
+        byte[][] reply = new byte[1][];
+        request(AgentProtocol.HELLO, AgentProtocol.payload(request -> {
+            request.writeInt(AgentProtocol.VERSION);
+            request.writeUTF(secret);
+            request.writeUTF(clientNickname);
+            request.writeInt(compressionLevel);
+        }), frame -> {
+            reply[0] = frame.payload();
+            return true;
+        });
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(reply[0]));
+        String nickname = payload.readUTF();
+        long lastSyncMillis = payload.readLong();
+
+        Set<String> excludedPaths = new HashSet<>();
+        for (int count = payload.readInt(); count > 0; count--) {
+            excludedPaths.add(payload.readUTF());
+        }
+
+        return new Hello(nickname, lastSyncMillis, excludedPaths);
+    }
+
+    /**
+     * Has the agent adopt excludedPaths in addition to its own and returns the listing of its root
+     */
+    public SortedMap<Path, TreeListing.Entry> list(Set<String> excludedPaths) throws IOException {
+        SortedMap<Path, TreeListing.Entry> listing = new TreeMap<>();
+        StringBuilder previousPath = new StringBuilder();
+
+        request(AgentProtocol.LIST, AgentProtocol.payload(request -> {
+            request.writeInt(excludedPaths.size());
+            for (String excluded : excludedPaths) {
+                request.writeUTF(excluded);
+            }
+        }), frame -> {
+            if (frame.type() == AgentProtocol.END) return true;
+
+            AgentProtocol.readEntries(frame, listing, previousPath);
+            return false;
+        });
+
+        return listing;
+    }
+
+    /**
+     * Downloads relativePath into destination, which is only replaced once the whole file has arrived. Returns the
+     * number of bytes that crossed the connection, which is less than the file's size if it was compressed
+     */
+    public long download(Path relativePath, Path destination, long modifiedMillis) throws IOException {
+        Files.createDirectories(destination.getParent());
+        Path partialFile = destination.resolveSibling("." + destination.getFileName() + ".sync_partial");
+        long[] receivedBytes = {0};
+        rateLimiter.acquireOperation();
+
+        try (FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            request(AgentProtocol.GET, pathPayload(relativePath), frame -> {
+                if (frame.type() == AgentProtocol.END) return true;
+
+                receivedBytes[0] += frame.payload().length;
+                ByteBuffer data = ByteBuffer.wrap(AgentProtocol.chunkOf(frame));
+                rateLimiter.acquireBytes(data.remaining());
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                return false;
+            });
+            channel.force(false);
+        } catch (IOException ioE) {
+            Files.deleteIfExists(partialFile);
+            throw ioE;
+        }
+
+        Files.setLastModifiedTime(partialFile, FileTime.fromMillis(modifiedMillis));
+        Files.move(partialFile, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return receivedBytes[0];
+    }
+
+    /**
+     * Uploads source to relativePath in the agent's root, trashing the version there if there is one. The contents are
+     * compressed at compressionLevel. Returns the number of bytes that crossed the connection
+     */
+    public long upload(Path source, Path relativePath, long modifiedMillis, int compressionLevel) throws IOException {
+        rateLimiter.acquireOperation();
+        int stream = nextStream.getAndIncrement();
+        CompletableFuture<Void> completion = register(stream, frame -> true);
+        TransferCompressor compressor = new TransferCompressor(relativePath, compressionLevel);
+
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            send(stream, AgentProtocol.PUT, AgentProtocol.payload(request -> {
+                request.writeUTF(AgentProtocol.encodePath(relativePath));
+                request.writeLong(modifiedMillis);
+            }));
+
+            ByteBuffer buffer = ByteBuffer.allocate(AgentProtocol.MAX_PAYLOAD);
+            while (channel.read(buffer.clear()) > 0 && !completion.isDone()) {
+                rateLimiter.acquireBytes(buffer.position());
+                compressor.writeChunk(out, stream, buffer.array(), buffer.position());
+            }
+            send(stream, AgentProtocol.END, new byte[0]);
+        } catch (IOException ioE) {
+            pendingRequests.remove(stream);
+            throw ioE;
+        } finally {
+            compressor.close();
+        }
+
+        await(completion);
+        return compressor.getSentBytes();
+    }
+
+    public void createDirectory(Path relativePath) throws IOException {
+        request(AgentProtocol.MKDIR, pathPayload(relativePath), frame -> true);
+    }
+
+    public void trash(Path relativePath) throws IOException {
+        request(AgentProtocol.TRASH, pathPayload(relativePath), frame -> true);
+    }
+
+    public void clearTrash() throws IOException {
+        request(AgentProtocol.CLEAR_TRASH, new byte[0], frame -> true);
+    }
+
+    /**
+     * Has the agent record syncTimeMillis as the time of its last sync with this client
+     */
+    public void finish(long syncTimeMillis) throws IOException {
+        request(AgentProtocol.FINISH, AgentProtocol.payload(request -> request.writeLong(syncTimeMillis)), frame -> true);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            send(0, AgentProtocol.BYE, new byte[0]);
+        } catch (IOException ioE) {
+            // Closing the socket below ends the session anyway
+        }
+
+        try {
+            socket.close();
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not close the connection to '" + address + "'");
+        }
+    }
+
+    /**
+     * Sends a request on a new stream and waits until handler has seen the last frame of its reply
+     */
+    private void request(byte type, byte[] payload, FrameHandler handler) throws IOException {
+        int stream = nextStream.getAndIncrement();
+        CompletableFuture<Void> completion = register(stream, handler);
+
+        try {
+            send(stream, type, payload);
+        } catch (IOException ioE) {
+            pendingRequests.remove(stream);
+            throw ioE;
+        }
+
+        await(completion);
+    }
+
+    private CompletableFuture<Void> register(int stream, FrameHandler handler) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        pendingRequests.put(stream, new PendingRequest(handler, completion));
+
+        // The reader fails every request it knows of when the connection drops, so a later one has to fail itself
+        if (connectionFailure != null && pendingRequests.remove(stream) != null) completion.completeExceptionally(connectionFailure);
+        return completion;
+    }
+
+    private void send(int stream, byte type, byte[] payload) throws IOException {
+        AgentProtocol.writeFrame(out, stream, type, payload);
+    }
+
+    private static void await(CompletableFuture<Void> completion) throws IOException {
+        try {
+            completion.get();
+        } catch (ExecutionException eE) {
+            throw (eE.getCause() instanceof IOException ioE) ? ioE : new IOException(eE.getCause());
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the agent");
+        }
+    }
+
+    private static byte[] pathPayload(Path relativePath) throws IOException {
+        return AgentProtocol.payload(request -> request.writeUTF(AgentProtocol.encodePath(relativePath)));
+    }
+
+    private void readReplies() {
+        try {
+            while (true) {
+                AgentProtocol.Frame frame = AgentProtocol.readFrame(in);
+                PendingRequest request = pendingRequests.get(frame.stream());
+                if (request == null) continue;
+
+                try {
+                    if (frame.type() == AgentProtocol.ERROR) throw new IOException(AgentProtocol.errorMessage(frame));
+
+                    if (request.handler().handle(frame)) {
+                        pendingRequests.remove(frame.stream());
+                        request.completion().complete(null);
+                    }
+                } catch (IOException ioE) {
+                    pendingRequests.remove(frame.stream());
+                    request.completion().completeExceptionally(ioE);
+                }
+            }
+        } catch (IOException ioE) {
+            connectionFailure = new IOException(closed ? "Connection to '" + address + "' closed" : "Connection to '" + address + "' lost");
+            for (Integer stream : List.copyOf(pendingRequests.keySet())) {
+                PendingRequest request = pendingRequests.remove(stream);
+                if (request != null) request.completion().completeExceptionally(connectionFailure);
+            }
+        }
+    }
+
+}
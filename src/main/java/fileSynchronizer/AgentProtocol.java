@@ -0,0 +1,258 @@
+package fileSynchronizer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.SortedMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format shared by {@link SyncAgent} and {@link AgentConnection}. Everything travels over one TCP connection as
+ * frames of
+ * <pre>
+ * int stream | byte type | int length | length bytes of payload
+ * </pre>
+ * Every request opens a stream with a number chosen by the client, and every frame of its reply carries the same
+ * number. Frames of different streams may be interleaved, so several file transfers share the connection at once and a
+ * small request never waits behind a large file.
+ * <p>
+ * A listing is sent as a series of ENTRIES frames. Entries are in sorted order, and each one only carries the part of
+ * its path that differs from the entry before it, followed by its flags, size and timestamps as variable-length numbers.
+ * <p>
+ * File contents are sent as DATA frames, or as DATA_DEFLATED frames when the client asked for compression in its HELLO
+ * and a chunk shrinks when deflated.
+ * <p>
+ * A HELLO carries the secret shared by agent and client. The agent answers any other request only after a HELLO with
+ * the right secret, and hangs up on a client whose HELLO fails.
+ */
+public final class AgentProtocol {
+
+    public static final int VERSION = 3;
+    public static final String ADDRESS_PREFIX = "filesync://";
+
+    // Requests sent by the client
+    public static final byte HELLO = 1, LIST = 2, GET = 3, PUT = 4, MKDIR = 5, TRASH = 6, CLEAR_TRASH = 7, FINISH = 8, BYE = 9;
+    // Replies sent by the agent. DATA and END also carry the contents of an upload
+    public static final byte OK = 20, ERROR = 21, ENTRIES = 22, DATA = 23, END = 24;
+    // A chunk of file contents compressed by a TransferCompressor, preceded by its inflated length
+    public static final byte DATA_DEFLATED = 25;
+
+    // Large enough to keep the connection busy, small enough that streams take turns often
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    public record Frame(int stream, byte type, byte[] payload) {
+
+        public DataInputStream payloadStream() {
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+
+    }
+
+    private AgentProtocol() {}
+
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int stream = in.readInt();
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Frame of " + length + " bytes is too large");
+
+        return new Frame(stream, type, in.readNBytes(length));
+    }
+
+    /**
+     * Writes one frame. Callers on different threads share the stream, so each frame is written and flushed as a whole
+     */
+    public static void writeFrame(DataOutputStream out, int stream, byte type, byte[] payload, int length) throws IOException {
+        synchronized (out) {
+            out.writeInt(stream);
+            out.writeByte(type);
+            out.writeInt(length);
+            out.write(payload, 0, length);
+            out.flush();
+        }
+    }
+
+    public static void writeFrame(DataOutputStream out, int stream, byte type, byte[] payload) throws IOException {
+        writeFrame(out, stream, type, payload, payload.length);
+    }
+
+    /**
+     * Returns the payload built by writer
+     */
+    public static byte[] payload(PayloadWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writer.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @FunctionalInterface
+    public interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends listing on stream as ENTRIES frames followed by an END frame
+     */
+    public static void writeListing(DataOutputStream out, int stream, SortedMap<Path, TreeListing.Entry> listing) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(MAX_PAYLOAD);
+        DataOutputStream batchOut = new DataOutputStream(batch);
+        String previous = "";
+
+        for (var entry : listing.entrySet()) {
+            String path = encodePath(entry.getKey());
+            int shared = sharedPrefixLength(previous, path);
+            TreeListing.Entry attributes = entry.getValue();
+
+            writeVarLong(batchOut, shared);
+            batchOut.writeUTF(path.substring(shared));
+            batchOut.writeByte(attributes.directory() ? 1 : 0);
+            writeVarLong(batchOut, attributes.size());
+            writeVarLong(batchOut, attributes.modifiedMillis());
+            // Creation usually comes shortly before the last modification, so the difference is small
+            writeVarLong(batchOut, zigZag(attributes.modifiedMillis() - attributes.createdMillis()));
+            previous = path;
+
+            if (batch.size() > MAX_PAYLOAD - 1024) {
+                writeFrame(out, stream, ENTRIES, batch.toByteArray());
+                batch.reset();
+            }
+        }
+
+        if (batch.size() > 0) writeFrame(out, stream, ENTRIES, batch.toByteArray());
+        writeFrame(out, stream, END, new byte[0]);
+    }
+
+    /**
+     * Adds the entries of one ENTRIES frame to listing. previous holds the last path read, carried over between frames
+     */
+    public static void readEntries(Frame frame, SortedMap<Path, TreeListing.Entry> listing, StringBuilder previous) throws IOException {
+        DataInputStream in = frame.payloadStream();
+
+        while (in.available() > 0) {
+            int shared = (int) readVarLong(in);
+            if (shared > previous.length()) throw new IOException("Malformed listing");
+
+            previous.setLength(shared);
+            previous.append(in.readUTF());
+            boolean directory = in.readByte() == 1;
+            long size = readVarLong(in);
+            long modifiedMillis = readVarLong(in);
+            long createdMillis = modifiedMillis - unZigZag(readVarLong(in));
+
+            listing.put(decodePath(previous.toString()), new TreeListing.Entry(directory, size, modifiedMillis, createdMillis));
+        }
+    }
+
+    /**
+     * Writes relativePath with '/' between its names, whatever the separator of this platform
+     */
+    public static String encodePath(Path relativePath) {
+        StringBuilder encoded = new StringBuilder();
+        for (Path name : relativePath) {
+            if (!encoded.isEmpty()) encoded.append('/');
+            encoded.append(name);
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Reads a path written by {@link #encodePath(Path)}. Paths that could point outside a root are rejected, and so is
+     * the root itself
+     */
+    public static Path decodePath(String encoded) throws IOException {
+        Path relativePath = Path.of("");
+        for (String name : encoded.split("/")) {
+            if (name.isEmpty()) continue;
+            if (name.equals("..") || name.equals(".")) throw new IOException("Path '" + encoded + "' leaves the root");
+            relativePath = relativePath.resolve(name);
+        }
+
+        if (relativePath.toString().isEmpty()) throw new IOException("Path '" + encoded + "' names the root itself");
+        if (relativePath.isAbsolute()) throw new IOException("Path '" + encoded + "' is absolute");
+        return relativePath;
+    }
+
+    /**
+     * Returns true if relativePath is, or lies inside, one of the files FileSync keeps for itself in a root, such as
+     * .sync_trash, .sync_index or a .sync_partial upload
+     */
+    public static boolean isControlPath(Path relativePath) {
+        for (Path name : relativePath) {
+            String fileName = name.toString();
+            if (fileName.startsWith(".sync_") || fileName.endsWith(".sync_partial") || fileName.endsWith(".sync_partial.progress") || fileName.endsWith(".sync_delta")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the file contents carried by a DATA or DATA_DEFLATED frame
+     */
+    public static byte[] chunkOf(Frame frame) throws IOException {
+        if (frame.type() == DATA) return frame.payload();
+
+        byte[] payload = frame.payload();
+        if (payload.length < 4) throw new IOException("Malformed compressed chunk");
+        int length = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Compressed chunk of " + length + " bytes is too large");
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload, 4, payload.length - 4);
+            byte[] chunk = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int read = inflater.inflate(chunk, inflated, length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += read;
+            }
+
+            if (inflated != length) throw new IOException("Compressed chunk is truncated");
+            return chunk;
+        } catch (DataFormatException dfE) {
+            throw new IOException("Compressed chunk is corrupt", dfE);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static String errorMessage(Frame frame) {
+        return new String(frame.payload(), StandardCharsets.UTF_8);
+    }
+
+    public static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed number");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int sharedPrefixLength(String first, String second) {
+        int length = Math.min(first.length(), second.length());
+        int shared = 0;
+        while (shared < length && first.charAt(shared) == second.charAt(shared)) shared++;
+        return shared;
+    }
+
+}
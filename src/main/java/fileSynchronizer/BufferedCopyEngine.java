@@ -0,0 +1,47 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Copies through a heap buffer of a fixed size. This is the slowest strategy on local disks, but it works on every
+ * file system and is the baseline the other strategies are measured against.
+ */
+public class BufferedCopyEngine implements CopyEngine {
+
+    private final int bufferSize;
+    private final RateLimiter rateLimiter;
+
+    public BufferedCopyEngine(int bufferSize) {
+        this(bufferSize, new RateLimiter());
+    }
+
+    public BufferedCopyEngine(int bufferSize, RateLimiter rateLimiter) {
+        this.bufferSize = bufferSize;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void copy(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+
+            while (sourceChannel.read(buffer.limit(rateLimiter.pacedChunkSize(bufferSize))) != -1) {
+                buffer.flip();
+                rateLimiter.acquireBytes(buffer.remaining());
+                while (buffer.hasRemaining()) {
+                    destinationChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        CopyEngine.copyAttributes(source, destination, sourceAttributes);
+    }
+
+}
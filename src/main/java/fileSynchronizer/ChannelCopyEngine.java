@@ -0,0 +1,45 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Copies with {@link FileChannel#transferTo} in chunks of a fixed size. On Linux the transfer happens inside the
+ * kernel (copy_file_range or sendfile), so no bytes pass through a user-space buffer.
+ */
+public class ChannelCopyEngine implements CopyEngine {
+
+    private final int chunkSize;
+    private final RateLimiter rateLimiter;
+
+    public ChannelCopyEngine(int chunkSize) {
+        this(chunkSize, new RateLimiter());
+    }
+
+    public ChannelCopyEngine(int chunkSize, RateLimiter rateLimiter) {
+        this.chunkSize = chunkSize;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void copy(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = sourceChannel.size();
+            long position = 0;
+
+            while (position < size) {
+                long transferred = sourceChannel.transferTo(position, Math.min(rateLimiter.pacedChunkSize(chunkSize), size - position), destinationChannel);
+                if (transferred <= 0) throw new IOException("Could not transfer '" + source + "' past byte " + position);
+                position += transferred;
+                rateLimiter.acquireBytes(transferred);
+            }
+        }
+
+        CopyEngine.copyAttributes(source, destination, sourceAttributes);
+    }
+
+}
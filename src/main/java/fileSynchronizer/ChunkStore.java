@@ -0,0 +1,263 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Content-addressed store of file chunks. Each file is cut into chunks at positions chosen by its content, using a
+ * rolling gear hash, so an insertion or deletion only changes the chunks around it and every other chunk is found
+ * again. Chunks are named by their SHA-256 and stored once in {@code xx/<hash>}, however many files contain them.
+ * <p>
+ * {@code refs} counts how many stored files use each chunk. It is an append-only log of {@code hash size delta} lines
+ * that is read when the store is opened, read again by {@link #refresh()} if another process has changed it since, and
+ * compacted when it has grown well past the number of live chunks. A chunk is deleted as soon as nothing uses it any
+ * more, so freeing space never requires walking the store. Callers shared with other processes serialize changes
+ * with a lock of their own, as {@link VersionHistory} does.
+ */
+public class ChunkStore {
+
+    // Chunks are between 16 KB and 256 KB long, 64 KB on average
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+    private static final long BOUNDARY_MASK = (1L << 16) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed, so the same content is always cut at the same places
+        SplittableRandom random = new SplittableRandom(0x6C6F6E67L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private record Chunk(long size, long references) {}
+
+    private final Path directory, referenceLog;
+    private final Map<String, Chunk> chunks = new HashMap<>();
+    private long storedBytes = 0;
+    private long logLines = 0;
+    // The identity and size of the reference log as this store last read or wrote it
+    private Object knownLogKey;
+    private long knownLogSize = 0;
+
+    private ChunkStore(Path directory) {
+        this.directory = directory;
+        referenceLog = directory.resolve("refs");
+    }
+
+    public static ChunkStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        ChunkStore store = new ChunkStore(directory);
+        store.readReferenceLog();
+        return store;
+    }
+
+    /**
+     * Cuts file into chunks, writes the ones the store does not have yet and counts one more use of each. Returns the
+     * names of the chunks in order. The bytes of chunks that had to be written are added to newBytes[0]
+     */
+    public synchronized List<String> store(Path file, long[] newBytes) throws IOException {
+        List<String> names = new ArrayList<>();
+        byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        int length = 0;
+        long hash = 0;
+
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                for (int i = 0; i < read; i++) {
+                    chunk[length++] = buffer[i];
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+
+                    if ((length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || length == MAX_CHUNK_SIZE) {
+                        names.add(storeChunk(chunk, length, newBytes));
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+        }
+        if (length > 0) names.add(storeChunk(chunk, length, newBytes));
+
+        StringBuilder deltas = new StringBuilder();
+        for (String name : names) {
+            Chunk stored = chunks.get(name);
+            chunks.put(name, new Chunk(stored.size(), stored.references() + 1));
+            deltas.append(name).append(' ').append(stored.size()).append(" 1\n");
+        }
+        appendToReferenceLog(deltas);
+
+        return names;
+    }
+
+    /**
+     * Writes the chunk under the hex SHA-256 of its contents unless the store has it already, and returns the name
+     */
+    private String storeChunk(byte[] chunk, int length, long[] newBytes) throws IOException {
+        String name = sha256(chunk, length);
+        Path chunkFile = chunkFile(name);
+        if (chunks.containsKey(name) && Files.exists(chunkFile)) return name;
+
+        // Written next to its final name and renamed, so a chunk that exists is always complete
+        Files.createDirectories(chunkFile.getParent());
+        Path temporaryFile = chunkFile.resolveSibling(name + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+            out.write(chunk, 0, length);
+        }
+        Files.move(temporaryFile, chunkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (chunks.putIfAbsent(name, new Chunk(length, 0)) == null) storedBytes += length;
+        newBytes[0] += length;
+        return name;
+    }
+
+    /**
+     * Counts one less use of each of names and deletes the chunks nothing uses any more. Returns the bytes freed
+     */
+    public synchronized long release(List<String> names) throws IOException {
+        StringBuilder deltas = new StringBuilder();
+        long freedBytes = 0;
+
+        for (String name : names) {
+            Chunk stored = chunks.get(name);
+            if (stored == null) continue;
+
+            deltas.append(name).append(' ').append(stored.size()).append(" -1\n");
+            if (stored.references() > 1) {
+                chunks.put(name, new Chunk(stored.size(), stored.references() - 1));
+                continue;
+            }
+
+            chunks.remove(name);
+            Files.deleteIfExists(chunkFile(name));
+            storedBytes -= stored.size();
+            freedBytes += stored.size();
+        }
+
+        appendToReferenceLog(deltas);
+        if (logLines > 2L * chunks.size() + 10000) compactReferenceLog();
+        return freedBytes;
+    }
+
+    /**
+     * Reads the reference log again if it is not as this store last left it, because another process has added to it
+     * or compacted it
+     */
+    public synchronized void refresh() throws IOException {
+        BasicFileAttributes attributes = logAttributes();
+        Object key = (attributes == null) ? null : attributes.fileKey();
+        long size = (attributes == null) ? 0 : attributes.size();
+        if (size == knownLogSize && Objects.equals(key, knownLogKey)) return;
+
+        chunks.clear();
+        storedBytes = 0;
+        logLines = 0;
+        readReferenceLog();
+    }
+
+    /**
+     * Writes the chunks called names to out, in order
+     */
+    public void copyTo(List<String> names, OutputStream out) throws IOException {
+        for (String name : names) {
+            Files.copy(chunkFile(name), out);
+        }
+    }
+
+    /**
+     * Returns the total size of the chunks in the store
+     */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    private Path chunkFile(String name) {
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private void readReferenceLog() throws IOException {
+        rememberLog();
+        if (!Files.isRegularFile(referenceLog)) return;
+
+        for (String line : Files.readAllLines(referenceLog, StandardCharsets.UTF_8)) {
+            logLines++;
+            String[] fields = line.split(" ");
+            if (fields.length != 3) continue; // A line cut off by an interruption
+
+            Chunk stored = chunks.getOrDefault(fields[0], new Chunk(Long.parseLong(fields[1]), 0));
+            long references = stored.references() + Long.parseLong(fields[2]);
+            if (references > 0) chunks.put(fields[0], new Chunk(stored.size(), references));
+            else chunks.remove(fields[0]);
+        }
+
+        for (Chunk stored : chunks.values()) {
+            storedBytes += stored.size();
+        }
+    }
+
+    private void appendToReferenceLog(CharSequence lines) throws IOException {
+        if (lines.isEmpty()) return;
+
+        try (FileChannel channel = FileChannel.open(referenceLog, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+
+        logLines += lines.chars().filter(c -> c == '\n').count();
+        rememberLog();
+    }
+
+    /**
+     * Rewrites the reference log with one line per live chunk
+     */
+    private void compactReferenceLog() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, Chunk> chunk : chunks.entrySet()) {
+            lines.append(chunk.getKey()).append(' ').append(chunk.getValue().size()).append(' ').append(chunk.getValue().references()).append('\n');
+        }
+
+        Path temporaryFile = referenceLog.resolveSibling("refs.tmp");
+        Files.writeString(temporaryFile, lines, StandardCharsets.UTF_8);
+        Files.move(temporaryFile, referenceLog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLines = chunks.size();
+        rememberLog();
+    }
+
+    private void rememberLog() throws IOException {
+        BasicFileAttributes attributes = logAttributes();
+        knownLogKey = (attributes == null) ? null : attributes.fileKey();
+        knownLogSize = (attributes == null) ? 0 : attributes.size();
+    }
+
+    private BasicFileAttributes logAttributes() throws IOException {
+        try {
+            return Files.readAttributes(referenceLog, BasicFileAttributes.class);
+        } catch (NoSuchFileException nsfE) {
+            return null;
+        }
+    }
+
+    private static String sha256(byte[] bytes, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes, 0, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IllegalStateException("SHA-256 is not available", nsaE);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package fileSynchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how conflicts are resolved without asking. Each root may hold a .sync_conflicts file with one rule per line,
+ * a path pattern followed by a resolution:
+ * <pre>
+ * # Documents are edited on both machines, keep whatever was saved last
+ * *.docx        newest
+ * /photos/**    prefer:desktop
+ * notes/*.md    keep-both
+ * </pre>
+ * Patterns follow the same rules as .sync_exclude. The first matching rule wins, with the rules of the local root read
+ * before those of the remote root. Conflicts no rule matches get the default resolution, which is to ask the user.
+ */
+public class ConflictPolicy {
+
+    public enum Strategy {
+        // Prompt for a decision, as FileSync always did
+        ASK,
+        // Take the version that was modified last
+        NEWEST,
+        // Take the bigger version, or the newest if both are the same size
+        LARGEST,
+        // Take the version from the root with the given nickname
+        PREFER,
+        // Keep both versions in both roots, renaming the remote one
+        KEEP_BOTH
+    }
+
+    public record Resolution(Strategy strategy, String preferredNickname) {
+
+        public static final Resolution ASK = new Resolution(Strategy.ASK, null);
+
+        /**
+         * Parses "ask", "newest", "largest", "keep-both" or "prefer:&lt;nickname&gt;"
+         */
+        public static Resolution parse(String value) {
+            String normalized = value.trim().toLowerCase(Locale.ROOT);
+            if (normalized.startsWith("prefer:") && normalized.length() > "prefer:".length()) return new Resolution(Strategy.PREFER, value.trim().substring("prefer:".length()));
+
+            return switch (normalized) {
+                case "ask" -> ASK;
+                case "newest", "newest-wins" -> new Resolution(Strategy.NEWEST, null);
+                case "largest", "largest-wins" -> new Resolution(Strategy.LARGEST, null);
+                case "keep-both" -> new Resolution(Strategy.KEEP_BOTH, null);
+                default -> throw new IllegalArgumentException("Unknown conflict resolution '" + value + "'");
+            };
+        }
+
+        @Override
+        public String toString() {
+            return (strategy == Strategy.PREFER) ? "prefer:" + preferredNickname : strategy.name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    private record Rule(Pattern pattern, boolean matchesName, Resolution resolution) {}
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Resolution defaultResolution;
+
+    public ConflictPolicy(Resolution defaultResolution) {
+        this.defaultResolution = defaultResolution;
+    }
+
+    /**
+     * Adds the rules in ruleFile after the rules already loaded. A missing file adds nothing
+     */
+    public void load(Path ruleFile) {
+        if (!Files.isRegularFile(ruleFile)) return;
+
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(ruleFile);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not read file '" + ruleFile + "'. Exiting...");
+            System.exit(1);
+            return;
+        }
+
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+
+            String[] patternAndResolution = trimmed.split("\\s+", 2);
+            try {
+                if (patternAndResolution.length < 2) throw new IllegalArgumentException("Missing resolution");
+                addRule(patternAndResolution[0], Resolution.parse(patternAndResolution[1]));
+            } catch (IllegalArgumentException iaE) {
+                System.err.println("ERROR: Invalid rule '" + line + "' in '" + ruleFile + "'. Exiting...");
+                System.exit(1);
+            }
+        }
+    }
+
+    public void addRule(String pattern, Resolution resolution) {
+        String normalized = pattern.replace(File.separatorChar, '/');
+        boolean anchored = normalized.startsWith("/");
+        if (anchored) normalized = normalized.substring(1);
+
+        boolean matchesName = !anchored && !normalized.contains("/");
+        rules.add(new Rule(Pattern.compile(ExclusionMatcher.globToRegex(normalized)), matchesName, resolution));
+    }
+
+    /**
+     * Returns the resolution for a conflict at relativePath
+     */
+    public Resolution resolutionFor(Path relativePath) {
+        String name = relativePath.getFileName().toString();
+        String path = relativePath.toString().replace(File.separatorChar, '/');
+
+        for (Rule rule : rules) {
+            if (rule.pattern().matcher(rule.matchesName() ? name : path).matches()) return rule.resolution();
+        }
+
+        return defaultResolution;
+    }
+
+}
@@ -0,0 +1,64 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Copies the contents of one regular file to another. Implementations differ only in how the bytes are moved, so the
+ * fastest one can be picked per mount type.
+ */
+public interface CopyEngine {
+
+    enum Strategy {
+        FILES, TRANSFER, REFLINK, BUFFERED
+    }
+
+    /**
+     * Copies the regular file at source to destination, replacing destination if it exists and keeping the source's timestamps
+     */
+    void copy(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException;
+
+    static CopyEngine create(Strategy strategy, int chunkSize) {
+        return create(strategy, chunkSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates the engine for strategy. Files of at least resumableMinimumSize bytes are copied by a ResumableCopyEngine,
+     * except that a reflink clone is still tried first since it takes no time at all
+     */
+    static CopyEngine create(Strategy strategy, int chunkSize, long resumableMinimumSize) {
+        return create(strategy, chunkSize, resumableMinimumSize, new RateLimiter(), false);
+    }
+
+    /**
+     * Creates the engine for strategy, with every engine that moves bytes paced by rateLimiter. A reflink clone moves
+     * none, so it is not paced. A resumed copy is only reported if verbose is set
+     */
+    static CopyEngine create(Strategy strategy, int chunkSize, long resumableMinimumSize, RateLimiter rateLimiter, boolean verbose) {
+        return switch (strategy) {
+            case FILES -> new ResumableCopyEngine(new FilesCopyEngine(rateLimiter), resumableMinimumSize, ResumableCopyEngine.DEFAULT_CHUNK_SIZE, rateLimiter, verbose);
+            case TRANSFER -> new ResumableCopyEngine(new ChannelCopyEngine(chunkSize, rateLimiter), resumableMinimumSize, ResumableCopyEngine.DEFAULT_CHUNK_SIZE, rateLimiter, verbose);
+            case REFLINK -> new ReflinkCopyEngine(new ResumableCopyEngine(new ChannelCopyEngine(chunkSize, rateLimiter), resumableMinimumSize, ResumableCopyEngine.DEFAULT_CHUNK_SIZE, rateLimiter, verbose));
+            case BUFFERED -> new ResumableCopyEngine(new BufferedCopyEngine(chunkSize, rateLimiter), resumableMinimumSize, ResumableCopyEngine.DEFAULT_CHUNK_SIZE, rateLimiter, verbose);
+        };
+    }
+
+    /**
+     * Gives destination the timestamps and, where supported, the permissions of source
+     */
+    static void copyAttributes(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException {
+        // Callers read only the basic attributes, which never carry permissions, so they are read from the source here
+        PosixFileAttributeView sourceView = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        PosixFileAttributeView destinationView = Files.getFileAttributeView(destination, PosixFileAttributeView.class);
+        if (sourceView != null && destinationView != null) {
+            destinationView.setPermissions(sourceView.readAttributes().permissions());
+        }
+
+        Files.getFileAttributeView(destination, BasicFileAttributeView.class).setTimes(sourceAttributes.lastModifiedTime(), sourceAttributes.lastAccessTime(), null);
+    }
+
+}
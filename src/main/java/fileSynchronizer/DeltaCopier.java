@@ -0,0 +1,245 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Brings an existing destination file up to date with its source by writing only the parts that differ, in the style
+ * of rsync. The destination is split into fixed-size blocks, each identified by a rolling checksum and an MD5 digest.
+ * The source is then scanned with the rolling checksum to find those blocks at any offset. If every block that was
+ * found is still at its old offset, only the changed regions are written, in place. Otherwise the file is rebuilt in a
+ * temporary file next to the destination, from its own blocks and the changed source bytes, and renamed into place.
+ */
+public final class DeltaCopier {
+
+    private static final int MIN_BLOCK_SIZE = 8 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD = 4 * 1024 * 1024;
+
+    private record Instruction(long sourceOffset, long length, int block) {
+
+        boolean isLiteral() {
+            return block < 0;
+        }
+    }
+
+    private final Path source, destination;
+    private final int blockSize;
+
+    private final Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+    private final List<byte[]> blockDigests = new ArrayList<>();
+
+    public DeltaCopier(Path source, Path destination, long sourceSize) {
+        this.source = source;
+        this.destination = destination;
+
+        // Like rsync, grow the block size with the square root of the file size so the signature stays small
+        blockSize = (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt(sourceSize)));
+    }
+
+    /**
+     * Updates the destination to match the source and returns the number of source bytes that had to be written
+     */
+    public long copy() throws IOException {
+        readSignatures();
+
+        BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+        List<Instruction> instructions;
+        long sourceSize;
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+            sourceSize = sourceChannel.size();
+            instructions = findMatches(sourceChannel, sourceSize);
+        }
+
+        boolean aligned = instructions.stream().allMatch(instruction -> instruction.isLiteral() || instruction.sourceOffset() == (long) instruction.block() * blockSize);
+        if (aligned) {
+            applyInPlace(instructions, sourceSize);
+            CopyEngine.copyAttributes(source, destination, sourceAttributes);
+        }
+        else rebuild(instructions, sourceAttributes);
+
+        return instructions.stream().filter(Instruction::isLiteral).mapToLong(Instruction::length).sum();
+    }
+
+    private void readSignatures() throws IOException {
+        try (FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.READ)) {
+            long blockCount = destinationChannel.size() / blockSize;
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+            for (int index = 0; index < blockCount; index++) {
+                block.clear();
+                while (block.hasRemaining()) {
+                    if (destinationChannel.read(block, (long) index * blockSize + block.position()) < 0) throw new IOException("Destination shrank while reading signatures");
+                }
+
+                byte[] bytes = block.array();
+                blocksByChecksum.computeIfAbsent(rollingChecksum(bytes, 0, blockSize), key -> new ArrayList<>()).add(index);
+                blockDigests.add(md5(bytes, 0, blockSize));
+            }
+        }
+    }
+
+    private List<Instruction> findMatches(FileChannel sourceChannel, long sourceSize) throws IOException {
+        List<Instruction> instructions = new ArrayList<>();
+        SourceWindow window = new SourceWindow(sourceChannel, sourceSize);
+
+        long position = 0, literalStart = 0;
+        int a = 0, b = 0;
+        boolean checksumValid = false;
+
+        while (position + blockSize <= sourceSize) {
+            byte[] bytes = window.bytes(position, blockSize + 1);
+            int offset = window.offsetOf(position);
+
+            if (!checksumValid) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int value = bytes[offset + i] & 0xff;
+                    a += value;
+                    b += (blockSize - i) * value;
+                }
+                checksumValid = true;
+            }
+
+            int match = -1;
+            List<Integer> candidates = blocksByChecksum.get((a & 0xffff) | (b << 16));
+            if (candidates != null) {
+                byte[] digest = md5(bytes, offset, blockSize);
+                for (int candidate : candidates) {
+                    if (!Arrays.equals(blockDigests.get(candidate), digest)) continue;
+
+                    // Prefer the block at the same offset, so unchanged regions can stay where they are
+                    if (match < 0 || (long) candidate * blockSize == position) match = candidate;
+                }
+            }
+
+            if (match >= 0) {
+                if (literalStart < position) instructions.add(new Instruction(literalStart, position - literalStart, -1));
+                instructions.add(new Instruction(position, blockSize, match));
+
+                position += blockSize;
+                literalStart = position;
+                checksumValid = false;
+            } else {
+                if (position + blockSize < sourceSize) {
+                    int outgoing = bytes[offset] & 0xff;
+                    int incoming = bytes[offset + blockSize] & 0xff;
+                    a = a - outgoing + incoming;
+                    b = b - blockSize * outgoing + a;
+                }
+                position++;
+            }
+        }
+
+        if (literalStart < sourceSize) instructions.add(new Instruction(literalStart, sourceSize - literalStart, -1));
+        return instructions;
+    }
+
+    private void applyInPlace(List<Instruction> instructions, long sourceSize) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            for (Instruction instruction : instructions) {
+                if (instruction.isLiteral()) transfer(sourceChannel, instruction.sourceOffset(), instruction.length(), destinationChannel, instruction.sourceOffset());
+            }
+
+            destinationChannel.truncate(sourceSize);
+        }
+    }
+
+    private void rebuild(List<Instruction> instructions, BasicFileAttributes sourceAttributes) throws IOException {
+        Path temporaryFile = destination.resolveSibling("." + destination.getFileName() + ".sync_delta");
+
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.READ);
+             FileChannel temporaryChannel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            for (Instruction instruction : instructions) {
+                if (instruction.isLiteral()) transfer(sourceChannel, instruction.sourceOffset(), instruction.length(), temporaryChannel, written);
+                else transfer(destinationChannel, (long) instruction.block() * blockSize, instruction.length(), temporaryChannel, written);
+                written += instruction.length();
+            }
+        }
+
+        // The rebuilt file is new, so it has to be given the source's permissions before it takes the destination's place
+        CopyEngine.copyAttributes(source, temporaryFile, sourceAttributes);
+        Files.move(temporaryFile, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void transfer(FileChannel from, long fromOffset, long length, FileChannel to, long toOffset) throws IOException {
+        to.position(toOffset);
+        long transferred = 0;
+        while (transferred < length) {
+            long count = from.transferTo(fromOffset + transferred, length - transferred, to);
+            if (count <= 0) throw new IOException("Source ended before the expected length");
+            transferred += count;
+        }
+    }
+
+    private static int rollingChecksum(byte[] bytes, int offset, int length) {
+        int a = 0, b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = bytes[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static byte[] md5(byte[] bytes, int offset, int length) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+            messageDigest.update(bytes, offset, length);
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IllegalStateException("MD5 is not available", nsaE);
+        }
+    }
+
+    /**
+     * Buffers large reads of the source so the byte-by-byte scan does not issue one read per byte
+     */
+    private static final class SourceWindow {
+
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        private long bufferStart = 0;
+
+        SourceWindow(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * Returns the backing array with at least length bytes starting at position, or up to the end of the source
+         */
+        byte[] bytes(long position, int length) throws IOException {
+            long wanted = Math.min(length, size - position);
+            if (position < bufferStart || position + wanted > bufferStart + buffer.limit()) {
+                int capacity = (int) Math.min(Math.max(READ_AHEAD, length), size - position);
+                if (buffer.capacity() < capacity) buffer = ByteBuffer.allocate(capacity);
+
+                buffer.clear().limit(capacity);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Source shrank while scanning");
+                }
+                buffer.flip();
+                bufferStart = position;
+            }
+
+            return buffer.array();
+        }
+
+        int offsetOf(long position) {
+            return (int) (position - bufferStart);
+        }
+    }
+
+}
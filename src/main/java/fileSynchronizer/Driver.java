@@ -2,9 +2,16 @@ package fileSynchronizer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 public class Driver {
@@ -16,9 +23,37 @@ public class Driver {
      * args[1] = absolute path to directory 2
      * args[2] = local hostname
      * args[3] = remote hostname
+     * With three or more directories, the first half of args are their absolute paths and the second half their nicknames
+     * args[1] may be the address of an agent, filesync://host:port, serving directory 2 on another machine
+     * With --agent=port, args[0] is the directory to serve and args[1] its nickname
+     * With --list-versions or --restore=time, args[0] is a directory nickname, args[1] a path relative to it and, for
+     * --restore, args[2] where to put the restored file
+     * Options of the form --name=value may appear anywhere in args
      */
     public static void main(String[] args) {
+        SyncOptions options = new SyncOptions();
+        // The command line always runs verbosely
+        options.setVerboseCopies(true);
+        args = parseOptions(args, options);
+
         int numArgs = args.length;
+        if (options.isListVersions() || options.getRestoreMillis() >= 0) {
+            browseVersions(args, options);
+            return;
+        }
+        if (options.getAgentPort() != 0) {
+            serveAsAgent(args, options);
+            return;
+        }
+        if (numArgs == 4 && AgentConnection.isAgentAddress(args[1])) {
+            synchronizeWithAgent(args, options);
+            return;
+        }
+        if (numArgs >= 6 && numArgs % 2 == 0) {
+            synchronizeAll(args, options);
+            return;
+        }
+
         boolean localDirExists = numArgs > 1 && directoryExists(args[0]);
         boolean remoteDirExists = numArgs > 2 && directoryExists(args[1]);
 
@@ -74,12 +109,244 @@ public class Driver {
             }
         }
 
-        FileSynchronizer synchronizer = new FileSynchronizer(newArgs[0], newArgs[1], newArgs[2], newArgs[3], System.in, true);
-        synchronizer.synchronizeFileTrees();
+        if (options.isJmx()) options.getMetrics().registerMBean();
+
+        FileSynchronizer synchronizer = new FileSynchronizer(newArgs[0], newArgs[1], newArgs[2], newArgs[3], System.in, true, options);
+
+        if (options.isDryRun()) {
+            SyncPlan plan = synchronizer.plan();
+            if (options.getPlanFile() != null) plan.write(options.getPlanFile());
+            else {
+                try {
+                    plan.write(new OutputStreamWriter(System.out));
+                } catch (IOException ioE) {
+                    System.err.println("ERROR: Could not print the plan. Exiting...");
+                    System.exit(1);
+                }
+            }
+
+            System.out.println(plan.getSummary());
+            USER_INPUT.close();
+            return;
+        }
+
+        if (options.isExecutePlan()) synchronizer.executePlan(SyncPlan.read(options.getPlanFile(), synchronizer.getLocalRoot(), synchronizer.getRemoteRoot()));
+        else synchronizer.synchronizeFileTrees();
+
+        if (options.isDaemon()) {
+            try {
+                new SyncDaemon(synchronizer, synchronizer.getLastSyncMillis(), options.getDebounceMillis(), true).run();
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Could not start watching for changes. Exiting...");
+                System.exit(1);
+            }
+        }
+
+        USER_INPUT.close();
+    }
+
+    /**
+     * Syncs every directory in args with all the others in one pass
+     */
+    private static void synchronizeAll(String[] args, SyncOptions options) {
+        List<String> paths = Arrays.asList(args).subList(0, args.length / 2);
+        List<String> nicknames = Arrays.asList(args).subList(args.length / 2, args.length);
+
+        for (String path : paths) {
+            if (!directoryExists(path)) {
+                System.out.println("Directory '" + path + "' does not exist. Exiting...");
+                System.exit(1);
+            }
+        }
+
+        if (options.isJmx()) options.getMetrics().registerMBean();
+
+        try {
+            new MultiRootSynchronizer(paths, nicknames, System.in, true, options).synchronizeFileTrees();
+        } catch (IllegalArgumentException iaE) {
+            System.out.println(iaE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+
+        USER_INPUT.close();
+    }
+
+    /**
+     * Serves the directory args[0], nicknamed args[1], to clients on other machines until the process is stopped
+     */
+    private static void serveAsAgent(String[] args, SyncOptions options) {
+        if (args.length != 2 || !directoryExists(args[0])) {
+            System.out.println("Usage: filesync --agent=<port> --agent-secret-file=<path> <directory-absolute-path> <directory-nickname>");
+            System.exit(1);
+        }
+        if (options.getAgentSecret() == null) {
+            System.out.println("An agent needs a shared secret from --agent-secret-file. Exiting...");
+            System.exit(1);
+        }
+
+        try {
+            new SyncAgent(args[0], args[1], options.getAgentPort(), true, options).run();
+        } catch (IOException ioE) {
+            System.out.println("Could not listen on " + options.getAgentBindAddress().getHostAddress() + " port " + options.getAgentPort() + ". Exiting...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Syncs the local directory args[0] with the directory served by the agent at args[1]
+     */
+    private static void synchronizeWithAgent(String[] args, SyncOptions options) {
+        if (!directoryExists(args[0])) {
+            System.out.println("Directory '" + args[0] + "' does not exist. Exiting...");
+            System.exit(1);
+        }
+        if (options.isDaemon() || options.isDetectMoves() || options.isDryRun() || options.isExecutePlan()) {
+            System.out.println("Daemon mode, move detection and plans are not available when syncing with an agent. Exiting...");
+            System.exit(1);
+        }
+        if (options.getAgentSecret() == null) {
+            System.out.println("Syncing with an agent needs its shared secret from --agent-secret-file. Exiting...");
+            System.exit(1);
+        }
+
+        if (options.isJmx()) options.getMetrics().registerMBean();
 
+        new RemoteSynchronizer(args[0], args[1], args[2], args[3], System.in, true, options).synchronizeFileTrees();
         USER_INPUT.close();
     }
 
+    /**
+     * Lists the stored versions of the path args[1] in the directory nicknamed args[0], or restores the one that was
+     * current at the requested time to args[2]
+     */
+    private static void browseVersions(String[] args, SyncOptions options) {
+        boolean restoring = options.getRestoreMillis() >= 0;
+        if (options.getVersionStoreDirectory() == null || args.length != (restoring ? 3 : 2)) {
+            System.out.println("Usage: filesync --version-store=<path> --list-versions <directory-nickname> <relative-path>");
+            System.out.println("       filesync --version-store=<path> --restore=<time> <directory-nickname> <relative-path> <destination>");
+            System.exit(1);
+        }
+
+        VersionHistory history = options.getVersionHistory();
+        Path relativePath = Path.of(args[1]);
+
+        try {
+            if (!restoring) {
+                for (VersionHistory.Version version : history.getVersions(args[0], relativePath)) {
+                    System.out.println(Instant.ofEpochMilli(version.modifiedMillis()) + "  " + version.size() + " bytes  kept at " + Instant.ofEpochMilli(version.storedMillis()));
+                }
+                return;
+            }
+
+            VersionHistory.Version version = history.getVersionAt(args[0], relativePath, options.getRestoreMillis());
+            if (version == null) {
+                System.out.println("No version of '" + relativePath + "' in " + args[0] + " is that old. Exiting...");
+                System.exit(1);
+            }
+
+            history.restore(version, Path.of(args[2]));
+            System.out.println("RESTORE: '" + relativePath + "' as modified at " + Instant.ofEpochMilli(version.modifiedMillis()) + " to '" + args[2] + "'");
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not read version store '" + options.getVersionStoreDirectory() + "'. Exiting...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses a time given as milliseconds since the epoch or as a local date and time such as 2024-05-01T18:30
+     */
+    private static long parseTime(String value) {
+        if (value.chars().allMatch(Character::isDigit)) return Long.parseLong(value);
+
+        try {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException dtpE) {
+            throw new IllegalArgumentException(dtpE);
+        }
+    }
+
+    /**
+     * Applies every --name=value argument to options and returns the remaining positional arguments
+     */
+    private static String[] parseOptions(String[] args, SyncOptions options) {
+        List<String> positionalArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positionalArgs.add(arg);
+                continue;
+            }
+
+            String[] nameAndValue = arg.substring(2).split("=", 2);
+            String value = (nameAndValue.length > 1) ? nameAndValue[1] : "";
+
+            try {
+                switch (nameAndValue[0]) {
+                    case "threads" -> options.setComparisonThreads(Integer.parseInt(value));
+                    case "daemon" -> options.setDaemon(true);
+                    case "debounce" -> options.setDebounceMillis(Long.parseLong(value));
+                    case "verify-content" -> options.setVerifyContent(true);
+                    case "delta" -> options.setDeltaTransfer(true);
+                    case "delta-min-size" -> options.setDeltaMinimumSize(Long.parseLong(value));
+                    case "copy-engine" -> options.setCopyStrategy(CopyEngine.Strategy.valueOf(value.toUpperCase()));
+                    case "copy-chunk-size" -> options.setCopyChunkSize(Integer.parseInt(value));
+                    case "resumable-min-size" -> options.setResumableCopyMinimumSize(Long.parseLong(value));
+                    case "copy-threads" -> options.setTransferThreads(Integer.parseInt(value));
+                    case "max-queued-copies" -> options.setMaxQueuedTransfers(Integer.parseInt(value));
+                    case "max-bytes-in-flight" -> options.setMaxBytesInFlight(Long.parseLong(value));
+                    case "detect-moves" -> options.setDetectMoves(true);
+                    case "conflicts" -> options.setDefaultConflictResolution(ConflictPolicy.Resolution.parse(value));
+                    case "metrics-file" -> options.setMetricsFile(Path.of(value));
+                    case "jmx" -> options.setJmx(true);
+                    case "agent" -> {
+                        // 0 would quietly run a sync instead of serving, so an agent needs a real port
+                        if (Integer.parseInt(value) == 0) throw new IllegalArgumentException("Agent port must be between 1 and 65535");
+                        options.setAgentPort(Integer.parseInt(value));
+                    }
+                    case "agent-bind" -> options.setAgentBindAddress(value);
+                    case "agent-secret-file" -> options.setAgentSecret(readSecret(Path.of(value)));
+                    case "version-store" -> options.setVersionStoreDirectory(Path.of(value));
+                    case "keep-versions" -> options.setKeepVersions(Integer.parseInt(value));
+                    case "keep-versions-days" -> options.setVersionMaxAgeMillis(Long.parseLong(value) * 24 * 60 * 60 * 1000);
+                    case "version-store-max-size" -> options.setVersionStoreMaxBytes(Long.parseLong(value));
+                    case "list-versions" -> options.setListVersions(true);
+                    case "restore" -> options.setRestoreMillis(parseTime(value));
+                    case "max-bytes-per-second" -> options.setMaxBytesPerSecond(Long.parseLong(value));
+                    case "max-operations-per-second" -> options.setMaxOperationsPerSecond(Long.parseLong(value));
+                    case "rate-limit-file" -> options.setRateLimitFile(Path.of(value));
+                    case "compress" -> options.setCompressionLevel(value.isEmpty() ? 1 : Integer.parseInt(value));
+                    case "journal-sync-interval" -> options.setJournalSyncMillis(Long.parseLong(value));
+                    case "dry-run" -> options.setDryRun(true);
+                    case "plan-file" -> options.setPlanFile(Path.of(value));
+                    case "execute-plan" -> {
+                        options.setExecutePlan(true);
+                        options.setPlanFile(Path.of(value));
+                    }
+                    default -> {
+                        System.out.println("Unrecognized option '" + arg + "'. Exiting...");
+                        System.exit(1);
+                    }
+                }
+            } catch (IllegalArgumentException iaE) {
+                System.out.println("Invalid value for option '" + arg + "'. Exiting...");
+                System.exit(1);
+            }
+        }
+
+        return positionalArgs.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the shared secret in secretFile, without surrounding whitespace such as a trailing newline
+     */
+    private static String readSecret(Path secretFile) {
+        try {
+            return Files.readString(secretFile).strip();
+        } catch (IOException ioE) {
+            throw new IllegalArgumentException("Could not read '" + secretFile + "'", ioE);
+        }
+    }
+
     private static boolean directoryExists(String path) {
         File directory = Path.of(path).toFile();
         return directory.exists() && directory.isDirectory();
@@ -0,0 +1,157 @@
+package fileSynchronizer;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The entries of .sync_exclude, compiled once so a path can be checked without looping over every entry.
+ * <p>
+ * Entries without wildcards keep their original meaning: they exclude every path that ends with them. They are stored
+ * in a trie of reversed path components, so a check walks at most as many components as the longest entry has.
+ * Entries with wildcards follow .gitignore: {@code *} and {@code ?} match within one path component, {@code [abc]} and
+ * {@code [!abc]} match one character, and {@code **} matches any number of components. A pattern without a slash is
+ * matched against the name of the path at any depth. A pattern that starts with or contains a slash is matched against
+ * the whole path relative to the root. A trailing slash is allowed and ignored, so {@code build/} excludes the same
+ * paths as {@code build}. Lines starting with {@code #} are comments.
+ * <p>
+ * Entries are kept as the strings they were written as, since a pattern such as {@code *} is not a valid path on every
+ * file system.
+ */
+public final class ExclusionMatcher {
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        boolean terminal;
+    }
+
+    private final Node suffixes = new Node();
+    private int longestSuffix = 0;
+
+    // Plain entries that start with a slash only match at the root
+    private final Set<Path> anchoredPaths = new HashSet<>();
+
+    // "*.ext" patterns, the most common kind, are looked up by extension instead of going through a regex
+    private final Set<String> extensions = new HashSet<>();
+
+    // Every other pattern is folded into one regex for names and one for relative paths
+    private final Pattern namePatterns, pathPatterns;
+
+    private ExclusionMatcher(Collection<String> entries) {
+        List<String> nameRegexes = new ArrayList<>();
+        List<String> pathRegexes = new ArrayList<>();
+
+        for (String entry : entries) {
+            String pattern = entry.strip().replace(File.separatorChar, '/');
+            if (pattern.isEmpty() || pattern.startsWith("#")) continue;
+
+            boolean anchored = pattern.startsWith("/");
+            if (anchored) pattern = pattern.substring(1);
+            while (pattern.endsWith("/")) pattern = pattern.substring(0, pattern.length() - 1);
+            if (pattern.isEmpty()) continue;
+
+            if (!isGlob(pattern)) {
+                if (anchored) anchoredPaths.add(Path.of(pattern));
+                else addSuffix(Path.of(pattern));
+            }
+            else if (anchored || pattern.contains("/")) pathRegexes.add(globToRegex(pattern));
+            else if (pattern.startsWith("*.") && !isGlob(pattern.substring(2))) extensions.add(pattern.substring(1));
+            else nameRegexes.add(globToRegex(pattern));
+        }
+
+        namePatterns = combine(nameRegexes);
+        pathPatterns = combine(pathRegexes);
+    }
+
+    public static ExclusionMatcher compile(Collection<String> entries) {
+        return new ExclusionMatcher(entries);
+    }
+
+    /**
+     * Returns true if the path, relative to its root, is excluded
+     */
+    public boolean isExcluded(Path relativePath) {
+        if (relativePath.toString().isEmpty()) return false;
+
+        int nameCount = relativePath.getNameCount();
+        Node node = suffixes;
+        for (int i = nameCount - 1; i >= Math.max(0, nameCount - longestSuffix); i--) {
+            node = node.children.get(relativePath.getName(i).toString());
+            if (node == null) break;
+            if (node.terminal) return true;
+        }
+
+        String name = relativePath.getFileName().toString();
+        for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+            if (extensions.contains(name.substring(dot))) return true;
+        }
+
+        if (namePatterns != null && namePatterns.matcher(name).matches()) return true;
+        if (anchoredPaths.contains(relativePath)) return true;
+
+        return pathPatterns != null && pathPatterns.matcher(relativePath.toString().replace(File.separatorChar, '/')).matches();
+    }
+
+    private void addSuffix(Path entry) {
+        Node node = suffixes;
+        for (int i = entry.getNameCount() - 1; i >= 0; i--) {
+            node = node.children.computeIfAbsent(entry.getName(i).toString(), name -> new Node());
+        }
+
+        node.terminal = true;
+        longestSuffix = Math.max(longestSuffix, entry.getNameCount());
+    }
+
+    private static boolean isGlob(String pattern) {
+        return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0;
+    }
+
+    private static Pattern combine(List<String> regexes) {
+        if (regexes.isEmpty()) return null;
+
+        StringJoiner alternatives = new StringJoiner("|");
+        for (String regex : regexes) {
+            alternatives.add("(?:" + regex + ")");
+        }
+
+        return Pattern.compile(alternatives.toString());
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // "**/" matches zero or more leading directories
+                        i++;
+                        regex.append("(?:.*/)?");
+                    }
+                    else regex.append(".*");
+                }
+                else regex.append("[^/]*");
+            }
+            else if (c == '?') regex.append("[^/]");
+            else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                int end = glob.indexOf(']', i + 2);
+                String characterClass = glob.substring(i + 1, end).replace("\\", "\\\\");
+                if (characterClass.startsWith("!")) characterClass = "^" + characterClass.substring(1);
+
+                regex.append('[').append(characterClass).append(']');
+                i = end;
+            }
+            else {
+                if ("\\.[]{}()+-^$|".indexOf(c) >= 0) regex.append('\\');
+                regex.append(c);
+            }
+        }
+
+        return regex.toString();
+    }
+
+}
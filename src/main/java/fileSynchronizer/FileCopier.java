@@ -7,26 +7,32 @@ import java.util.Set;
 
 public class FileCopier extends SimpleFileVisitor<Path> {
 
-    private final Path destinationDir, sourceDir;
-    private final Set<Path> excludedPaths;
+    private final Path sourceRoot, destinationDir, sourceDir;
+    private final ExclusionMatcher exclusions;
     private final boolean verbose;
     private final String sourceName, destinationName;
+    private final SyncOptions options;
 
-    public FileCopier(Path sourceDir, Path destinationDir, Set<Path> excludedPaths, String sourceName, String destinationName, boolean verbose) {
+    public FileCopier(Path sourceDir, Path destinationDir, Set<String> excludedPaths, String sourceName, String destinationName, boolean verbose) {
+        this(sourceDir, sourceDir, destinationDir, ExclusionMatcher.compile(excludedPaths), sourceName, destinationName, verbose, new SyncOptions());
+    }
+
+    /**
+     * Copies sourceDir, which lies under sourceRoot, to destinationDir. Exclusions are matched against paths relative to sourceRoot
+     */
+    public FileCopier(Path sourceRoot, Path sourceDir, Path destinationDir, ExclusionMatcher exclusions, String sourceName, String destinationName, boolean verbose, SyncOptions options) {
+        this.sourceRoot = sourceRoot;
         this.sourceDir = sourceDir;
         this.destinationDir = destinationDir;
-        this.excludedPaths = excludedPaths;
+        this.exclusions = exclusions;
         this.sourceName = sourceName;
         this.destinationName = destinationName;
         this.verbose = verbose;
+        this.options = options;
     }
 
-    private boolean isExcludedPath(Path candidate) {
-        for (Path excluded : excludedPaths) {
-            if (candidate.endsWith(excluded)) return true;
-        }
-
-        return false;
+    boolean isExcludedPath(Path candidate) {
+        return exclusions.isExcluded(sourceRoot.relativize(candidate));
     }
 
     private void logCopy(Path pathToCopy) {
@@ -36,7 +42,15 @@ public class FileCopier extends SimpleFileVisitor<Path> {
         System.out.println("COPY: " + filePath + " from " + sourceName + " to " + destinationName);
     }
     
+    private void logDelta(Path copiedPath, long transferredBytes, long totalBytes) {
+        if (!verbose) return;
+
+        Path filePath = (copiedPath.equals(sourceDir)) ? copiedPath.getFileName() : sourceDir.relativize(copiedPath);
+        System.out.println("DELTA: " + filePath + " from " + sourceName + " to " + destinationName + " (" + transferredBytes + " of " + totalBytes + " bytes transferred)");
+    }
+
     private void logSkip(Path pathToSkip) {
+        options.getMetrics().excluded();
         if (!verbose) return;
         
         Path filePath = (pathToSkip.equals(sourceDir)) ? pathToSkip.getFileName() : sourceDir.relativize(pathToSkip);
@@ -50,6 +64,7 @@ public class FileCopier extends SimpleFileVisitor<Path> {
             return FileVisitResult.SKIP_SUBTREE;
         }
 
+        options.getRateLimiter().acquireOperation();
         Files.copy(path, destinationDir.resolve(sourceDir.relativize(path)), StandardCopyOption.REPLACE_EXISTING);
         logCopy(path);
         return FileVisitResult.CONTINUE;
@@ -62,7 +77,20 @@ public class FileCopier extends SimpleFileVisitor<Path> {
             return FileVisitResult.CONTINUE;
         }
 
-        Files.copy(path, destinationDir.resolve(sourceDir.relativize(path)), StandardCopyOption.REPLACE_EXISTING);
+        Path destination = destinationDir.resolve(sourceDir.relativize(path));
+        options.getRateLimiter().acquireOperation();
+        if (options.usesDeltaTransfer(basicFileAttributes.size(), destination)) {
+            long transferredBytes = new DeltaCopier(path, destination, basicFileAttributes.size()).copy();
+            // A delta is written in scattered blocks, so its bytes are paid for once it is done
+            options.getRateLimiter().acquireBytes(transferredBytes);
+            options.getMetrics().copiedFile(transferredBytes);
+            logDelta(path, transferredBytes, basicFileAttributes.size());
+            return FileVisitResult.CONTINUE;
+        }
+
+        // The engine keeps the source's timestamps so the copy is not mistaken for a new change on the destination
+        options.getCopyEngine().copy(path, destination, basicFileAttributes);
+        options.getMetrics().copiedFile(basicFileAttributes.size());
         logCopy(path);
         return FileVisitResult.CONTINUE;
     }
@@ -12,19 +12,35 @@ public class FileDeleter extends SimpleFileVisitor<Path> {
     private final boolean verbose;
     private final String rootNickname;
     private final Path rootPath;
+    private final RateLimiter rateLimiter;
+    private long deletedCount = 0;
 
     public FileDeleter(String rootNickname, Path rootPath, boolean verbose) {
+        this(rootNickname, rootPath, verbose, new RateLimiter());
+    }
+
+    /**
+     * Deletes no more entries per second than rateLimiter allows
+     */
+    public FileDeleter(String rootNickname, Path rootPath, boolean verbose, RateLimiter rateLimiter) {
         this.rootNickname = rootNickname;
         this.rootPath = rootPath;
         this.verbose = verbose;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public long getDeletedCount() {
+        return deletedCount;
     }
 
     private void logDeletion(Path filePath) {
+        deletedCount++;
         if (verbose) System.out.println("DELETE: " + rootNickname + " '" + rootPath.relativize(filePath) + "'");
     }
 
     @Override
     public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
+        rateLimiter.acquireOperation();
         Files.delete(path);
         logDeletion(path);
         return FileVisitResult.CONTINUE;
@@ -32,6 +48,7 @@ public class FileDeleter extends SimpleFileVisitor<Path> {
 
     @Override
     public FileVisitResult postVisitDirectory(Path path, IOException e) throws IOException {
+        rateLimiter.acquireOperation();
         Files.delete(path);
         logDeletion(path);
         return FileVisitResult.CONTINUE;
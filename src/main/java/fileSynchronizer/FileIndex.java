@@ -0,0 +1,233 @@
+package fileSynchronizer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact on-disk record of every entry seen under a root during the last sync (path, size, mtime, file key and type).
+ * The index lets a sync reuse the previous listing of any directory whose mtime has not changed, instead of reading
+ * the directory again. It is loaded with a memory-mapped read and rewritten at the end of each sync with the entries
+ * the sync saw, so unchanged parts of the tree carry over without being walked.
+ */
+public final class FileIndex {
+
+    private static final int MAGIC = 0x46534958; // "FSIX"
+    private static final int VERSION = 1;
+
+    // A directory listing is only trusted if the directory was last modified this long before the previous scan started.
+    // This guards against changes made within the same mtime tick as the previous listing
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    public record Entry(boolean directory, long size, long modifiedMillis, String fileKey) {
+
+        public static Entry of(BasicFileAttributes attributes) {
+            Object key = attributes.fileKey();
+            return new Entry(attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis(), (key == null) ? "" : key.toString());
+        }
+    }
+
+    private final Path indexFile;
+    private final long previousScanStartMillis, scanStartMillis;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Path, Set<String>> children = new ConcurrentHashMap<>();
+
+    private FileIndex(Path indexFile, long previousScanStartMillis) {
+        this.indexFile = indexFile;
+        this.previousScanStartMillis = previousScanStartMillis;
+        scanStartMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the index at indexFile. A missing or unreadable index yields an empty one, which makes the next sync list every directory
+     */
+    public static FileIndex load(Path indexFile) {
+        if (!Files.isRegularFile(indexFile)) return new FileIndex(indexFile, 0);
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) throw new IOException("Unrecognized index format");
+
+            FileIndex index = new FileIndex(indexFile, buffer.getLong());
+            int entryCount = buffer.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                Path relativePath = Path.of(readString(buffer));
+                boolean directory = buffer.get() == 1;
+                long size = buffer.getLong();
+                long modifiedMillis = buffer.getLong();
+                String fileKey = readString(buffer);
+                index.entries.put(relativePath, new Entry(directory, size, modifiedMillis, fileKey));
+
+                // Listings are stored in full, including excluded names, so a later change to the exclusions is still picked up
+                int childCount = buffer.getInt();
+                if (childCount < 0) continue;
+
+                Set<String> listing = ConcurrentHashMap.newKeySet(childCount);
+                for (int c = 0; c < childCount; c++) {
+                    listing.add(readString(buffer));
+                }
+                index.children.put(relativePath, listing);
+            }
+
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: Could not read index '" + indexFile + "'. Every directory will be listed again");
+            return new FileIndex(indexFile, 0);
+        }
+    }
+
+    public Entry get(Path relativePath) {
+        return entries.get(relativePath);
+    }
+
+    /**
+     * Records the attributes of the entry at relativePath and adds it to its parent's listing, if that listing is known
+     */
+    public void record(Path relativePath, BasicFileAttributes attributes) {
+        entries.put(relativePath, Entry.of(attributes));
+        if (relativePath.toString().isEmpty()) return;
+
+        Set<String> siblings = children.get(parentOf(relativePath));
+        if (siblings != null) siblings.add(relativePath.getFileName().toString());
+    }
+
+    /**
+     * Records the complete listing of the directory at relativePath. Children that are no longer present are forgotten
+     */
+    public void recordListing(Path relativePath, Collection<String> childNames) {
+        Set<String> listing = ConcurrentHashMap.newKeySet(childNames.size());
+        listing.addAll(childNames);
+        children.put(relativePath, listing);
+    }
+
+    /**
+     * Returns the names listed for the directory at relativePath during the previous sync, in no particular order, or
+     * null if the directory may have changed since and has to be listed again
+     */
+    public String[] unchangedListing(Path relativePath, BasicFileAttributes currentAttributes) {
+        Entry indexed = entries.get(relativePath);
+        Set<String> listing = children.get(relativePath);
+        if (indexed == null || listing == null || !indexed.directory()) return null;
+
+        long currentModified = currentAttributes.lastModifiedTime().toMillis();
+        if (currentModified != indexed.modifiedMillis() || currentModified >= previousScanStartMillis - RACY_WINDOW_MILLIS) return null;
+
+        return listing.toArray(String[]::new);
+    }
+
+    /**
+     * Returns the indexed entries below the directory at relativePath, not including relativePath itself
+     */
+    public Map<Path, Entry> subtree(Path relativePath) {
+        Map<Path, Entry> subtree = new HashMap<>();
+
+        Deque<Path> pending = new ArrayDeque<>();
+        for (String childName : children.getOrDefault(relativePath, Set.of())) {
+            pending.push(relativePath.resolve(childName));
+        }
+
+        while (!pending.isEmpty()) {
+            Path descendant = pending.pop();
+            Entry entry = entries.get(descendant);
+            if (entry == null) continue;
+
+            subtree.put(descendant, entry);
+            for (String childName : children.getOrDefault(descendant, Set.of())) {
+                pending.push(descendant.resolve(childName));
+            }
+        }
+
+        return subtree;
+    }
+
+    /**
+     * Forgets the entry at relativePath. Everything below it becomes unreachable and is dropped when the index is written
+     */
+    public void remove(Path relativePath) {
+        entries.remove(relativePath);
+        if (!relativePath.toString().isEmpty()) {
+            Set<String> siblings = children.get(parentOf(relativePath));
+            if (siblings != null) siblings.remove(relativePath.getFileName().toString());
+        }
+    }
+
+    /**
+     * Writes every entry reachable from the root to the index file. The file is replaced atomically so an interrupted
+     * write leaves the previous index intact
+     */
+    public void write() {
+        Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+
+        List<Path> reachable = new ArrayList<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.push(Path.of(""));
+        while (!pending.isEmpty()) {
+            Path relativePath = pending.pop();
+            if (!entries.containsKey(relativePath)) continue;
+
+            reachable.add(relativePath);
+            for (String childName : children.getOrDefault(relativePath, Set.of())) {
+                pending.push(relativePath.resolve(childName));
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(scanStartMillis);
+            out.writeInt(reachable.size());
+
+            for (Path relativePath : reachable) {
+                Entry entry = entries.get(relativePath);
+                writeString(out, relativePath.toString());
+                out.writeByte(entry.directory() ? 1 : 0);
+                out.writeLong(entry.size());
+                out.writeLong(entry.modifiedMillis());
+                writeString(out, entry.fileKey());
+
+                Set<String> listing = children.get(relativePath);
+                out.writeInt((listing == null) ? -1 : listing.size());
+                if (listing == null) continue;
+
+                for (String childName : listing) {
+                    writeString(out, childName);
+                }
+            }
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not write index '" + indexFile + "'");
+            return;
+        }
+
+        try {
+            Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not replace index '" + indexFile + "'");
+        }
+    }
+
+    private static Path parentOf(Path relativePath) {
+        Path parent = relativePath.getParent();
+        return (parent == null) ? Path.of("") : parent;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,50 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+
+public class FileIndexer extends SimpleFileVisitor<Path> {
+
+    private final FileIndex index;
+    private final Path rootPath;
+    private final ExclusionMatcher exclusions;
+
+    public FileIndexer(FileIndex index, Path rootPath) {
+        this(index, rootPath, ExclusionMatcher.compile(Set.of()));
+    }
+
+    public FileIndexer(FileIndex index, Path rootPath, ExclusionMatcher exclusions) {
+        this.index = index;
+        this.rootPath = rootPath;
+        this.exclusions = exclusions;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) {
+        index.record(rootPath.relativize(path), basicFileAttributes);
+
+        // Excluded directories are recorded without a listing, so they are listed again if they are ever included
+        if (exclusions.isExcluded(rootPath.relativize(path))) return FileVisitResult.SKIP_SUBTREE;
+
+        // The walk visits every child, so the listing is complete once the directory has been walked
+        index.recordListing(rootPath.relativize(path), Set.of());
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) {
+        index.record(rootPath.relativize(path), basicFileAttributes);
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException e) {
+        System.err.println("ERROR: Indexing failed: '" + path + "'");
+        return FileVisitResult.CONTINUE;
+    }
+
+}
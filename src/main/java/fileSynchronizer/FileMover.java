@@ -27,7 +27,9 @@ public class FileMover extends SimpleFileVisitor<Path> {
 
     @Override
     public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
-        Files.copy(path, destinationDir.resolve(sourceDir.relativize(path)), StandardCopyOption.COPY_ATTRIBUTES);
+        // The destination may already hold an earlier version of this directory, in which case both are merged
+        Path absoluteDestination = destinationDir.resolve(sourceDir.relativize(path));
+        if (!Files.isDirectory(absoluteDestination, LinkOption.NOFOLLOW_LINKS)) Files.copy(path, absoluteDestination, StandardCopyOption.COPY_ATTRIBUTES);
         logMove(path);
         return FileVisitResult.CONTINUE;
     }
@@ -36,6 +38,8 @@ public class FileMover extends SimpleFileVisitor<Path> {
     public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
         Path absoluteDestination = destinationDir.resolve(sourceDir.relativize(path));
 
+        // An earlier file at the destination is kept, and this one is put next to it
+        absoluteDestination = FileSyncRoot.unusedTrashPath(absoluteDestination);
         Files.move(path, absoluteDestination);
         logMove(path);
 
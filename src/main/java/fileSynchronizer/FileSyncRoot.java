@@ -4,35 +4,74 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 public final class FileSyncRoot {
-    private final Path root, syncTrash;
+    private final Path root, syncTrash, syncTombstones;
     private final File syncExclude, syncLog;
     private final long lastSyncMillis;
     private final String nickname, remoteNickname;
     private final boolean verbose;
+    private final FileIndex index;
+    private final SyncJournal journal;
+    private final SyncOptions options;
 
-    private Set<Path> excludedPaths;
+    private Set<String> excludedPaths;
+    private ExclusionMatcher exclusions;
+    private HashCache hashCache;
+
+    private final Object purgeLock = new Object();
+    private Thread trashPurge;
+
+    // Appended to an entry moved into the trash while the trash already holds one at the same path
+    static final String TRASHED_AGAIN_SUFFIX = ".sync_again-";
 
     public FileSyncRoot(String rootPath, String nickname, String remoteNickname, boolean verbose) {
+        this(rootPath, nickname, remoteNickname, verbose, new SyncOptions());
+    }
+
+    public FileSyncRoot(String rootPath, String nickname, String remoteNickname, boolean verbose, SyncOptions options) {
         root = Path.of(rootPath);
 
         this.verbose = verbose;
+        this.options = options;
 
         syncExclude = root.resolve(".sync_exclude").toFile();
         syncLog = root.resolve(".sync_log").toFile();
         syncTrash = root.resolve(".sync_trash");
+        syncTombstones = root.resolve(".sync_tombstones");
 
         this.nickname = nickname;
         this.remoteNickname = remoteNickname;
         lastSyncMillis = getLastSync();
+        index = FileIndex.load(root.resolve(".sync_index"));
+        journal = SyncJournal.load(root.resolve(".sync_journal"), options.getJournalSyncMillis());
 
         excludedPaths = readExcludedPathsList();
-        excludedPaths.add(Path.of(".sync_exclude"));
-        excludedPaths.add(Path.of(".sync_log"));
-        excludedPaths.add(Path.of(".sync_trash"));
+        excludedPaths.add(".sync_exclude");
+        excludedPaths.add(".sync_log");
+        excludedPaths.add(".sync_conflicts");
+        excludedPaths.add(".sync_trash");
+        excludedPaths.add(".sync_tombstones");
+        excludedPaths.add(".sync_index");
+        excludedPaths.add(".sync_index.tmp");
+        excludedPaths.add(".sync_hashes");
+        excludedPaths.add(".sync_hashes.tmp");
+        excludedPaths.add(".sync_journal");
+        excludedPaths.add("*.sync_partial");
+        excludedPaths.add("*.sync_partial.progress");
+        excludedPaths.add("*.sync_delta");
+        // A version store kept inside the root must not be synced along with it
+        if (options.getVersionStoreDirectory() != null && options.getVersionStoreDirectory().toAbsolutePath().startsWith(root.toAbsolutePath())) {
+            excludedPaths.add("/" + root.toAbsolutePath().relativize(options.getVersionStoreDirectory().toAbsolutePath()).toString().replace(File.separatorChar, '/'));
+        }
+        exclusions = ExclusionMatcher.compile(excludedPaths);
 
         // Clear any old trashed files before starting new sync
         clearTrash();
@@ -54,10 +93,30 @@ public final class FileSyncRoot {
         return syncTrash;
     }
 
-    public Set<Path> getExcludedPaths() {
+    public Set<String> getExcludedPaths() {
         return excludedPaths;
     }
 
+    public ExclusionMatcher getExclusions() {
+        return exclusions;
+    }
+
+    public FileIndex getIndex() {
+        return index;
+    }
+
+    public SyncJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Returns the content hash cache of this root, loading it on first use
+     */
+    public synchronized HashCache getHashCache() {
+        if (hashCache == null) hashCache = HashCache.load(root.resolve(".sync_hashes"));
+        return hashCache;
+    }
+
     public String getNickname() {
         return nickname;
     }
@@ -67,8 +126,8 @@ public final class FileSyncRoot {
             syncExclude.createNewFile();
 
             FileWriter exclusionWriter = new FileWriter(syncExclude);
-            for (Path excluded : excludedPaths) {
-                exclusionWriter.write(excluded.toString() + System.lineSeparator());
+            for (String excluded : excludedPaths) {
+                exclusionWriter.write(excluded + System.lineSeparator());
             }
             exclusionWriter.close();
         } catch (IOException ioE) {
@@ -77,13 +136,28 @@ public final class FileSyncRoot {
         }
     }
 
-    public void setExcludedPaths(Set<Path> excludedPaths) {
+    public void writeIndex() {
+        index.write();
+        synchronized (this) {
+            if (hashCache != null) hashCache.write();
+        }
+    }
+
+    public void setExcludedPaths(Set<String> excludedPaths, ExclusionMatcher exclusions) {
         this.excludedPaths = excludedPaths;
+        this.exclusions = exclusions;
     }
 
     public void setLastSync(long newLastSyncMillis) {
+        setLastSync(remoteNickname, newLastSyncMillis);
+    }
+
+    /**
+     * Records newLastSyncMillis as the last time this root was synced with the root nicknamed peerNickname
+     */
+    public void setLastSync(String peerNickname, long newLastSyncMillis) {
         List<String> syncRecords = new ArrayList<>();
-        syncRecords.add(remoteNickname + "," + newLastSyncMillis);
+        syncRecords.add(peerNickname + "," + newLastSyncMillis);
 
         try {
             if (!syncLog.createNewFile()) {
@@ -91,7 +165,7 @@ public final class FileSyncRoot {
 
                 while (logReader.hasNext()) {
                     String hostNameAndLastSync = logReader.nextLine();
-                    if (!hostNameAndLastSync.startsWith(remoteNickname + ",")) syncRecords.add(hostNameAndLastSync);
+                    if (!hostNameAndLastSync.startsWith(peerNickname + ",")) syncRecords.add(hostNameAndLastSync);
                 }
 
                 logReader.close();
@@ -111,57 +185,349 @@ public final class FileSyncRoot {
 
     public void trash(Path relativePath) {
         Path absolutePath = root.resolve(relativePath);
-        if (!absolutePath.toFile().exists()) return;
+
+        options.getRateLimiter().acquireOperation();
+        long startNanos = System.nanoTime();
+        index.remove(relativePath);
+        synchronized (this) {
+            if (hashCache != null) hashCache.remove(relativePath);
+        }
 
         try {
             Path parentDirInTrash = relativePath.getParent();
             if (parentDirInTrash != null) Files.createDirectories(syncTrash.resolve(parentDirInTrash));
-            Files.walkFileTree(absolutePath, new FileMover(absolutePath, syncTrash.resolve(relativePath), nickname, "trash", root, verbose));
+
+            // The trash lives in the root, so the whole subtree can usually be moved with one rename
+            if (!moveToTrash(relativePath)) Files.walkFileTree(absolutePath, new FileMover(absolutePath, trashDestination(relativePath), nickname, "trash", root, verbose));
         } catch (IOException ioE) {
             System.err.println("ERROR: Could not trash all the files at '" + absolutePath + "'. Exiting...");
             System.exit(1);
         }
+
+        options.getMetrics().trashedPath();
+        options.getMetrics().recordOperation(SyncMetrics.Operation.TRASH, startNanos);
     }
 
-    public void copyFromRemote(Path relativePath, Path remoteRoot) {
-        trash(relativePath);
+    /**
+     * Renames the entry at relativePath into the trash in one step. Returns false if the rename is not possible, for
+     * example because the trash already holds a directory to merge it into or the root spans several file systems
+     */
+    private boolean moveToTrash(Path relativePath) {
+        Path trashed;
+        synchronized (syncTrash) {
+            trashed = trashDestination(relativePath);
+            if (Files.exists(trashed, LinkOption.NOFOLLOW_LINKS)) return false;
 
+            try {
+                Files.move(root.resolve(relativePath), trashed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException nsfE) {
+                // Nothing to do if the entry is already gone, which saves checking for it up front
+                return !Files.exists(root.resolve(relativePath), LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ioE) {
+                return false;
+            }
+        }
+
+        if (verbose) System.out.println("MOVE: " + nickname + " '" + relativePath + "' to trash '" + syncTrash.relativize(trashed) + "'");
+        return true;
+    }
+
+    /**
+     * Returns where the entry at relativePath goes in the trash. A directory is merged into a directory already trashed
+     * at the same path. Anything else that would land on an earlier trashed entry, as it does when a daemon overwrites
+     * the same file twice, is put next to it with a numbered suffix, so the earlier version is kept as well
+     */
+    private Path trashDestination(Path relativePath) {
+        Path trashPath = syncTrash.resolve(relativePath);
+        if (Files.isDirectory(trashPath, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(root.resolve(relativePath), LinkOption.NOFOLLOW_LINKS)) return trashPath;
+        return unusedTrashPath(trashPath);
+    }
+
+    /**
+     * Returns trashPath if nothing is there yet, or else the first of trashPath.sync_again-1, -2 and so on that is free
+     */
+    static Path unusedTrashPath(Path trashPath) {
+        Path unused = trashPath;
+        for (int count = 1; Files.exists(unused, LinkOption.NOFOLLOW_LINKS); count++) {
+            unused = trashPath.resolveSibling(trashPath.getFileName() + TRASHED_AGAIN_SUFFIX + count);
+        }
+        return unused;
+    }
+
+    /**
+     * Returns relativePath with the suffix of every entry that was trashed again removed, which is the path the entry
+     * had in the root
+     */
+    static Path withoutTrashedAgainSuffixes(Path relativePath) {
+        Path original = null;
+        for (Path name : relativePath) {
+            String component = name.toString();
+            int suffixStart = component.lastIndexOf(TRASHED_AGAIN_SUFFIX);
+            if (suffixStart > 0 && component.substring(suffixStart + TRASHED_AGAIN_SUFFIX.length()).chars().allMatch(Character::isDigit)) {
+                component = component.substring(0, suffixStart);
+            }
+            original = (original == null) ? Path.of(component) : original.resolve(component);
+        }
+        return (original == null) ? relativePath : original;
+    }
+
+    public void copyFromRemote(Path relativePath, Path remoteRoot) {
+        BasicFileAttributes sourceAttributes;
         try {
-            Files.walkFileTree(remoteRoot.resolve(relativePath), new FileCopier(remoteRoot.resolve(relativePath), root.resolve(relativePath), excludedPaths, remoteNickname, nickname, verbose));
+            sourceAttributes = Files.readAttributes(remoteRoot.resolve(relativePath), BasicFileAttributes.class);
         } catch (IOException ioE) {
             System.err.println("ERROR: Could not copy all the files from '" + remoteRoot.resolve(relativePath) + "'. Exiting...");
             System.exit(1);
+            return;
+        }
+
+        copyFromRemote(relativePath, remoteRoot, sourceAttributes, Files.exists(root.resolve(relativePath), LinkOption.NOFOLLOW_LINKS));
+    }
+
+    /**
+     * Copies relativePath from remoteRoot, using the attributes of the source and the knowledge of whether the
+     * destination exists that the caller already has, instead of reading them again
+     */
+    public void copyFromRemote(Path relativePath, Path remoteRoot, BasicFileAttributes sourceAttributes, boolean destinationExists) {
+        copyFromRemote(relativePath, remoteRoot, remoteNickname, sourceAttributes, destinationExists);
+    }
+
+    /**
+     * Copies relativePath from the root at remoteRoot nicknamed sourceNickname, which need not be this root's remote
+     */
+    public void copyFromRemote(Path relativePath, Path remoteRoot, String sourceNickname, BasicFileAttributes sourceAttributes, boolean destinationExists) {
+        Path source = remoteRoot.resolve(relativePath);
+        Path destination = root.resolve(relativePath);
+
+        // A file updated with a delta transfer needs its old version in place, so it cannot be trashed first
+        if (destinationExists && !options.usesDeltaTransfer(sourceAttributes.size(), destination)) trash(relativePath);
+
+        long startNanos = System.nanoTime();
+        try {
+            FileCopier copier = new FileCopier(remoteRoot, source, destination, exclusions, sourceNickname, nickname, verbose, options);
+
+            if (sourceAttributes.isDirectory()) {
+                Files.walkFileTree(source, copier);
+                Files.walkFileTree(destination, new FileIndexer(index, root));
+            } else {
+                // A single file needs no walk, which would only read its attributes again
+                copier.visitFile(source, sourceAttributes);
+                index.record(relativePath, Files.readAttributes(destination, BasicFileAttributes.class));
+            }
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not copy all the files from '" + source + "'. Exiting...");
+            System.exit(1);
+        }
+
+        options.getMetrics().recordOperation(SyncMetrics.Operation.COPY, startNanos);
+    }
+
+    /**
+     * Renames the entry at fromRelativePath to toRelativePath within this root, creating missing parent directories.
+     * Returns false if the entry could not be moved, in which case nothing has changed
+     */
+    public boolean move(Path fromRelativePath, Path toRelativePath) {
+        Path source = root.resolve(fromRelativePath);
+        Path destination = root.resolve(toRelativePath);
+
+        options.getRateLimiter().acquireOperation();
+        try {
+            Files.createDirectories(destination.getParent());
+            Files.move(source, destination);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not move '" + source + "' to '" + destination + "'");
+            return false;
+        }
+
+        index.remove(fromRelativePath);
+        synchronized (this) {
+            if (hashCache != null) hashCache.remove(fromRelativePath);
+        }
+
+        options.getMetrics().movedPath();
+        if (verbose) System.out.println("MOVE: " + nickname + " '" + fromRelativePath + "' to " + nickname + " '" + toRelativePath + "'");
+        return true;
+    }
+
+    /**
+     * Records every entry of the subtree at relativePath in the index, so the next sync can tell if any of it moved
+     */
+    public void indexSubtree(Path relativePath) {
+        try {
+            Files.walkFileTree(root.resolve(relativePath), new FileIndexer(index, root, exclusions));
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not index '" + root.resolve(relativePath) + "'");
         }
     }
 
+    /**
+     * Empties the trash. The old trash is renamed to a tombstone in .sync_tombstones and a fresh, empty trash is created
+     * right away, so the caller never waits for the deletion. Tombstones are deleted by a low-priority background thread
+     */
     public void clearTrash() {
-        if (syncTrash.toFile().exists()) {
-            // Delete any pre-existing trashed files before creating the directory again
-            try {
-                Files.walkFileTree(syncTrash, new FileDeleter(nickname, root, false));
-            } catch (IOException ioE) {
-                System.err.println("ERROR: Clearing trash in '" + nickname + "' failed. Exiting...");
-                System.exit(1);
+        long startNanos = System.nanoTime();
+
+        String[] trashedNames = syncTrash.toFile().list();
+        if (trashedNames != null && trashedNames.length > 0) {
+            synchronized (purgeLock) {
+                try {
+                    Files.createDirectories(syncTombstones);
+                    Files.move(syncTrash, newTombstone(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ioE) {
+                    // Renaming is not possible, so keep the old versions and delete the old trash in place before
+                    // continuing. If the versions cannot be kept, the trash is left for the next run to try again
+                    if (storeVersions(syncTrash, String.valueOf(System.currentTimeMillis()))) deleteTree(syncTrash);
+                }
             }
+
+            startTrashPurge();
         }
 
         try {
-            Files.createDirectory(syncTrash);
+            if (!Files.isDirectory(syncTrash)) Files.createDirectory(syncTrash);
         } catch (IOException ioE) {
             System.err.println("ERROR: Creating trash directory in '" + nickname + "' failed. Exiting...");
             System.exit(1);
         }
+
+        // Tombstones left behind by an earlier run that was stopped before its purge finished
+        if (Files.isDirectory(syncTombstones)) startTrashPurge();
+
+        options.getMetrics().recordOperation(SyncMetrics.Operation.CLEAR_TRASH, startNanos);
+    }
+
+    /**
+     * Waits until every tombstone has been deleted
+     */
+    public void awaitTrashPurge() {
+        Thread purge;
+        synchronized (purgeLock) {
+            purge = trashPurge;
+        }
+        if (purge == null) return;
+
+        try {
+            purge.join();
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Path newTombstone() {
+        Path tombstone = syncTombstones.resolve(String.valueOf(System.currentTimeMillis()));
+        for (int suffix = 1; Files.exists(tombstone); suffix++) {
+            tombstone = syncTombstones.resolve(System.currentTimeMillis() + "-" + suffix);
+        }
+
+        return tombstone;
+    }
+
+    private void startTrashPurge() {
+        synchronized (purgeLock) {
+            // A running purge lists the tombstones again before it finishes, so it also picks up new ones
+            if (trashPurge != null) return;
+
+            trashPurge = new Thread(this::purgeTombstones, "filesync-trash-purge-" + nickname);
+            trashPurge.setPriority(Thread.MIN_PRIORITY);
+            trashPurge.start();
+        }
     }
 
-    private Set<Path> readExcludedPathsList() {
-        Set<Path> excludedPaths = new HashSet<>();
+    private void purgeTombstones() {
+        long deletedCount = 0;
+        if (verbose) System.out.println("PURGE: Deleting old trash of " + nickname + " in the background");
+
+        while (true) {
+            String[] tombstones;
+            synchronized (purgeLock) {
+                tombstones = syncTombstones.toFile().list();
+                if (tombstones == null || tombstones.length == 0) {
+                    try {
+                        Files.deleteIfExists(syncTombstones);
+                    } catch (IOException ioE) {
+                        System.err.println("ERROR: Could not delete '" + syncTombstones + "'");
+                    }
+
+                    trashPurge = null;
+                    break;
+                }
+            }
+
+            boolean purgedAny = false;
+            for (String tombstone : tombstones) {
+                // Tombstones are named after the time the trash was cleared, with a suffix if several were cleared at once
+                if (!storeVersions(syncTombstones.resolve(tombstone), tombstone.split("-")[0])) continue;
+
+                deletedCount += deleteTree(syncTombstones.resolve(tombstone));
+                purgedAny = true;
+                if (verbose) System.out.println("PURGE: Deleted " + deletedCount + " old trashed entries of " + nickname);
+            }
+
+            // Tombstones that could not be stored are kept, so the next purge can try again
+            if (!purgedAny) {
+                synchronized (purgeLock) {
+                    trashPurge = null;
+                }
+                break;
+            }
+        }
+
+        if (verbose) System.out.println("PURGE: Old trash of " + nickname + " deleted");
+    }
+
+    /**
+     * Stores the files in trash, cleared at clearedMillis, as old versions if a version store is configured. Returns
+     * false if they could not be stored, in which case the trash must not be deleted
+     */
+    private boolean storeVersions(Path trash, String clearedMillis) {
+        VersionHistory history = options.getVersionHistory();
+        if (history == null) return true;
+
+        long newBytes;
+        try {
+            newBytes = history.storeGeneration(trash, nickname, Long.parseLong(clearedMillis));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("ERROR: Could not keep the old versions in '" + trash + "'. They will be kept in the trash until the next sync");
+            return false;
+        }
+        if (verbose) System.out.println("VERSIONS: Kept old versions of " + nickname + " in '" + history.getDirectory() + "' (" + newBytes + " new bytes)");
+
+        // The generation is stored either way, so a failed prune is left for the next one
+        try {
+            int prunedCount = history.prune();
+            if (verbose && prunedCount > 0) System.out.println("VERSIONS: Removed " + prunedCount + " expired generations from '" + history.getDirectory() + "'");
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not remove expired generations from '" + history.getDirectory() + "'");
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the tree at absolutePath and returns the number of entries deleted
+     */
+    private long deleteTree(Path absolutePath) {
+        FileDeleter deleter = new FileDeleter(nickname, root, false, options.getRateLimiter());
+
+        try {
+            Files.walkFileTree(absolutePath, deleter);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Clearing trash in '" + nickname + "' failed. Exiting...");
+            System.exit(1);
+        }
+
+        return deleter.getDeletedCount();
+    }
+
+    private Set<String> readExcludedPathsList() {
+        Set<String> excludedPaths = new HashSet<>();
 
         try {
             if (syncExclude.createNewFile()) return excludedPaths;
 
             Scanner exclusionReader = new Scanner(syncExclude);
             while (exclusionReader.hasNext()) {
-                excludedPaths.add(Path.of(exclusionReader.nextLine()));
+                String entry = migrateAbsoluteEntry(exclusionReader.nextLine());
+                if (entry != null) excludedPaths.add(entry);
             }
             exclusionReader.close();
         } catch (IOException ioE) {
@@ -172,6 +538,58 @@ public final class FileSyncRoot {
         return excludedPaths;
     }
 
+    /**
+     * Entries used to be matched against absolute paths, so older .sync_exclude files may hold absolute paths, which
+     * would now be read as patterns anchored at the root and never match. An absolute entry inside this root is
+     * rewritten relative to it. One that names an existing path elsewhere was written for another root, which rewrites
+     * it itself, so it is dropped here. Returns the entry to keep, or null to drop it
+     */
+    private String migrateAbsoluteEntry(String entry) {
+        if (!entry.startsWith("/") && !entry.startsWith(File.separator)) return entry;
+
+        Path absoluteEntry;
+        try {
+            absoluteEntry = Path.of(entry);
+        } catch (InvalidPathException ipE) {
+            return entry; // A pattern, which cannot be an old absolute path
+        }
+        if (!absoluteEntry.isAbsolute() || absoluteEntry.getNameCount() < 2) return entry;
+
+        Path absoluteRoot = root.toAbsolutePath();
+        if (absoluteEntry.startsWith(absoluteRoot) && !absoluteEntry.equals(absoluteRoot)) {
+            String migrated = "/" + absoluteRoot.relativize(absoluteEntry).toString().replace(File.separatorChar, '/');
+            System.out.println("EXCLUDE: Rewrote absolute entry '" + entry + "' in '" + syncExclude.toPath() + "' as '" + migrated + "'");
+            return migrated;
+        }
+
+        if (Files.exists(absoluteEntry, LinkOption.NOFOLLOW_LINKS)) {
+            System.out.println("EXCLUDE: Dropped absolute entry '" + entry + "' from '" + syncExclude.toPath() + "', since it lies outside " + nickname);
+            return null;
+        }
+
+        System.out.println("WARNING: Entry '" + entry + "' in '" + syncExclude.toPath() + "' is matched relative to " + nickname + ". If it is an absolute path from an older version, replace it with a path relative to the directory");
+        return entry;
+    }
+
+    /**
+     * Returns the last sync time with every root this root has been synced with, keyed by nickname. Together these
+     * form the root's version vector: a change made after the time recorded for a peer has not reached that peer yet
+     */
+    public Map<String, Long> getVersionVector() {
+        Map<String, Long> lastSyncs = new HashMap<>();
+
+        try (Scanner logReader = new Scanner(syncLog)) {
+            while (logReader.hasNext()) {
+                String[] hostNameAndLastSync = logReader.nextLine().split(",");
+                if (hostNameAndLastSync.length == 2) lastSyncs.put(hostNameAndLastSync[0], Long.parseLong(hostNameAndLastSync[1]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // No sync history, so every file in this root counts as changed
+        }
+
+        return lastSyncs;
+    }
+
     private long getLastSync() {
         try {
             Scanner logReader = new Scanner(syncLog);
@@ -2,41 +2,59 @@ package fileSynchronizer;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 public class FileSynchronizer {
 
     private final DateTimeFormatter timestampFormatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT);
-    private final Set<Path> excludedPaths;
-    private final long lastSyncMillis;
+    private final Set<String> excludedPaths;
+    private final ExclusionMatcher exclusions;
+    private long lastSyncMillis;
     private final FileSyncRoot localRoot, remoteRoot;
     private final boolean verbose;
     private final BufferedReader userInputReader;
+    private final SyncOptions options;
+    private final ConflictPolicy conflictPolicy;
 
     public FileSynchronizer(String localRootPath, String remoteRootPath, String localNickname, String remoteNickname, InputStream userInput, boolean verbose) {
+        this(localRootPath, remoteRootPath, localNickname, remoteNickname, userInput, verbose, new SyncOptions());
+    }
+
+    public FileSynchronizer(String localRootPath, String remoteRootPath, String localNickname, String remoteNickname, InputStream userInput, boolean verbose, SyncOptions options) {
         this.verbose = verbose;
+        this.options = options;
         userInputReader = new BufferedReader(new InputStreamReader(userInput));
 
-        localRoot = new FileSyncRoot(localRootPath, localNickname, remoteNickname, verbose);
-        remoteRoot = new FileSyncRoot(remoteRootPath, remoteNickname, localNickname, verbose);
+        localRoot = new FileSyncRoot(localRootPath, localNickname, remoteNickname, verbose, options);
+        remoteRoot = new FileSyncRoot(remoteRootPath, remoteNickname, localNickname, verbose, options);
 
         // Merge excluded paths from both roots
         excludedPaths = localRoot.getExcludedPaths();
         excludedPaths.addAll(remoteRoot.getExcludedPaths());
 
-        localRoot.setExcludedPaths(excludedPaths);
-        remoteRoot.setExcludedPaths(excludedPaths);
+        // Compile the merged list once, so the comparator and both roots share one matcher
+        exclusions = ExclusionMatcher.compile(excludedPaths);
+        localRoot.setExcludedPaths(excludedPaths, exclusions);
+        remoteRoot.setExcludedPaths(excludedPaths, exclusions);
+
+        // Rules of the local root take precedence over those of the remote root
+        conflictPolicy = new ConflictPolicy(options.getDefaultConflictResolution());
+        conflictPolicy.load(localRoot.resolve(Path.of(".sync_conflicts")));
+        conflictPolicy.load(remoteRoot.resolve(Path.of(".sync_conflicts")));
 
         // Get last sync time
         lastSyncMillis = Math.max(localRoot.getLastSyncMillis(), remoteRoot.getLastSyncMillis());
+
+        for (FileSyncRoot root : List.of(localRoot, remoteRoot)) {
+            SyncJournal journal = root.getJournal();
+            if (journal.wasInterrupted()) System.out.println("The last sync into " + root.getNickname() + " was interrupted after " + journal.getCompletedBeforeInterruption() + " operations. Resuming with " + journal.getInterruptedCopies().size() + " unfinished copies");
+        }
     }
 
     public void synchronizeFileTrees() {
@@ -48,20 +66,82 @@ public class FileSynchronizer {
 
             if (response.equalsIgnoreCase("1")) ;
             else if (response.equalsIgnoreCase("2")) {
-               closeRoots();
+               closeRoots(System.currentTimeMillis());
                return;
             }
             else System.exit(1);
         }
 
-        // Compare file trees in a breadth-first fashion and collect paths of conflicting files
-        Set<Path> conflicts = syncFileTrees(Path.of(""));
+        // Compare file trees in parallel and collect paths of conflicting files in sorted order
+        // Non-conflicting changes are transferred by the pipeline while the comparison is still running
+        TransferPipeline pipeline = newTransferPipeline();
+        TreeComparator comparator = new TreeComparator(localRoot, remoteRoot, exclusions, lastSyncMillis, options, pipeline, verbose);
+        Set<Path> conflicts = comparator.compare(List.of(Path.of("")));
+        pipeline.awaitCompletion();
 
+        finishSync(conflicts, pipeline, System.currentTimeMillis());
+    }
+
+    /**
+     * Compares both roots without changing either of them and returns every change a sync would make.
+     * Conflicts covered by a policy are planned as copies. The rest are listed in the plan as conflicts
+     */
+    public SyncPlan plan() {
+        SyncPlan plan = new SyncPlan(localRoot, remoteRoot, lastSyncMillis);
+        TreeComparator comparator = new TreeComparator(localRoot, remoteRoot, exclusions, lastSyncMillis, options, plan, verbose);
+        plan.addConflicts(resolveByPolicy(comparator.compare(List.of(Path.of(""))), plan));
+        writeMetrics();
+
+        return plan;
+    }
+
+    /**
+     * Carries out a plan made by {@link #plan()}, then resolves its conflicts and records the sync as usual.
+     * Copies whose source has disappeared since the plan was made are skipped. A moved subtree may also have changed
+     * inside, which the plan could not see, so it is compared again once the plan has run
+     */
+    public void executePlan(SyncPlan plan) {
+        if (plan.getLastSyncMillis() != lastSyncMillis) {
+            System.err.println("ERROR: '" + localRoot.getNickname() + "' and '" + remoteRoot.getNickname() + "' have been synced since the plan was made. Exiting...");
+            System.exit(1);
+        }
+
+        TransferPipeline pipeline = newTransferPipeline();
+        List<Path> movedPaths = new ArrayList<>();
+        for (SyncTask task : plan.getTasks()) {
+            if (task.type() == SyncTask.Type.MOVE) {
+                // Later tasks may refer to the new path, so everything before a move finishes first and the move is made right away
+                pipeline.awaitCompletion();
+                task.execute();
+                if (Files.exists(task.target().resolve(task.movedTo()), LinkOption.NOFOLLOW_LINKS)) movedPaths.add(task.movedTo());
+            }
+            else if (task.type() == SyncTask.Type.COPY && !Files.exists(task.source().resolve(task.relativePath()), LinkOption.NOFOLLOW_LINKS)) {
+                if (verbose) System.out.println("SKIP: '" + task.relativePath() + "' no longer exists in " + task.source().getNickname());
+            }
+            else pipeline.submit(task);
+        }
+        pipeline.awaitCompletion();
+
+        Set<Path> conflicts = new TreeSet<>(plan.getConflicts());
+        if (!movedPaths.isEmpty()) {
+            conflicts.addAll(new TreeComparator(localRoot, remoteRoot, exclusions, lastSyncMillis, options, pipeline, verbose).compareMoved(movedPaths));
+            pipeline.awaitCompletion();
+        }
+
+        // Anything modified after planning started is not in the plan, so the next sync has to treat it as changed
+        finishSync(conflicts, pipeline, plan.getCreatedMillis());
+    }
+
+    /**
+     * Resolves conflicts, asks about clearing the trash and records the sync as having happened at syncTimeMillis
+     */
+    private void finishSync(Set<Path> conflicts, TransferPipeline pipeline, long syncTimeMillis) {
         boolean takeAllLocal = false;
         boolean takeAllRemote = false;
+        long conflictResolutionStartNanos = System.nanoTime();
 
-        // Resolve conflicts manually
-        for (Path conflict : conflicts) {
+        // Resolve conflicts covered by a policy in one pass, then ask about the rest
+        for (Path conflict : resolveByPolicy(conflicts, pipeline)) {
             ZonedDateTime localModified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(localRoot.resolve(conflict).toFile().lastModified()), ZoneId.systemDefault());
             ZonedDateTime remoteModified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(remoteRoot.resolve(conflict).toFile().lastModified()), ZoneId.systemDefault());
 
@@ -85,10 +165,13 @@ public class FileSynchronizer {
             }
 
 
-            if (takeAllLocal || decision.equalsIgnoreCase("1")) remoteRoot.copyFromRemote(conflict, localRoot.getRoot());
-            else if (takeAllRemote || decision.equalsIgnoreCase("2")) localRoot.copyFromRemote(conflict, remoteRoot.getRoot());
+            if (takeAllLocal || decision.equalsIgnoreCase("1")) pipeline.submit(SyncTask.copy(conflict, localRoot, remoteRoot, localRoot.resolve(conflict).toFile().length()));
+            else if (takeAllRemote || decision.equalsIgnoreCase("2")) pipeline.submit(SyncTask.copy(conflict, remoteRoot, localRoot, remoteRoot.resolve(conflict).toFile().length()));
         }
 
+        pipeline.shutdown();
+        options.getMetrics().recordPhase(SyncMetrics.Phase.CONFLICT_RESOLUTION, conflictResolutionStartNanos);
+
         // Print all trashed file names and ask user if they want to delete them or not
         if (localRoot.getSyncTrash().toFile().list().length != 0 || remoteRoot.getSyncTrash().toFile().list().length != 0) {
             System.out.println(System.lineSeparator() + "All trashed files:");
@@ -110,65 +193,165 @@ public class FileSynchronizer {
             else System.out.println("No trashed files will be deleted");
         }
 
-        closeRoots();
+        closeRoots(syncTimeMillis);
     }
 
-    private void closeRoots() {
-        // Export excluded paths to .sync_exclude
-        localRoot.writeExcludedPathsList();
-        remoteRoot.writeExcludedPathsList();
+    public FileSyncRoot getLocalRoot() {
+        return localRoot;
+    }
 
-        // Set new last sync records
-        long newSyncTimeMillis = System.currentTimeMillis();
-        localRoot.setLastSync(newSyncTimeMillis);
-        remoteRoot.setLastSync(newSyncTimeMillis);
+    public FileSyncRoot getRemoteRoot() {
+        return remoteRoot;
     }
 
-    private long getFileCreationTime(Path absolutePath) {
-        try {
-            BasicFileAttributes fileAttrs = Files.readAttributes(absolutePath, BasicFileAttributes.class);
-            return fileAttrs.creationTime().toMillis();
-        } catch (IOException ioE) {
-            System.out.println("ERROR: Could not get file creation time of '" + absolutePath + "'");
-            // If the file creation time cannot be ascertained, err on the side of caution and return max long value so no files are erroneously deleted
-            return Long.MAX_VALUE;
-        }
+    public Set<String> getExcludedPaths() {
+        return excludedPaths;
     }
 
-    private Set<Path> syncFileTrees(Path relativePath) {
-        File localFile = localRoot.resolve(relativePath).toFile();
-        File remoteFile = remoteRoot.resolve(relativePath).toFile();
+    public ExclusionMatcher getExclusions() {
+        return exclusions;
+    }
 
-        boolean localExists = localFile.exists();
-        boolean remoteExists = remoteFile.exists();
+    public long getLastSyncMillis() {
+        return lastSyncMillis;
+    }
 
-        Set<Path> conflicts = new HashSet<>();
+    /**
+     * Syncs only the given subtrees, treating anything modified after sinceMillis as changed.
+     * Conflicts are returned to the caller instead of being resolved
+     */
+    public SortedSet<Path> synchronizePaths(Collection<Path> relativePaths, long sinceMillis) {
+        TransferPipeline pipeline = newTransferPipeline();
+        TreeComparator comparator = new TreeComparator(localRoot, remoteRoot, exclusions, sinceMillis, options, pipeline, verbose);
+        SortedSet<Path> conflicts = resolveByPolicy(comparator.compare(relativePaths), pipeline);
+        pipeline.shutdown();
+        writeMetrics();
+
+        return conflicts;
+    }
+
+    /**
+     * Resolves every conflict whose policy does not ask the user, and returns the ones that are left
+     */
+    private SortedSet<Path> resolveByPolicy(Collection<Path> conflicts, TaskSink pipeline) {
+        SortedSet<Path> unresolved = new TreeSet<>();
+
+        for (Path conflict : conflicts) {
+            ConflictPolicy.Resolution resolution = conflictPolicy.resolutionFor(conflict);
 
-        if (localExists && remoteExists) {
-            if (localFile.isDirectory() && remoteFile.isDirectory()) {
-                for (Path filename : uniqueNonExcludedChildNames(localFile, remoteFile)) {
-                    conflicts.addAll(syncFileTrees(relativePath.resolve(filename)));
-                }
+            if (resolution.strategy() == ConflictPolicy.Strategy.KEEP_BOTH) {
+                if (!keepBoth(conflict, pipeline)) unresolved.add(conflict);
+                continue;
             }
-            else if (localFile.isFile() && remoteFile.isFile()) {
-                long localModified = localFile.lastModified();
-                long remoteModified = remoteFile.lastModified();
 
-                if (localModified > lastSyncMillis && remoteModified > lastSyncMillis) return Set.of(relativePath); // Case: both files modified since last sync. Conflict
-                else if (localModified > lastSyncMillis) remoteRoot.copyFromRemote(relativePath, localRoot.getRoot());
-                else if (remoteModified > lastSyncMillis) localRoot.copyFromRemote(relativePath, remoteRoot.getRoot());
+            FileSyncRoot winner = winnerOf(conflict, resolution);
+            if (winner == null) {
+                unresolved.add(conflict);
+                continue;
             }
-            else {
-                System.err.println("ERROR: '" +  localFile.getPath() + "' AND '" + remoteFile.getPath() + "' are not the same type. Exiting...");
-                System.exit(1);
+
+            FileSyncRoot loser = (winner == localRoot) ? remoteRoot : localRoot;
+            if (verbose) System.out.println("RESOLVE: '" + conflict + "' taken from " + winner.getNickname() + " (" + resolution + ")");
+            pipeline.submit(SyncTask.copy(conflict, winner, loser, winner.resolve(conflict).toFile().length()));
+        }
+
+        return unresolved;
+    }
+
+    /**
+     * Returns the root whose version of conflict wins under resolution, or null if the user has to decide
+     */
+    private FileSyncRoot winnerOf(Path conflict, ConflictPolicy.Resolution resolution) {
+        File localFile = localRoot.resolve(conflict).toFile();
+        File remoteFile = remoteRoot.resolve(conflict).toFile();
+
+        return switch (resolution.strategy()) {
+            case ASK, KEEP_BOTH -> null;
+            case NEWEST -> newer(localFile, remoteFile);
+            case LARGEST -> (localFile.length() == remoteFile.length()) ? newer(localFile, remoteFile) : (localFile.length() > remoteFile.length()) ? localRoot : remoteRoot;
+            case PREFER -> {
+                if (resolution.preferredNickname().equals(localRoot.getNickname())) yield localRoot;
+                if (resolution.preferredNickname().equals(remoteRoot.getNickname())) yield remoteRoot;
+
+                System.err.println("ERROR: No directory is nicknamed '" + resolution.preferredNickname() + "'. Asking about '" + conflict + "' instead");
+                yield null;
             }
+        };
+    }
+
+    private FileSyncRoot newer(File localFile, File remoteFile) {
+        if (localFile.lastModified() == remoteFile.lastModified()) return null;
+        return (localFile.lastModified() > remoteFile.lastModified()) ? localRoot : remoteRoot;
+    }
+
+    /**
+     * Renames the remote version of conflict to a conflict copy and syncs both files, so each root ends up with both versions
+     */
+    private boolean keepBoth(Path conflict, TaskSink pipeline) {
+        Path conflictCopy = conflictCopyPath(conflict, remoteRoot.getNickname());
+        long remoteBytes = remoteRoot.resolve(conflict).toFile().length();
+        if (!pipeline.move(remoteRoot, conflict, conflictCopy)) return false;
+
+        if (verbose) System.out.println("RESOLVE: '" + conflict + "' kept from both, " + remoteRoot.getNickname() + " version renamed to '" + conflictCopy + "'");
+        pipeline.submit(SyncTask.copy(conflict, localRoot, remoteRoot, localRoot.resolve(conflict).toFile().length()));
+        pipeline.submit(SyncTask.copy(conflictCopy, remoteRoot, localRoot, remoteBytes));
+        return true;
+    }
+
+    /**
+     * Returns "dir/name.nickname-conflict.ext", numbered if that path is already taken in either root
+     */
+    private Path conflictCopyPath(Path conflict, String nickname) {
+        String name = conflict.getFileName().toString();
+        int extensionStart = name.lastIndexOf('.');
+        String stem = (extensionStart > 0) ? name.substring(0, extensionStart) : name;
+        String extension = (extensionStart > 0) ? name.substring(extensionStart) : "";
+
+        Path conflictCopy = conflict.resolveSibling(stem + "." + nickname + "-conflict" + extension);
+        for (int number = 2; Files.exists(localRoot.resolve(conflictCopy)) || Files.exists(remoteRoot.resolve(conflictCopy)); number++) {
+            conflictCopy = conflict.resolveSibling(stem + "." + nickname + "-conflict-" + number + extension);
         }
-        else if (localExists && getFileCreationTime(localFile.toPath()) > lastSyncMillis) remoteRoot.copyFromRemote(relativePath, localRoot.getRoot());
-        else if (remoteExists && getFileCreationTime(remoteFile.toPath()) > lastSyncMillis) localRoot.copyFromRemote(relativePath, remoteRoot.getRoot());
-        else if (!localExists) remoteRoot.trash(relativePath);
-        else localRoot.trash(relativePath);
 
-        return conflicts;
+        return conflictCopy;
+    }
+
+    private TransferPipeline newTransferPipeline() {
+        return new TransferPipeline(options.getTransferThreads(), options.getMaxQueuedTransfers(), options.getMaxBytesInFlight());
+    }
+
+    private void closeRoots(long syncTimeMillis) {
+        recordSync(syncTimeMillis);
+
+        // Old trash is deleted in the background while the sync runs. Finish it before returning
+        localRoot.awaitTrashPurge();
+        remoteRoot.awaitTrashPurge();
+        writeMetrics();
+    }
+
+    private void writeMetrics() {
+        if (options.getMetricsFile() != null) options.getMetrics().writeSummary(options.getMetricsFile());
+    }
+
+    /**
+     * Persists the state of both roots and records syncTimeMillis as the time of their last sync
+     */
+    public void recordSync(long syncTimeMillis) {
+        // Export excluded paths to .sync_exclude
+        localRoot.writeExcludedPathsList();
+        remoteRoot.writeExcludedPathsList();
+
+        // Persist what this sync saw so the next one can skip unchanged directories
+        localRoot.writeIndex();
+        remoteRoot.writeIndex();
+
+        // Set new last sync records
+        localRoot.setLastSync(syncTimeMillis);
+        remoteRoot.setLastSync(syncTimeMillis);
+        lastSyncMillis = syncTimeMillis;
+
+        // Everything the journals recorded is now covered by the sync record
+        localRoot.getJournal().finish();
+        remoteRoot.getJournal().finish();
     }
 
     private String getUserInput() {
@@ -182,21 +365,4 @@ public class FileSynchronizer {
         return "";
     }
 
-    private boolean isExcludedPath(Path candidate) {
-        for (Path excluded : excludedPaths) {
-            if (candidate.endsWith(excluded)) return true;
-        }
-
-        return false;
-    }
-
-    private Set<Path> uniqueNonExcludedChildNames(File localDir, File remoteDir) {
-        Set<Path> uniquePaths = new HashSet<>();
-
-        uniquePaths.addAll(Arrays.stream(localDir.listFiles()).map(File::toPath).collect(Collectors.toSet()));
-        uniquePaths.addAll(Arrays.stream(remoteDir.listFiles()).map(File::toPath).collect(Collectors.toSet()));
-
-        return uniquePaths.stream().filter(p -> !isExcludedPath(p)).map(Path::getFileName).collect(Collectors.toSet());
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Copies with {@link Files#copy}, leaving the choice of system calls to the JDK. Files.copy cannot be paced, so while
+ * a byte rate limit is set, files are copied through a buffer instead
+ */
+public class FilesCopyEngine implements CopyEngine {
+
+    private static final int PACED_BUFFER_SIZE = 1024 * 1024;
+
+    private final RateLimiter rateLimiter;
+
+    public FilesCopyEngine() {
+        this(new RateLimiter());
+    }
+
+    public FilesCopyEngine(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void copy(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException {
+        if (rateLimiter.getBytesPerSecond() > 0) {
+            new BufferedCopyEngine(PACED_BUFFER_SIZE, rateLimiter).copy(source, destination, sourceAttributes);
+            return;
+        }
+
+        Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+}
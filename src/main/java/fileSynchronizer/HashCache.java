@@ -0,0 +1,157 @@
+package fileSynchronizer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of the files under a root, keyed by path, size and mtime. A file is only read again once its size or
+ * mtime changes, so repeated content checks of an unchanged tree cost no file reads at all.
+ */
+public final class HashCache {
+
+    private static final int MAGIC = 0x46534843; // "FSHC"
+    private static final int VERSION = 1;
+
+    // Files at least this large are hashed through memory-mapped windows instead of a heap buffer
+    private static final long MAPPED_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAPPED_WINDOW = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private record CachedHash(long size, long modifiedMillis, byte[] digest) {}
+
+    private final Path cacheFile;
+    private final Map<Path, CachedHash> hashes = new ConcurrentHashMap<>();
+
+    private HashCache(Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Reads the cache at cacheFile. A missing or unreadable cache yields an empty one
+     */
+    public static HashCache load(Path cacheFile) {
+        HashCache cache = new HashCache(cacheFile);
+        if (!Files.isRegularFile(cacheFile)) return cache;
+
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) throw new IOException("Unrecognized hash cache format");
+
+            int entryCount = buffer.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                byte[] pathBytes = new byte[buffer.getInt()];
+                buffer.get(pathBytes);
+                long size = buffer.getLong();
+                long modifiedMillis = buffer.getLong();
+                byte[] digest = new byte[buffer.getInt()];
+                buffer.get(digest);
+
+                cache.hashes.put(Path.of(new String(pathBytes, StandardCharsets.UTF_8)), new CachedHash(size, modifiedMillis, digest));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: Could not read hash cache '" + cacheFile + "'. Every file will be hashed again");
+            cache.hashes.clear();
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the file at absolutePath, hashing it only if the cache has no entry for its current size and mtime.
+     * Returns null if the file cannot be read
+     */
+    public byte[] hash(Path absolutePath, Path relativePath, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long modifiedMillis = attributes.lastModifiedTime().toMillis();
+
+        CachedHash cached = hashes.get(relativePath);
+        if (cached != null && cached.size() == size && cached.modifiedMillis() == modifiedMillis) return cached.digest();
+
+        try {
+            byte[] digest = digest(absolutePath);
+            hashes.put(relativePath, new CachedHash(size, modifiedMillis, digest));
+            return digest;
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not hash '" + absolutePath + "'");
+            return null;
+        }
+    }
+
+    public void write() {
+        Path temporaryFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            Map<Path, CachedHash> snapshot = Map.copyOf(hashes);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+
+            for (Map.Entry<Path, CachedHash> entry : snapshot.entrySet()) {
+                byte[] pathBytes = entry.getKey().toString().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(pathBytes.length);
+                out.write(pathBytes);
+                out.writeLong(entry.getValue().size());
+                out.writeLong(entry.getValue().modifiedMillis());
+                out.writeInt(entry.getValue().digest().length);
+                out.write(entry.getValue().digest());
+            }
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not write hash cache '" + cacheFile + "'");
+            return;
+        }
+
+        try {
+            Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not replace hash cache '" + cacheFile + "'");
+        }
+    }
+
+    /**
+     * Forgets the hash of the file at relativePath
+     */
+    public void remove(Path relativePath) {
+        hashes.remove(relativePath);
+    }
+
+    static byte[] digest(Path absolutePath) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IllegalStateException("SHA-256 is not available", nsaE);
+        }
+
+        try (FileChannel channel = FileChannel.open(absolutePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size >= MAPPED_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPED_WINDOW) {
+                    messageDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    messageDigest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        return messageDigest.digest();
+    }
+
+}
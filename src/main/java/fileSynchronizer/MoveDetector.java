@@ -0,0 +1,218 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Recognizes paths that were renamed or moved in one root since the last sync and repeats the move in the other root,
+ * so a moved subtree is not trashed and copied in full. A path that vanished from one root is paired with a path that
+ * appeared in it by file key (inode) first, then by size and mtime, and finally by content hash.
+ */
+public class MoveDetector {
+
+    private record Vanished(Path relativePath, boolean directory, long size, long modifiedMillis, String fileKey) {}
+
+    private final FileSyncRoot localRoot, remoteRoot;
+    private final TaskSink sink;
+
+    public MoveDetector(FileSyncRoot localRoot, FileSyncRoot remoteRoot, TaskSink sink) {
+        this.localRoot = localRoot;
+        this.remoteRoot = remoteRoot;
+        this.sink = sink;
+    }
+
+    /**
+     * Repeats every move found among changes in the root that has not seen it yet. Changes made unnecessary by a move
+     * are removed from changes. Returns the paths the moves created, which still need to be compared
+     */
+    public List<Path> applyMoves(List<TreeComparator.OneSidedChange> changes) {
+        List<Path> movedPaths = new ArrayList<>(applyMoves(changes, localRoot, remoteRoot));
+        movedPaths.addAll(applyMoves(changes, remoteRoot, localRoot));
+        return movedPaths;
+    }
+
+    /**
+     * Repeats in otherRoot the moves that were made in movedIn
+     */
+    private List<Path> applyMoves(List<TreeComparator.OneSidedChange> changes, FileSyncRoot movedIn, FileSyncRoot otherRoot) {
+        // Paths the last sync left in both roots that are now only in otherRoot
+        List<TreeComparator.OneSidedChange> vanished = changes.stream()
+                .filter(change -> change.presentIn() == otherRoot && change.task().type() == SyncTask.Type.TRASH)
+                .toList();
+
+        // Paths in movedIn that the last sync did not see
+        List<TreeComparator.OneSidedChange> appeared = changes.stream()
+                .filter(change -> change.presentIn() == movedIn && change.previousEntry() == null)
+                .sorted(Comparator.comparing(TreeComparator.OneSidedChange::relativePath))
+                .toList();
+
+        if (vanished.isEmpty() || appeared.isEmpty()) return List.of();
+
+        Candidates candidates = new Candidates(movedIn, otherRoot, sink);
+        for (TreeComparator.OneSidedChange change : vanished) {
+            BasicFileAttributes attributes = change.attributes();
+            FileIndex.Entry indexed = movedIn.getIndex().get(change.relativePath());
+            candidates.add(new Vanished(change.relativePath(), attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis(), (indexed == null) ? "" : indexed.fileKey()));
+
+            // Anything inside a vanished directory may have been moved out of it on its own
+            if (attributes.isDirectory()) {
+                movedIn.getIndex().subtree(change.relativePath()).forEach((relativePath, entry) ->
+                        candidates.add(new Vanished(relativePath, entry.directory(), entry.size(), entry.modifiedMillis(), entry.fileKey())));
+            }
+        }
+
+        List<Path> movedPaths = new ArrayList<>();
+        Set<TreeComparator.OneSidedChange> settled = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (TreeComparator.OneSidedChange change : appeared) {
+            int movesBefore = candidates.moves.size();
+
+            Vanished match = candidates.match(change.relativePath(), change.attributes(), true);
+            if (match != null) candidates.move(match, change.relativePath());
+            else if (change.attributes().isDirectory() && candidates.remaining()) candidates.findMovesInside(change.relativePath());
+
+            if (candidates.moves.size() > movesBefore) {
+                settled.add(change);
+                movedPaths.add(change.relativePath());
+            }
+        }
+
+        // A vanished path that was moved as a whole no longer needs to be trashed. One that was only partly moved still does
+        for (TreeComparator.OneSidedChange change : vanished) {
+            if (candidates.moves.containsKey(change.relativePath())) settled.add(change);
+        }
+
+        changes.removeIf(settled::contains);
+        return movedPaths;
+    }
+
+    private static String fileKey(BasicFileAttributes attributes) {
+        return FileIndex.Entry.of(attributes).fileKey();
+    }
+
+    /**
+     * The vanished paths that can still be matched, indexed by each of the ways they can be recognized
+     */
+    private static final class Candidates {
+
+        private final FileSyncRoot movedIn, otherRoot;
+        private final TaskSink sink;
+        private final Map<String, Vanished> byFileKey = new HashMap<>();
+        private final Map<List<Long>, List<Vanished>> bySizeAndTime = new HashMap<>();
+        private final Map<Long, List<Vanished>> bySize = new HashMap<>();
+
+        // Old path -> new path of every move made so far
+        private final Map<Path, Path> moves = new HashMap<>();
+
+        Candidates(FileSyncRoot movedIn, FileSyncRoot otherRoot, TaskSink sink) {
+            this.movedIn = movedIn;
+            this.otherRoot = otherRoot;
+            this.sink = sink;
+        }
+
+        void add(Vanished vanished) {
+            if (!vanished.fileKey().isEmpty()) byFileKey.put(vanished.fileKey(), vanished);
+
+            // Empty files and directories carry too little information to be matched by anything but their file key
+            if (vanished.directory() || vanished.size() == 0) return;
+            bySizeAndTime.computeIfAbsent(List.of(vanished.size(), vanished.modifiedMillis()), key -> new ArrayList<>()).add(vanished);
+            bySize.computeIfAbsent(vanished.size(), key -> new ArrayList<>()).add(vanished);
+        }
+
+        boolean remaining() {
+            return moves.size() < byFileKey.size() + bySize.values().stream().mapToInt(List::size).sum();
+        }
+
+        /**
+         * Returns the vanished path that the entry at relativePath in movedIn was most likely moved from, or null.
+         * Content hashes are only compared if hashContents is set, since they cost a read of both files
+         */
+        Vanished match(Path relativePath, BasicFileAttributes attributes, boolean hashContents) {
+            Vanished byKey = byFileKey.get(fileKey(attributes));
+            if (byKey != null && byKey.directory() == attributes.isDirectory() && !moves.containsKey(byKey.relativePath())) return byKey;
+
+            if (attributes.isDirectory() || attributes.size() == 0) return null;
+
+            List<Vanished> sameSizeAndTime = bySizeAndTime.getOrDefault(List.of(attributes.size(), attributes.lastModifiedTime().toMillis()), List.of()).stream()
+                    .filter(vanished -> !moves.containsKey(vanished.relativePath()))
+                    .toList();
+            if (sameSizeAndTime.size() == 1) return sameSizeAndTime.get(0);
+            if (!hashContents) return null;
+
+            byte[] digest = movedIn.getHashCache().hash(movedIn.resolve(relativePath), relativePath, attributes);
+            if (digest == null) return null;
+
+            for (Vanished vanished : bySize.getOrDefault(attributes.size(), List.of())) {
+                if (moves.containsKey(vanished.relativePath())) continue;
+
+                try {
+                    BasicFileAttributes otherAttributes = Files.readAttributes(otherRoot.resolve(vanished.relativePath()), BasicFileAttributes.class);
+                    if (Arrays.equals(digest, otherRoot.getHashCache().hash(otherRoot.resolve(vanished.relativePath()), vanished.relativePath(), otherAttributes))) return vanished;
+                } catch (IOException ioE) {
+                    // The vanished path is gone from the other root as well, so it cannot be the source of a move
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Walks the newly appeared directory at relativePath looking for entries that were moved into it
+         */
+        void findMovesInside(Path relativePath) {
+            try {
+                Files.walkFileTree(movedIn.resolve(relativePath), new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) {
+                        Path descendant = movedIn.getRoot().relativize(path);
+                        if (descendant.equals(relativePath)) return FileVisitResult.CONTINUE;
+                        if (movedIn.getExclusions().isExcluded(descendant)) return FileVisitResult.SKIP_SUBTREE;
+
+                        Vanished match = match(descendant, basicFileAttributes, false);
+                        return (match != null && move(match, descendant)) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) {
+                        Path descendant = movedIn.getRoot().relativize(path);
+                        if (movedIn.getExclusions().isExcluded(descendant)) return FileVisitResult.CONTINUE;
+
+                        Vanished match = match(descendant, basicFileAttributes, false);
+                        if (match != null) move(match, descendant);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Could not look for moved files in '" + movedIn.resolve(relativePath) + "'");
+            }
+        }
+
+        /**
+         * Moves vanished to newPath in the other root. Moves that overlap an earlier move are skipped, since the earlier
+         * one already changed where their paths lead
+         */
+        boolean move(Vanished vanished, Path newPath) {
+            for (Map.Entry<Path, Path> earlier : moves.entrySet()) {
+                if (overlaps(earlier.getKey(), vanished.relativePath()) || overlaps(earlier.getValue(), newPath)) return false;
+            }
+
+            if (!sink.move(otherRoot, vanished.relativePath(), newPath)) return false;
+
+            movedIn.getIndex().remove(vanished.relativePath());
+            moves.put(vanished.relativePath(), newPath);
+            return true;
+        }
+
+        private static boolean overlaps(Path first, Path second) {
+            return first.startsWith(second) || second.startsWith(first);
+        }
+    }
+
+}
@@ -0,0 +1,446 @@
+package fileSynchronizer;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Syncs any number of roots in one pass, instead of one pairwise run per pair of roots. Every root is scanned once.
+ * For each path, the versions found in all roots are compared and the winning version is copied to every root that
+ * lacks it, with the copies to different roots running in parallel.
+ * <p>
+ * Whether a version is a change is decided with each root's version vector, the last sync time it has recorded for
+ * every other root in .sync_log. A version counts as changed if it was modified after the earliest of those times,
+ * since at least one other root may not have seen it yet. A path missing from some roots is copied to them if it was
+ * created after that time in a root that has it, and trashed everywhere otherwise. When more than one root holds a
+ * changed version, the conflict is resolved by .sync_conflicts or by asking which root's version to keep.
+ */
+public class MultiRootSynchronizer {
+
+    private record Conflict(Path relativePath, BasicFileAttributes[] versions) {}
+
+    private final DateTimeFormatter timestampFormatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT);
+    private final List<FileSyncRoot> roots = new ArrayList<>();
+    private final long[] baselineMillis;
+    private final ExclusionMatcher exclusions;
+    private final ConflictPolicy conflictPolicy;
+    private final SyncOptions options;
+    private final boolean verbose;
+    private final BufferedReader userInputReader;
+
+    private TransferPipeline pipeline;
+    private final Queue<Conflict> conflicts = new ConcurrentLinkedQueue<>();
+
+    public MultiRootSynchronizer(List<String> rootPaths, List<String> nicknames, InputStream userInput, boolean verbose, SyncOptions options) {
+        if (rootPaths.size() != nicknames.size() || rootPaths.size() < 2) throw new IllegalArgumentException("Every root needs a nickname, and at least two roots are needed");
+        if (new HashSet<>(nicknames).size() != nicknames.size()) throw new IllegalArgumentException("Nicknames must be unique");
+
+        this.verbose = verbose;
+        this.options = options;
+        userInputReader = new BufferedReader(new InputStreamReader(userInput));
+
+        for (int i = 0; i < rootPaths.size(); i++) {
+            List<String> peers = new ArrayList<>(nicknames);
+            peers.remove(i);
+            roots.add(new FileSyncRoot(rootPaths.get(i), nicknames.get(i), String.join("+", peers), verbose, options));
+        }
+
+        // Merge excluded paths from every root
+        Set<String> excludedPaths = new HashSet<>();
+        for (FileSyncRoot root : roots) {
+            excludedPaths.addAll(root.getExcludedPaths());
+        }
+        exclusions = ExclusionMatcher.compile(excludedPaths);
+        for (FileSyncRoot root : roots) {
+            root.setExcludedPaths(excludedPaths, exclusions);
+        }
+
+        // Rules of earlier roots take precedence over those of later ones
+        conflictPolicy = new ConflictPolicy(options.getDefaultConflictResolution());
+        for (FileSyncRoot root : roots) {
+            conflictPolicy.load(root.resolve(Path.of(".sync_conflicts")));
+        }
+
+        baselineMillis = new long[roots.size()];
+        for (int i = 0; i < roots.size(); i++) {
+            Map<String, Long> versionVector = roots.get(i).getVersionVector();
+
+            long baseline = Long.MAX_VALUE;
+            for (int j = 0; j < roots.size(); j++) {
+                if (j != i) baseline = Math.min(baseline, versionVector.getOrDefault(nicknames.get(j), 0L));
+            }
+            baselineMillis[i] = baseline;
+        }
+    }
+
+    public List<FileSyncRoot> getRoots() {
+        return roots;
+    }
+
+    public void synchronizeFileTrees() {
+        pipeline = new TransferPipeline(options.getTransferThreads(), options.getMaxQueuedTransfers(), options.getMaxBytesInFlight());
+
+        boolean[] everyRoot = new boolean[roots.size()];
+        Arrays.fill(everyRoot, true);
+
+        long startNanos = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(options.getComparisonThreads());
+        try {
+            pool.invoke(new PathComparison(Path.of(""), everyRoot, new boolean[roots.size()]));
+        } finally {
+            pool.shutdown();
+            options.getMetrics().recordPhase(SyncMetrics.Phase.COMPARE, startNanos);
+        }
+        pipeline.awaitCompletion();
+
+        long conflictResolutionStartNanos = System.nanoTime();
+        resolveConflicts();
+        pipeline.shutdown();
+        options.getMetrics().recordPhase(SyncMetrics.Phase.CONFLICT_RESOLUTION, conflictResolutionStartNanos);
+
+        askToClearTrash();
+
+        // Every root now holds what every other root held. Like a pairwise sync, the time is taken at the end, so the
+        // files this sync created are not mistaken for new ones next time
+        long syncTimeMillis = System.currentTimeMillis();
+        for (FileSyncRoot root : roots) {
+            root.writeExcludedPathsList();
+            root.writeIndex();
+            for (FileSyncRoot peer : roots) {
+                if (peer != root) root.setLastSync(peer.getNickname(), syncTimeMillis);
+            }
+            root.getJournal().finish();
+        }
+
+        for (FileSyncRoot root : roots) {
+            root.awaitTrashPurge();
+        }
+        if (options.getMetricsFile() != null) options.getMetrics().writeSummary(options.getMetricsFile());
+    }
+
+    private void resolveConflicts() {
+        List<Conflict> sorted = new ArrayList<>(conflicts);
+        sorted.sort(Comparator.comparing(Conflict::relativePath));
+
+        int takeAll = -1;
+        for (Conflict conflict : sorted) {
+            int winner = (takeAll >= 0 && conflict.versions()[takeAll] != null) ? takeAll : winnerByPolicy(conflict);
+
+            while (winner < 0) {
+                System.out.println(System.lineSeparator() + "Conflict:");
+                for (int i = 0; i < roots.size(); i++) {
+                    BasicFileAttributes version = conflict.versions()[i];
+                    if (version == null) continue;
+
+                    ZonedDateTime modified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(version.lastModifiedTime().toMillis()), ZoneId.systemDefault());
+                    System.out.println("\t" + roots.get(i).getNickname() + " (" + (i + 1) + "): '" + conflict.relativePath() + "' modified " + modified.format(timestampFormatter));
+                }
+                System.out.print("Take changes from which directory? (Append '!' to take all changes from it): ");
+
+                String decision = getUserInput();
+                boolean all = decision.endsWith("!");
+                try {
+                    int chosen = Integer.parseInt(all ? decision.substring(0, decision.length() - 1) : decision) - 1;
+                    if (chosen >= 0 && chosen < roots.size() && conflict.versions()[chosen] != null) {
+                        winner = chosen;
+                        if (all) takeAll = chosen;
+                    }
+                } catch (NumberFormatException nfE) {
+                    // Asked again below
+                }
+
+                if (winner < 0) System.out.println("Invalid response: '" + decision + "'");
+            }
+
+            copyToEveryOtherRoot(conflict.relativePath(), winner, conflict.versions());
+        }
+    }
+
+    /**
+     * Returns the index of the root whose version wins under the conflict policy, or -1 if the user has to decide
+     */
+    private int winnerByPolicy(Conflict conflict) {
+        ConflictPolicy.Resolution resolution = conflictPolicy.resolutionFor(conflict.relativePath());
+        BasicFileAttributes[] versions = conflict.versions();
+
+        int winner = -1;
+        switch (resolution.strategy()) {
+            case NEWEST, LARGEST -> {
+                for (int i = 0; i < versions.length; i++) {
+                    if (versions[i] == null) continue;
+                    if (winner < 0 || compare(versions[i], versions[winner], resolution.strategy()) > 0) winner = i;
+                }
+
+                // A tie between different versions cannot be decided by the policy
+                for (int i = 0; winner >= 0 && i < versions.length; i++) {
+                    if (i != winner && versions[i] != null && compare(versions[i], versions[winner], resolution.strategy()) == 0) winner = -1;
+                }
+            }
+            case PREFER -> {
+                for (int i = 0; i < roots.size(); i++) {
+                    if (roots.get(i).getNickname().equals(resolution.preferredNickname()) && versions[i] != null) winner = i;
+                }
+            }
+            case ASK, KEEP_BOTH -> {}
+        }
+
+        if (winner >= 0 && verbose) System.out.println("RESOLVE: '" + conflict.relativePath() + "' taken from " + roots.get(winner).getNickname() + " (" + resolution + ")");
+        return winner;
+    }
+
+    private static int compare(BasicFileAttributes first, BasicFileAttributes second, ConflictPolicy.Strategy strategy) {
+        int bySize = Long.compare(first.size(), second.size());
+        if (strategy == ConflictPolicy.Strategy.LARGEST && bySize != 0) return bySize;
+        return first.lastModifiedTime().compareTo(second.lastModifiedTime());
+    }
+
+    /**
+     * Copies the version in root winner to every root that holds a different version or none
+     */
+    private void copyToEveryOtherRoot(Path relativePath, int winner, BasicFileAttributes[] versions) {
+        FileSyncRoot source = roots.get(winner);
+        for (int i = 0; i < roots.size(); i++) {
+            if (i == winner || sameVersion(versions[i], versions[winner])) continue;
+            pipeline.submit(SyncTask.copy(relativePath, source, roots.get(i), versions[winner], versions[i] != null));
+        }
+    }
+
+    private static boolean sameVersion(BasicFileAttributes first, BasicFileAttributes second) {
+        return first != null && second != null && first.size() == second.size() && first.lastModifiedTime().toMillis() == second.lastModifiedTime().toMillis();
+    }
+
+    private void askToClearTrash() {
+        boolean anyTrash = false;
+        for (FileSyncRoot root : roots) {
+            String[] trashed = root.getSyncTrash().toFile().list();
+            anyTrash |= trashed != null && trashed.length != 0;
+        }
+        if (!anyTrash) return;
+
+        System.out.println(System.lineSeparator() + "All trashed files:");
+        try {
+            for (FileSyncRoot root : roots) {
+                Files.walkFileTree(root.getSyncTrash(), new FileNamePrinter(root.getSyncTrash(), root.getNickname() + ": "));
+            }
+        } catch (IOException ioE) {
+            System.out.println("Could not print all trashed file names");
+        }
+
+        System.out.print("Delete all trashed files? (y/n): ");
+        if (getUserInput().equalsIgnoreCase("y")) {
+            for (FileSyncRoot root : roots) {
+                root.clearTrash();
+            }
+        }
+        else System.out.println("No trashed files will be deleted");
+    }
+
+    private BasicFileAttributes readAttributes(Path absolutePath) {
+        long startNanos = System.nanoTime();
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            if (attributes.isDirectory()) options.getMetrics().scannedDirectory();
+            else options.getMetrics().scannedFile();
+
+            return attributes;
+        } catch (IOException ioE) {
+            return null;
+        } finally {
+            options.getMetrics().recordOperation(SyncMetrics.Operation.STAT, startNanos);
+        }
+    }
+
+    /**
+     * Returns the sorted names in the directory at relativePath under root, reusing the listing from the root's index
+     * if the directory has not changed
+     */
+    private String[] sortedChildNames(FileSyncRoot root, Path relativePath, BasicFileAttributes attributes) {
+        String[] names = root.getIndex().unchangedListing(relativePath, attributes);
+        if (names == null) {
+            long startNanos = System.nanoTime();
+            List<String> listed = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(root.resolve(relativePath))) {
+                for (Path child : children) {
+                    listed.add(child.getFileName().toString());
+                }
+            } catch (IOException ioE) {
+                // Carrying on with an empty listing would trash everything the other side holds in this directory
+                System.err.println("ERROR: Could not list '" + root.resolve(relativePath) + "'. Exclude it to sync the rest. Exiting...");
+                System.exit(1);
+            }
+
+            names = listed.toArray(String[]::new);
+            root.getIndex().recordListing(relativePath, Arrays.asList(names));
+            options.getMetrics().recordOperation(SyncMetrics.Operation.LIST, startNanos);
+        }
+
+        Arrays.sort(names);
+        return names;
+    }
+
+    private class PathComparison extends RecursiveAction {
+
+        private final Path relativePath;
+        // Which roots the parent's listings showed the path in
+        private final boolean[] listedIn;
+        // Roots whose copy of the parent directory was only just created, so the path is missing there because it has
+        // not been copied yet rather than because it was deleted
+        private final boolean[] fresh;
+
+        PathComparison(Path relativePath, boolean[] listedIn, boolean[] fresh) {
+            this.relativePath = relativePath;
+            this.listedIn = listedIn;
+            this.fresh = fresh;
+        }
+
+        @Override
+        protected void compute() {
+            int rootCount = roots.size();
+            BasicFileAttributes[] versions = new BasicFileAttributes[rootCount];
+            int directories = 0, present = 0;
+
+            for (int i = 0; i < rootCount; i++) {
+                if (!listedIn[i]) continue;
+
+                versions[i] = readAttributes(roots.get(i).resolve(relativePath));
+                if (versions[i] == null) continue;
+
+                roots.get(i).getIndex().record(relativePath, versions[i]);
+                present++;
+                if (versions[i].isDirectory()) directories++;
+            }
+
+            if (present == 0) return;
+            if (directories != 0 && directories != present) {
+                System.err.println("ERROR: '" + relativePath + "' is not the same type in every directory. Exiting...");
+                System.exit(1);
+            }
+
+            boolean missingSomewhere = present < rootCount;
+            boolean deletedSomewhere = false;
+            boolean createdSinceSync = false;
+            for (int i = 0; i < rootCount; i++) {
+                if (versions[i] == null) deletedSomewhere |= !fresh[i];
+                else createdSinceSync |= versions[i].creationTime().toMillis() > baselineMillis[i];
+            }
+
+            // Case: the path was deleted from a root that had it at the last sync. Trash it everywhere else
+            if (missingSomewhere && deletedSomewhere && !createdSinceSync) {
+                for (int i = 0; i < rootCount; i++) {
+                    if (versions[i] != null) pipeline.submit(SyncTask.trash(relativePath, roots.get(i)));
+                }
+                return;
+            }
+
+            if (directories > 0) compareDirectory(versions);
+            else compareFile(versions);
+        }
+
+        private void compareDirectory(BasicFileAttributes[] versions) {
+            int rootCount = roots.size();
+            boolean[] childFresh = fresh.clone();
+            List<String[]> listings = new ArrayList<>(rootCount);
+
+            for (int i = 0; i < rootCount; i++) {
+                if (versions[i] != null) {
+                    listings.add(sortedChildNames(roots.get(i), relativePath, versions[i]));
+                    continue;
+                }
+
+                // Create the directory in roots that lack it, so its contents can be copied in entry by entry
+                try {
+                    Files.createDirectories(roots.get(i).resolve(relativePath));
+                    if (verbose) System.out.println("COPY: " + relativePath + " to " + roots.get(i).getNickname());
+                } catch (IOException ioE) {
+                    System.err.println("ERROR: Could not create '" + roots.get(i).resolve(relativePath) + "'. Exiting...");
+                    System.exit(1);
+                }
+                childFresh[i] = true;
+                listings.add(new String[0]);
+            }
+
+            // Merge the sorted listings of every root, so each child name is seen once along with the roots that hold it
+            int[] positions = new int[rootCount];
+            List<PathComparison> children = new ArrayList<>();
+            while (true) {
+                String next = null;
+                for (int i = 0; i < rootCount; i++) {
+                    if (positions[i] < listings.get(i).length && (next == null || listings.get(i)[positions[i]].compareTo(next) < 0)) next = listings.get(i)[positions[i]];
+                }
+                if (next == null) break;
+
+                boolean[] childListedIn = new boolean[rootCount];
+                for (int i = 0; i < rootCount; i++) {
+                    if (positions[i] < listings.get(i).length && listings.get(i)[positions[i]].equals(next)) {
+                        childListedIn[i] = true;
+                        positions[i]++;
+                    }
+                }
+
+                Path child = relativePath.resolve(next);
+                if (exclusions.isExcluded(child)) options.getMetrics().excluded();
+                else children.add(new PathComparison(child, childListedIn, childFresh));
+            }
+
+            invokeAll(children);
+        }
+
+        private void compareFile(BasicFileAttributes[] versions) {
+            int rootCount = roots.size();
+            int winner = -1;
+            boolean conflict = false;
+
+            for (int i = 0; i < rootCount; i++) {
+                if (versions[i] == null || versions[i].lastModifiedTime().toMillis() <= baselineMillis[i]) continue;
+
+                if (winner < 0) winner = i;
+                else if (!sameVersion(versions[i], versions[winner])) conflict = true;
+            }
+
+            // Case: no root changed the file since the last sync. Roots without it only just got its directory, and
+            // roots that hold it should agree. If they do not, no version can be preferred over the others
+            if (winner < 0) {
+                for (int i = 0; i < rootCount; i++) {
+                    if (versions[i] == null) continue;
+
+                    if (winner < 0) winner = i;
+                    else if (!sameVersion(versions[i], versions[winner])) conflict = true;
+                }
+            }
+
+            if (conflict) {
+                conflicts.add(new Conflict(relativePath, versions));
+                options.getMetrics().conflict();
+                return;
+            }
+
+            copyToEveryOtherRoot(relativePath, winner, versions);
+        }
+    }
+
+    private String getUserInput() {
+        try {
+            String input = userInputReader.readLine();
+            if (input != null) return input;
+        } catch (IOException ioE) {
+            // Handled below
+        }
+
+        System.err.println("ERROR: NO INPUT READABLE");
+        System.exit(1);
+        return "";
+    }
+
+}
@@ -0,0 +1,184 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Token buckets that cap the bytes per second and the file operations per second of every copy, move and trash made
+ * with the same options. Each bucket holds up to one second of tokens, so a short burst after a quiet spell goes
+ * through at once. A caller that takes more tokens than are left runs the bucket into debt and sleeps until it is
+ * paid off, so concurrent transfer threads share the rate instead of each getting all of it. A limit of 0 disables a
+ * bucket, and then taking tokens costs a single volatile read.
+ * <p>
+ * The limits can be changed while a sync runs, through {@link #setLimits(long, long)} or a control file of
+ * {@code name=value} lines:
+ * <pre>
+ * max-bytes-per-second=1048576
+ * max-operations-per-second=100
+ * </pre>
+ * The file is checked at most once a second. A line it leaves out keeps the limit given on the command line, and
+ * deleting the file restores both.
+ */
+public class RateLimiter {
+
+    private static final long CONTROL_FILE_CHECK_NANOS = 1_000_000_000L;
+    // Paced transfers move at least this much per call, so a low limit does not turn into a flood of tiny writes
+    private static final int MINIMUM_PACED_CHUNK = 16 * 1024;
+
+    private final TokenBucket bytes = new TokenBucket(), operations = new TokenBucket();
+    private final long defaultBytesPerSecond, defaultOperationsPerSecond;
+    private final Path controlFile;
+    private volatile long nextControlFileCheckNanos = System.nanoTime();
+    private FileTime controlFileModified;
+
+    /**
+     * A limiter that never waits
+     */
+    public RateLimiter() {
+        this(0, 0, null);
+    }
+
+    /**
+     * Limits transfers to bytesPerSecond and operations to operationsPerSecond, 0 meaning no limit, until controlFile,
+     * if not null, says otherwise
+     */
+    public RateLimiter(long bytesPerSecond, long operationsPerSecond, Path controlFile) {
+        if (bytesPerSecond < 0 || operationsPerSecond < 0) throw new IllegalArgumentException("Rate limits cannot be negative");
+        defaultBytesPerSecond = bytesPerSecond;
+        defaultOperationsPerSecond = operationsPerSecond;
+        this.controlFile = controlFile;
+        setLimits(bytesPerSecond, operationsPerSecond);
+    }
+
+    public void setLimits(long bytesPerSecond, long operationsPerSecond) {
+        if (bytesPerSecond < 0 || operationsPerSecond < 0) throw new IllegalArgumentException("Rate limits cannot be negative");
+        bytes.setRate(bytesPerSecond);
+        operations.setRate(operationsPerSecond);
+    }
+
+    public long getBytesPerSecond() {
+        checkControlFile();
+        return bytes.rate;
+    }
+
+    public long getOperationsPerSecond() {
+        checkControlFile();
+        return operations.rate;
+    }
+
+    /**
+     * Waits until count more bytes may be transferred
+     */
+    public void acquireBytes(long count) {
+        checkControlFile();
+        pause(bytes.take(count));
+    }
+
+    /**
+     * Waits until one more file operation may be made
+     */
+    public void acquireOperation() {
+        checkControlFile();
+        pause(operations.take(1));
+    }
+
+    /**
+     * Returns how many bytes a paced transfer should move between calls to {@link #acquireBytes(long)}: preferred, or
+     * a tenth of a second's worth if that is smaller, so the transfer stays close to the rate
+     */
+    public int pacedChunkSize(int preferred) {
+        long rate = getBytesPerSecond();
+        if (rate == 0) return preferred;
+        return (int) Math.min(preferred, Math.max(MINIMUM_PACED_CHUNK, rate / 10));
+    }
+
+    /**
+     * Applies the limits in the control file if it has changed since it was last read
+     */
+    private void checkControlFile() {
+        if (controlFile == null || System.nanoTime() - nextControlFileCheckNanos < 0) return;
+
+        synchronized (this) {
+            if (System.nanoTime() - nextControlFileCheckNanos < 0) return;
+            nextControlFileCheckNanos = System.nanoTime() + CONTROL_FILE_CHECK_NANOS;
+
+            try {
+                FileTime modified = Files.getLastModifiedTime(controlFile);
+                if (modified.equals(controlFileModified)) return;
+                controlFileModified = modified;
+
+                long bytesPerSecond = defaultBytesPerSecond, operationsPerSecond = defaultOperationsPerSecond;
+                for (String line : Files.readAllLines(controlFile, StandardCharsets.UTF_8)) {
+                    String[] nameAndValue = line.strip().split("=", 2);
+                    if (nameAndValue.length != 2) continue;
+
+                    switch (nameAndValue[0].strip()) {
+                        case "max-bytes-per-second" -> bytesPerSecond = Long.parseLong(nameAndValue[1].strip());
+                        case "max-operations-per-second" -> operationsPerSecond = Long.parseLong(nameAndValue[1].strip());
+                        default -> System.err.println("ERROR: Unrecognized setting '" + line.strip() + "' in '" + controlFile + "'");
+                    }
+                }
+
+                setLimits(bytesPerSecond, operationsPerSecond);
+            } catch (NoSuchFileException nsfE) {
+                if (controlFileModified != null) setLimits(defaultBytesPerSecond, defaultOperationsPerSecond);
+                controlFileModified = null;
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("ERROR: Could not read rate limits from '" + controlFile + "'. Keeping the current limits");
+            }
+        }
+    }
+
+    private static void pause(long nanos) {
+        if (nanos <= 0) return;
+
+        try {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Refills at rate tokens per second up to one second's worth
+     */
+    private static final class TokenBucket {
+
+        private volatile long rate = 0;
+        private double tokens = 0;
+        private long lastRefillNanos = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            refill();
+            // A bucket that was off starts full, like one that has been idle
+            tokens = (this.rate == 0) ? rate : Math.min(tokens, rate);
+            this.rate = rate;
+        }
+
+        /**
+         * Takes count tokens and returns how many nanoseconds the caller has to wait before it may go ahead
+         */
+        long take(long count) {
+            if (rate == 0) return 0;
+
+            synchronized (this) {
+                if (rate == 0) return 0;
+
+                refill();
+                tokens -= count;
+                return (tokens >= 0) ? 0 : (long) (-tokens / rate * 1_000_000_000L);
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) tokens = Math.min(rate, tokens + (now - lastRefillNanos) / 1e9 * rate);
+            lastRefillNanos = now;
+        }
+    }
+
+}
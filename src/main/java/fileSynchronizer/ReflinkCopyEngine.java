@@ -0,0 +1,62 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Clones files instead of copying them where the file system supports it (Btrfs, XFS, APFS and others). A clone shares
+ * the source's blocks, so it completes in constant time whatever the file size. The JDK has no clone call, so this
+ * runs {@code cp --reflink=always}. That costs a process start, so small files and file systems that have already
+ * refused a clone go straight to the fallback engine.
+ */
+public class ReflinkCopyEngine implements CopyEngine {
+
+    private static final long MINIMUM_CLONE_SIZE = 1024 * 1024;
+
+    private final CopyEngine fallback;
+    // Keyed by source and destination store, since a clone only works within one file system
+    private final Map<List<FileStore>, Boolean> cloneSupported = new ConcurrentHashMap<>();
+
+    public ReflinkCopyEngine(CopyEngine fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void copy(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException {
+        if (sourceAttributes.size() < MINIMUM_CLONE_SIZE) {
+            fallback.copy(source, destination, sourceAttributes);
+            return;
+        }
+
+        List<FileStore> stores = List.of(Files.getFileStore(source), Files.getFileStore(destination.getParent()));
+        if (cloneSupported.getOrDefault(stores, true) && clone(source, destination)) {
+            cloneSupported.put(stores, true);
+            return;
+        }
+
+        cloneSupported.put(stores, false);
+        fallback.copy(source, destination, sourceAttributes);
+    }
+
+    private boolean clone(Path source, Path destination) {
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps,mode", source.toString(), destination.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            return process.waitFor() == 0;
+        } catch (IOException ioE) {
+            return false;
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,397 @@
+package fileSynchronizer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncs a local root with a root served by a {@link SyncAgent} on another machine, so the remote root does not have to
+ * be mounted. Instead of reading attributes and listing directories across the network, the agent scans its own root
+ * and sends back one listing, which is compared with a scan of the local root. The decisions are the same as in a
+ * local two-way sync. Files are then downloaded and uploaded by several threads at once over the one connection.
+ */
+public class RemoteSynchronizer {
+
+    private enum Decision { UPLOAD, DOWNLOAD, TRASH }
+
+    private final DateTimeFormatter timestampFormatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT);
+    private final FileSyncRoot localRoot;
+    private final AgentConnection connection;
+    private final String remoteNickname;
+    private final Set<String> excludedPaths;
+    private final ExclusionMatcher exclusions;
+    private final ConflictPolicy conflictPolicy;
+    private final long lastSyncMillis;
+    private final SyncOptions options;
+    private final boolean verbose;
+    private final BufferedReader userInputReader;
+
+    private ExecutorService transfers;
+    // Paths trashed in the agent's root during this sync, listed when asking about the trash
+    private final Queue<Path> remotelyTrashed = new ConcurrentLinkedQueue<>();
+
+    public RemoteSynchronizer(String localRootPath, String agentAddress, String localNickname, String remoteNickname, InputStream userInput, boolean verbose, SyncOptions options) {
+        this.remoteNickname = remoteNickname;
+        this.verbose = verbose;
+        this.options = options;
+        userInputReader = new BufferedReader(new InputStreamReader(userInput));
+
+        AgentConnection.Hello hello = null;
+        AgentConnection agentConnection = null;
+        try {
+            agentConnection = AgentConnection.connect(agentAddress, options.getRateLimiter());
+            hello = agentConnection.hello(options.getAgentSecret(), localNickname, options.getCompressionLevel());
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not connect to the agent at '" + agentAddress + "': " + ioE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+        connection = agentConnection;
+
+        if (!hello.nickname().equals(remoteNickname)) {
+            System.err.println("ERROR: The agent at '" + agentAddress + "' serves '" + hello.nickname() + "', not '" + remoteNickname + "'. Exiting...");
+            System.exit(1);
+        }
+
+        localRoot = new FileSyncRoot(localRootPath, localNickname, remoteNickname, verbose, options);
+
+        // Merge excluded paths from both roots. The agent adopts the merged list when it lists its root
+        excludedPaths = localRoot.getExcludedPaths();
+        excludedPaths.addAll(hello.excludedPaths());
+        exclusions = ExclusionMatcher.compile(excludedPaths);
+        localRoot.setExcludedPaths(excludedPaths, exclusions);
+
+        conflictPolicy = new ConflictPolicy(options.getDefaultConflictResolution());
+        conflictPolicy.load(localRoot.resolve(Path.of(".sync_conflicts")));
+
+        lastSyncMillis = Math.max(localRoot.getLastSyncMillis(), hello.lastSyncMillis());
+    }
+
+    public FileSyncRoot getLocalRoot() {
+        return localRoot;
+    }
+
+    public void synchronizeFileTrees() {
+        if (lastSyncMillis == 0) {
+            System.out.println("No sync record exists between " + localRoot.getNickname() + " and " + remoteNickname + ". What would you like to do?");
+            System.out.println("\t(1) Perform full sync now");
+            System.out.println("\t(2) Both directories are already equivalent, so just add a sync record");
+            String response = getUserInput();
+
+            if (response.equalsIgnoreCase("1")) ;
+            else if (response.equalsIgnoreCase("2")) {
+                recordSync(System.currentTimeMillis());
+                return;
+            }
+            else System.exit(1);
+        }
+
+        long startNanos = System.nanoTime();
+        SortedMap<Path, TreeListing.Entry> localListing = null, remoteListing = null;
+        try {
+            remoteListing = connection.list(excludedPaths);
+            localListing = TreeListing.scan(localRoot.getRoot(), exclusions);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not list the files of " + localRoot.getNickname() + " and " + remoteNickname + ": " + ioE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+        options.getMetrics().recordPhase(SyncMetrics.Phase.SCAN, startNanos);
+
+        transfers = Executors.newFixedThreadPool(options.getTransferThreads(), runnable -> {
+            Thread transfer = new Thread(runnable, "filesync-remote-transfer");
+            transfer.setDaemon(true);
+            return transfer;
+        });
+
+        SortedSet<Path> conflicts = compare(localListing, remoteListing);
+
+        long conflictResolutionStartNanos = System.nanoTime();
+        resolveConflicts(conflicts, localListing, remoteListing);
+        awaitTransfers();
+        options.getMetrics().recordPhase(SyncMetrics.Phase.CONFLICT_RESOLUTION, conflictResolutionStartNanos);
+
+        askToClearTrash();
+        recordSync(System.currentTimeMillis());
+    }
+
+    /**
+     * Compares both listings, starts every non-conflicting transfer and returns the conflicting paths. The listings are
+     * sorted, so a directory is always decided before its contents, which then follow that decision
+     */
+    private SortedSet<Path> compare(SortedMap<Path, TreeListing.Entry> localListing, SortedMap<Path, TreeListing.Entry> remoteListing) {
+        long startNanos = System.nanoTime();
+        SortedSet<Path> conflicts = new TreeSet<>();
+        Map<Path, Decision> subtreeDecisions = new HashMap<>();
+
+        SortedSet<Path> allPaths = new TreeSet<>(localListing.keySet());
+        allPaths.addAll(remoteListing.keySet());
+
+        for (Path relativePath : allPaths) {
+            TreeListing.Entry local = localListing.get(relativePath);
+            TreeListing.Entry remote = remoteListing.get(relativePath);
+            if (((local != null) ? local : remote).directory()) options.getMetrics().scannedDirectory();
+            else options.getMetrics().scannedFile();
+
+            // Case: inside a directory that is copied or trashed as a whole
+            Decision inherited = subtreeDecision(relativePath, subtreeDecisions);
+            if (inherited == Decision.TRASH) continue;
+            if (inherited != null) {
+                transfer(relativePath, inherited, local, remote, subtreeDecisions);
+                continue;
+            }
+
+            if (local != null && remote != null) {
+                if (local.directory() && remote.directory()) continue;
+                if (local.directory() || remote.directory()) {
+                    System.err.println("ERROR: '" + localRoot.resolve(relativePath) + "' AND '" + relativePath + "' in " + remoteNickname + " are not the same type. Exiting...");
+                    System.exit(1);
+                }
+
+                boolean localChanged = local.modifiedMillis() > lastSyncMillis;
+                boolean remoteChanged = remote.modifiedMillis() > lastSyncMillis;
+
+                if (local.modifiedMillis() == remote.modifiedMillis() && local.size() == remote.size()) ; // Case: copies carry their source's mtime, so identical size and mtime means already in sync
+                else if (localChanged && remoteChanged) { // Case: both files modified since last sync. Conflict
+                    conflicts.add(relativePath);
+                    options.getMetrics().conflict();
+                }
+                else if (localChanged) transfer(relativePath, Decision.UPLOAD, local, remote, subtreeDecisions);
+                else if (remoteChanged) transfer(relativePath, Decision.DOWNLOAD, local, remote, subtreeDecisions);
+            }
+            else if (local != null && local.createdMillis() > lastSyncMillis) transfer(relativePath, Decision.UPLOAD, local, null, subtreeDecisions);
+            else if (remote != null && remote.createdMillis() > lastSyncMillis) transfer(relativePath, Decision.DOWNLOAD, null, remote, subtreeDecisions);
+            else transfer(relativePath, Decision.TRASH, local, remote, subtreeDecisions);
+        }
+
+        options.getMetrics().recordPhase(SyncMetrics.Phase.COMPARE, startNanos);
+        return conflicts;
+    }
+
+    /**
+     * Returns the decision made for the nearest directory above relativePath that is copied or trashed as a whole
+     */
+    private static Decision subtreeDecision(Path relativePath, Map<Path, Decision> subtreeDecisions) {
+        for (Path parent = relativePath.getParent(); parent != null; parent = parent.getParent()) {
+            Decision decision = subtreeDecisions.get(parent);
+            if (decision != null) return decision;
+        }
+        return null;
+    }
+
+    /**
+     * Carries out decision for relativePath. Directories are created or trashed right away, so everything below them
+     * can follow, while files are handed to the transfer threads
+     */
+    private void transfer(Path relativePath, Decision decision, TreeListing.Entry local, TreeListing.Entry remote, Map<Path, Decision> subtreeDecisions) {
+        TreeListing.Entry source = (decision == Decision.UPLOAD) ? local : remote;
+        if (decision != Decision.TRASH && source == null) return; // Only in the root being copied to, which cannot happen below a new directory
+
+        try {
+            if (decision == Decision.TRASH) {
+                subtreeDecisions.put(relativePath, decision);
+                if (local != null) localRoot.trash(relativePath);
+                else {
+                    connection.trash(relativePath);
+                    remotelyTrashed.add(relativePath);
+                    options.getMetrics().trashedPath();
+                }
+            }
+            else if (source.directory()) {
+                subtreeDecisions.put(relativePath, decision);
+                if (decision == Decision.UPLOAD) connection.createDirectory(relativePath);
+                else Files.createDirectories(localRoot.resolve(relativePath));
+                if (verbose) System.out.println("COPY: " + relativePath + " from " + ((decision == Decision.UPLOAD) ? localRoot.getNickname() + " to " + remoteNickname : remoteNickname + " to " + localRoot.getNickname()));
+            }
+            else if (decision == Decision.UPLOAD) transfers.execute(() -> upload(relativePath, local, remote != null));
+            else transfers.execute(() -> download(relativePath, remote, local != null));
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not sync '" + relativePath + "' with " + remoteNickname + ": " + ioE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+    }
+
+    private void upload(Path relativePath, TreeListing.Entry local, boolean remoteExists) {
+        long startNanos = System.nanoTime();
+
+        long sentBytes = 0;
+        try {
+            sentBytes = connection.upload(localRoot.resolve(relativePath), relativePath, local.modifiedMillis(), options.getCompressionLevel());
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not copy '" + relativePath + "' to " + remoteNickname + ": " + ioE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+
+        // The agent trashes the version it replaces
+        if (remoteExists) remotelyTrashed.add(relativePath);
+        if (verbose) System.out.println("COPY: " + relativePath + " from " + localRoot.getNickname() + " to " + remoteNickname + compressionSummary(local.size(), sentBytes));
+        options.getMetrics().copiedFile(local.size());
+        options.getMetrics().recordOperation(SyncMetrics.Operation.COPY, startNanos);
+    }
+
+    private void download(Path relativePath, TreeListing.Entry remote, boolean localExists) {
+        long startNanos = System.nanoTime();
+        if (localExists) localRoot.trash(relativePath);
+
+        long receivedBytes = 0;
+        try {
+            receivedBytes = connection.download(relativePath, localRoot.resolve(relativePath), remote.modifiedMillis());
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not copy '" + relativePath + "' from " + remoteNickname + ": " + ioE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+
+        if (verbose) System.out.println("COPY: " + relativePath + " from " + remoteNickname + " to " + localRoot.getNickname() + compressionSummary(remote.size(), receivedBytes));
+        options.getMetrics().copiedFile(remote.size());
+        options.getMetrics().recordOperation(SyncMetrics.Operation.COPY, startNanos);
+    }
+
+    /**
+     * Describes how well a file of fileBytes compressed into transferredBytes, or nothing if compression is off
+     */
+    private String compressionSummary(long fileBytes, long transferredBytes) {
+        if (options.getCompressionLevel() == 0 || fileBytes == 0) return "";
+        return String.format(" (%d of %d bytes sent, ratio %.2f)", transferredBytes, fileBytes, (double) fileBytes / Math.max(1, transferredBytes));
+    }
+
+    private void awaitTransfers() {
+        transfers.shutdown();
+
+        try {
+            while (!transfers.awaitTermination(1, TimeUnit.SECONDS)) ;
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void resolveConflicts(SortedSet<Path> conflicts, SortedMap<Path, TreeListing.Entry> localListing, SortedMap<Path, TreeListing.Entry> remoteListing) {
+        boolean takeAllLocal = false;
+        boolean takeAllRemote = false;
+
+        for (Path conflict : conflicts) {
+            TreeListing.Entry local = localListing.get(conflict);
+            TreeListing.Entry remote = remoteListing.get(conflict);
+
+            Decision decision = (takeAllLocal) ? Decision.UPLOAD : (takeAllRemote) ? Decision.DOWNLOAD : decisionByPolicy(conflict, local, remote);
+
+            while (decision == null) {
+                ZonedDateTime localModified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(local.modifiedMillis()), ZoneId.systemDefault());
+                ZonedDateTime remoteModified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(remote.modifiedMillis()), ZoneId.systemDefault());
+
+                System.out.println(System.lineSeparator() + "Conflict:");
+                System.out.println("\t" + localRoot.getNickname() + " (1): '" + conflict + "' modified " + localModified.format(timestampFormatter));
+                System.out.println("\t" + remoteNickname + " (2): '" + conflict + "' modified " + remoteModified.format(timestampFormatter));
+                System.out.print("Take changes from " + localRoot.getNickname() + " (1) or from " + remoteNickname + " (2)? (Append '!' to take all changes): ");
+
+                String response = getUserInput();
+                if (response.equalsIgnoreCase("1") || response.equalsIgnoreCase("1!")) decision = Decision.UPLOAD;
+                else if (response.equalsIgnoreCase("2") || response.equalsIgnoreCase("2!")) decision = Decision.DOWNLOAD;
+                else System.out.println("Invalid response: '" + response + "'");
+
+                takeAllLocal = response.equalsIgnoreCase("1!");
+                takeAllRemote = response.equalsIgnoreCase("2!");
+            }
+
+            transfer(conflict, decision, local, remote, new HashMap<>());
+        }
+    }
+
+    /**
+     * Returns the side whose version of conflict wins under its policy, or null if the user has to decide. Keeping both
+     * versions is not possible across the connection, so that policy asks as well
+     */
+    private Decision decisionByPolicy(Path conflict, TreeListing.Entry local, TreeListing.Entry remote) {
+        ConflictPolicy.Resolution resolution = conflictPolicy.resolutionFor(conflict);
+
+        Decision decision = switch (resolution.strategy()) {
+            case ASK, KEEP_BOTH -> null;
+            case NEWEST -> newer(local, remote);
+            case LARGEST -> (local.size() == remote.size()) ? newer(local, remote) : (local.size() > remote.size()) ? Decision.UPLOAD : Decision.DOWNLOAD;
+            case PREFER -> {
+                if (resolution.preferredNickname().equals(localRoot.getNickname())) yield Decision.UPLOAD;
+                if (resolution.preferredNickname().equals(remoteNickname)) yield Decision.DOWNLOAD;
+
+                System.err.println("ERROR: No directory is nicknamed '" + resolution.preferredNickname() + "'. Asking about '" + conflict + "' instead");
+                yield null;
+            }
+        };
+
+        if (decision != null && verbose) System.out.println("RESOLVE: '" + conflict + "' taken from " + ((decision == Decision.UPLOAD) ? localRoot.getNickname() : remoteNickname) + " (" + resolution + ")");
+        return decision;
+    }
+
+    private static Decision newer(TreeListing.Entry local, TreeListing.Entry remote) {
+        if (local.modifiedMillis() == remote.modifiedMillis()) return null;
+        return (local.modifiedMillis() > remote.modifiedMillis()) ? Decision.UPLOAD : Decision.DOWNLOAD;
+    }
+
+    private void askToClearTrash() {
+        String[] locallyTrashed = localRoot.getSyncTrash().toFile().list();
+        if ((locallyTrashed == null || locallyTrashed.length == 0) && remotelyTrashed.isEmpty()) return;
+
+        System.out.println(System.lineSeparator() + "All trashed files:");
+        try {
+            Files.walkFileTree(localRoot.getSyncTrash(), new FileNamePrinter(localRoot.getSyncTrash(), localRoot.getNickname() + ": "));
+        } catch (IOException ioE) {
+            System.out.println("Could not print all trashed file names");
+        }
+        for (Path trashed : new TreeSet<>(remotelyTrashed)) {
+            System.out.println(remoteNickname + ": " + trashed);
+        }
+
+        System.out.print("Delete all trashed files? (y/n): ");
+        if (!getUserInput().equalsIgnoreCase("y")) {
+            System.out.println("No trashed files will be deleted");
+            return;
+        }
+
+        localRoot.clearTrash();
+        try {
+            connection.clearTrash();
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not clear the trash of " + remoteNickname + ": " + ioE.getMessage());
+        }
+    }
+
+    /**
+     * Records syncTimeMillis as the time of the last sync in both roots and closes the connection
+     */
+    private void recordSync(long syncTimeMillis) {
+        localRoot.writeExcludedPathsList();
+        localRoot.setLastSync(syncTimeMillis);
+        localRoot.getJournal().finish();
+
+        try {
+            connection.finish(syncTimeMillis);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: " + remoteNickname + " could not record the sync: " + ioE.getMessage() + ". Exiting...");
+            System.exit(1);
+        }
+        connection.close();
+
+        localRoot.awaitTrashPurge();
+        if (options.getMetricsFile() != null) options.getMetrics().writeSummary(options.getMetricsFile());
+    }
+
+    private String getUserInput() {
+        try {
+            String input = userInputReader.readLine();
+            if (input != null) return input;
+        } catch (IOException ioE) {
+            // Handled below
+        }
+
+        System.err.println("ERROR: NO INPUT READABLE");
+        System.exit(1);
+        return "";
+    }
+
+}
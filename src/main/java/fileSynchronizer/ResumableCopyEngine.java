@@ -0,0 +1,173 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies large files so that an interrupted copy can pick up where it stopped. The file is written to
+ * {@code .name.sync_partial} next to the destination in fixed-size chunks. After each chunk is forced to disk, its
+ * offset, length and CRC32C are appended to {@code .name.sync_partial.progress}. A later copy of the same unchanged
+ * source checks the last recorded chunk against the partial file and continues after the last one that verifies.
+ * The finished file is renamed into place, so the destination never holds a partial copy. Smaller files are left to
+ * the configured engine.
+ */
+public class ResumableCopyEngine implements CopyEngine {
+
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private record Chunk(long offset, long length, long checksum) {}
+
+    private final CopyEngine smallFileEngine;
+    private final long minimumSize, chunkSize;
+    private final RateLimiter rateLimiter;
+    private final boolean verbose;
+
+    public ResumableCopyEngine(CopyEngine smallFileEngine, long minimumSize, long chunkSize) {
+        this(smallFileEngine, minimumSize, chunkSize, new RateLimiter(), false);
+    }
+
+    public ResumableCopyEngine(CopyEngine smallFileEngine, long minimumSize, long chunkSize, RateLimiter rateLimiter, boolean verbose) {
+        this.smallFileEngine = smallFileEngine;
+        this.minimumSize = minimumSize;
+        this.chunkSize = chunkSize;
+        this.rateLimiter = rateLimiter;
+        this.verbose = verbose;
+    }
+
+    @Override
+    public void copy(Path source, Path destination, BasicFileAttributes sourceAttributes) throws IOException {
+        if (sourceAttributes.size() < minimumSize) {
+            smallFileEngine.copy(source, destination, sourceAttributes);
+            return;
+        }
+
+        Path partialFile = destination.resolveSibling("." + destination.getFileName() + ".sync_partial");
+        Path progressFile = destination.resolveSibling("." + destination.getFileName() + ".sync_partial.progress");
+        String header = "source " + sourceAttributes.size() + " " + sourceAttributes.lastModifiedTime().toMillis();
+
+        List<Chunk> chunks = verifiedChunks(partialFile, progressFile, header);
+        long position = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).offset() + chunks.get(chunks.size() - 1).length();
+        if (verbose && position > 0) System.out.println("RESUME: copying '" + source.getFileName() + "' from byte " + position + " of " + sourceAttributes.size());
+
+        // Start the progress file over with only the chunks that are known to be good
+        StringBuilder progress = new StringBuilder(header).append('\n');
+        for (Chunk chunk : chunks) {
+            progress.append(chunk.offset()).append(' ').append(chunk.length()).append(' ').append(chunk.checksum()).append('\n');
+        }
+        Files.writeString(progressFile, progress, StandardCharsets.UTF_8);
+
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel partialChannel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel progressChannel = FileChannel.open(progressFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            partialChannel.truncate(position);
+            progressChannel.force(false);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long size = sourceAttributes.size();
+
+            while (position < size) {
+                long length = Math.min(chunkSize, size - position);
+                long checksum = copyChunk(sourceChannel, partialChannel, position, length, buffer);
+                partialChannel.force(false);
+
+                // The chunk is on disk before it is recorded, so a recorded chunk can only be torn if the disk lied
+                progressChannel.write(ByteBuffer.wrap((position + " " + length + " " + checksum + "\n").getBytes(StandardCharsets.UTF_8)));
+                progressChannel.force(false);
+                position += length;
+            }
+        }
+
+        CopyEngine.copyAttributes(source, partialFile, sourceAttributes);
+        Files.move(partialFile, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(progressFile);
+    }
+
+    /**
+     * Returns the chunks recorded for an earlier copy of the same source, up to and including the last one whose
+     * checksum still matches the partial file. Returns nothing if there was no earlier copy or the source has changed
+     */
+    private List<Chunk> verifiedChunks(Path partialFile, Path progressFile, String header) {
+        List<Chunk> chunks = new ArrayList<>();
+        if (!Files.isRegularFile(partialFile) || !Files.isRegularFile(progressFile)) return chunks;
+
+        try {
+            List<String> lines = Files.readAllLines(progressFile, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(header)) return chunks;
+
+            long expectedOffset = 0;
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3) break; // A record cut off by the interruption
+
+                Chunk chunk = new Chunk(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                if (chunk.offset() != expectedOffset) break;
+
+                chunks.add(chunk);
+                expectedOffset += chunk.length();
+            }
+
+            // Earlier chunks were forced before later ones were recorded, so checking the last one is enough
+            try (FileChannel partialChannel = FileChannel.open(partialFile, StandardOpenOption.READ)) {
+                while (!chunks.isEmpty()) {
+                    Chunk last = chunks.get(chunks.size() - 1);
+                    if (partialChannel.size() >= last.offset() + last.length() && checksum(partialChannel, last.offset(), last.length()) == last.checksum()) break;
+                    chunks.remove(chunks.size() - 1);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            chunks.clear();
+        }
+
+        return chunks;
+    }
+
+    private long copyChunk(FileChannel from, FileChannel to, long offset, long length, ByteBuffer buffer) throws IOException {
+        CRC32C crc = new CRC32C();
+        long copied = 0;
+
+        while (copied < length) {
+            buffer.clear().limit((int) Math.min(rateLimiter.pacedChunkSize(buffer.capacity()), length - copied));
+            int read = from.read(buffer, offset + copied);
+            if (read <= 0) throw new IOException("Source ended before byte " + (offset + length));
+
+            rateLimiter.acquireBytes(read);
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                copied += to.write(buffer, offset + copied);
+            }
+        }
+
+        return crc.getValue();
+    }
+
+    private static long checksum(FileChannel channel, long offset, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(1, length)));
+        long checked = 0;
+
+        while (checked < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - checked));
+            int read = channel.read(buffer, offset + checked);
+            if (read <= 0) throw new IOException("Partial file ended before byte " + (offset + length));
+
+            buffer.flip();
+            crc.update(buffer);
+            checked += read;
+        }
+
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,316 @@
+package fileSynchronizer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a root to a {@link RemoteSynchronizer} on another machine, so the root does not have to be mounted there.
+ * The agent scans its root itself and sends the client one compact listing, then answers requests for file contents,
+ * uploads, new directories and trashes over the same connection. Clients are served one at a time.
+ * <p>
+ * Listings and downloads are sent from a pool of threads, so their frames are interleaved on the connection. Uploads
+ * are written to a {@code .name.sync_partial} file next to their destination and renamed into place once complete.
+ * Downloads are compressed at the level the client asked for.
+ * <p>
+ * The agent listens on the address in its options, loopback unless another one is chosen, and only serves clients that
+ * present its secret. Clients cannot write to the root itself or to the files FileSync keeps in it.
+ */
+public class SyncAgent {
+
+    private final String rootPath, nickname;
+    private final boolean verbose;
+    private final SyncOptions options;
+    private final byte[] secret;
+    private final ServerSocket serverSocket;
+
+    /**
+     * Listens on port of the agent bind address in options, or on any free port if port is 0
+     */
+    public SyncAgent(String rootPath, String nickname, int port, boolean verbose, SyncOptions options) throws IOException {
+        if (options.getAgentSecret() == null) throw new IllegalArgumentException("An agent needs a shared secret");
+
+        this.rootPath = rootPath;
+        this.nickname = nickname;
+        this.verbose = verbose;
+        this.options = options;
+        secret = options.getAgentSecret().getBytes(StandardCharsets.UTF_8);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(options.getAgentBindAddress(), port));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Serves clients until {@link #close()} is called
+     */
+    public void run() {
+        if (verbose) System.out.println("AGENT: Serving " + nickname + " on " + serverSocket.getInetAddress().getHostAddress() + " port " + getPort());
+
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                new Session(socket).serve();
+            } catch (SocketException sE) {
+                // The server socket was closed
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Connection to the agent of " + nickname + " failed: " + ioE.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the agent in a background thread
+     */
+    public void start() {
+        Thread agent = new Thread(this::run, "filesync-agent-" + nickname);
+        agent.setDaemon(true);
+        agent.start();
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not stop the agent of " + nickname);
+        }
+    }
+
+    private record Upload(Path relativePath, Path partialFile, long modifiedMillis, FileChannel channel) {}
+
+    /**
+     * The state of one client connection
+     */
+    private class Session {
+
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final ExecutorService senders = Executors.newFixedThreadPool(options.getTransferThreads(), runnable -> {
+            Thread sender = new Thread(runnable, "filesync-agent-sender");
+            sender.setDaemon(true);
+            return sender;
+        });
+        // Uploads are only touched by the thread reading the connection
+        private final Map<Integer, Upload> uploads = new HashMap<>();
+        private FileSyncRoot root;
+        private int compressionLevel = 0;
+
+        Session(Socket socket) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), AgentProtocol.MAX_PAYLOAD));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), AgentProtocol.MAX_PAYLOAD));
+        }
+
+        void serve() throws IOException {
+            try {
+                while (true) {
+                    AgentProtocol.Frame frame = AgentProtocol.readFrame(in);
+                    if (frame.type() == AgentProtocol.BYE) break;
+
+                    try {
+                        handle(frame);
+                    } catch (IOException | RuntimeException e) {
+                        Upload upload = uploads.remove(frame.stream());
+                        if (upload != null) discard(upload);
+                        reply(frame.stream(), AgentProtocol.ERROR, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                        // A client without a successful HELLO gets no second try on this connection
+                        if (root == null) break;
+                    }
+                }
+            } catch (EOFException eofE) {
+                // The client hung up without saying goodbye
+            } finally {
+                senders.shutdownNow();
+                for (Upload upload : uploads.values()) {
+                    discard(upload);
+                }
+                uploads.clear();
+            }
+        }
+
+        private void handle(AgentProtocol.Frame frame) throws IOException {
+            if (frame.type() != AgentProtocol.HELLO && root == null) throw new IOException("HELLO has to come first");
+
+            DataInputStream payload = frame.payloadStream();
+            switch (frame.type()) {
+                case AgentProtocol.HELLO -> hello(frame.stream(), payload);
+                case AgentProtocol.LIST -> list(frame.stream(), payload);
+                case AgentProtocol.GET -> {
+                    options.getRateLimiter().acquireOperation();
+                    Path relativePath = AgentProtocol.decodePath(payload.readUTF());
+                    senders.execute(() -> send(frame.stream(), relativePath));
+                }
+                case AgentProtocol.PUT -> {
+                    options.getRateLimiter().acquireOperation();
+                    Path relativePath = writablePath(payload);
+                    long modifiedMillis = payload.readLong();
+
+                    Path destination = root.resolve(relativePath);
+                    Files.createDirectories(destination.getParent());
+                    Path partialFile = destination.resolveSibling("." + destination.getFileName() + ".sync_partial");
+                    FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                    uploads.put(frame.stream(), new Upload(relativePath, partialFile, modifiedMillis, channel));
+                }
+                case AgentProtocol.DATA, AgentProtocol.DATA_DEFLATED -> {
+                    Upload upload = uploads.get(frame.stream());
+                    if (upload == null) throw new IOException("No upload on stream " + frame.stream());
+
+                    ByteBuffer data = ByteBuffer.wrap(AgentProtocol.chunkOf(frame));
+                    options.getRateLimiter().acquireBytes(data.remaining());
+                    while (data.hasRemaining()) {
+                        upload.channel().write(data);
+                    }
+                }
+                case AgentProtocol.END -> {
+                    Upload upload = uploads.remove(frame.stream());
+                    if (upload == null) throw new IOException("No upload on stream " + frame.stream());
+
+                    finishUpload(upload);
+                    reply(frame.stream(), AgentProtocol.OK, new byte[0]);
+                }
+                case AgentProtocol.MKDIR -> {
+                    Files.createDirectories(root.resolve(writablePath(payload)));
+                    reply(frame.stream(), AgentProtocol.OK, new byte[0]);
+                }
+                case AgentProtocol.TRASH -> {
+                    root.trash(writablePath(payload));
+                    reply(frame.stream(), AgentProtocol.OK, new byte[0]);
+                }
+                case AgentProtocol.CLEAR_TRASH -> {
+                    root.clearTrash();
+                    reply(frame.stream(), AgentProtocol.OK, new byte[0]);
+                }
+                case AgentProtocol.FINISH -> {
+                    root.writeExcludedPathsList();
+                    root.setLastSync(payload.readLong());
+                    root.getJournal().finish();
+                    reply(frame.stream(), AgentProtocol.OK, new byte[0]);
+                }
+                default -> throw new IOException("Unrecognized request " + frame.type());
+            }
+        }
+
+        private void hello(int stream, DataInputStream payload) throws IOException {
+            int version = payload.readInt();
+            if (version != AgentProtocol.VERSION) throw new IOException("Agent speaks protocol version " + AgentProtocol.VERSION + ", not " + version);
+            // Compared in constant time, so the reply time does not give away how much of the secret was right
+            if (!MessageDigest.isEqual(secret, payload.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("ERROR: Refused a client of the agent of " + nickname + " with the wrong secret");
+                throw new IOException("Wrong secret");
+            }
+
+            String clientNickname = payload.readUTF();
+            compressionLevel = payload.readInt();
+            root = new FileSyncRoot(rootPath, nickname, clientNickname, verbose, options);
+            if (verbose) System.out.println("AGENT: Syncing " + nickname + " with " + clientNickname);
+
+            Set<String> excludedPaths = root.getExcludedPaths();
+            reply(stream, AgentProtocol.OK, AgentProtocol.payload(reply -> {
+                reply.writeUTF(nickname);
+                reply.writeLong(root.getLastSyncMillis());
+                reply.writeInt(excludedPaths.size());
+                for (String excluded : excludedPaths) {
+                    reply.writeUTF(excluded);
+                }
+            }));
+        }
+
+        /**
+         * Adopts the exclusions of both roots, which the client sends along, and lists the root in the background
+         */
+        private void list(int stream, DataInputStream payload) throws IOException {
+            Set<String> excludedPaths = new HashSet<>(root.getExcludedPaths());
+            for (int count = payload.readInt(); count > 0; count--) {
+                excludedPaths.add(payload.readUTF());
+            }
+
+            ExclusionMatcher exclusions = ExclusionMatcher.compile(excludedPaths);
+            root.setExcludedPaths(excludedPaths, exclusions);
+
+            senders.execute(() -> {
+                try {
+                    AgentProtocol.writeListing(out, stream, TreeListing.scan(root.getRoot(), exclusions));
+                } catch (IOException ioE) {
+                    replyQuietly(stream, AgentProtocol.ERROR, ("Could not list " + nickname).getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        }
+
+        /**
+         * Reads the path of a request that changes the root. The root itself and the files FileSync keeps in it are refused
+         */
+        private Path writablePath(DataInputStream payload) throws IOException {
+            Path relativePath = AgentProtocol.decodePath(payload.readUTF());
+            if (AgentProtocol.isControlPath(relativePath)) throw new IOException("'" + relativePath + "' is kept by FileSync and cannot be changed by a client");
+            return relativePath;
+        }
+
+        private void send(int stream, Path relativePath) {
+            TransferCompressor compressor = new TransferCompressor(relativePath, compressionLevel);
+
+            try (FileChannel channel = FileChannel.open(root.resolve(relativePath), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(AgentProtocol.MAX_PAYLOAD);
+
+                while (channel.read(buffer.clear()) > 0) {
+                    options.getRateLimiter().acquireBytes(buffer.position());
+                    compressor.writeChunk(out, stream, buffer.array(), buffer.position());
+                }
+                reply(stream, AgentProtocol.END, new byte[0]);
+            } catch (IOException ioE) {
+                replyQuietly(stream, AgentProtocol.ERROR, ("Could not read '" + relativePath + "' in " + nickname).getBytes(StandardCharsets.UTF_8));
+            } finally {
+                compressor.close();
+            }
+        }
+
+        /**
+         * Replaces the destination with the finished upload. An older version is trashed first, as in a local copy
+         */
+        private void finishUpload(Upload upload) throws IOException {
+            upload.channel().force(false);
+            upload.channel().close();
+            Files.setLastModifiedTime(upload.partialFile(), FileTime.fromMillis(upload.modifiedMillis()));
+
+            Path destination = root.resolve(upload.relativePath());
+            if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) root.trash(upload.relativePath());
+            Files.move(upload.partialFile(), destination, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void discard(Upload upload) {
+            try {
+                upload.channel().close();
+                Files.deleteIfExists(upload.partialFile());
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Could not delete '" + upload.partialFile() + "'");
+            }
+        }
+
+        private void reply(int stream, byte type, byte[] payload) throws IOException {
+            AgentProtocol.writeFrame(out, stream, type, payload);
+        }
+
+        private void replyQuietly(int stream, byte type, byte[] payload) {
+            try {
+                reply(stream, type, payload);
+            } catch (IOException ioE) {
+                // The connection is gone, which the reading thread notices too
+            }
+        }
+    }
+
+}
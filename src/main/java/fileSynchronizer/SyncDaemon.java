@@ -0,0 +1,193 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps two roots in sync continuously. Both trees are watched with a {@link WatchService}, changed paths are collected
+ * until no new event has arrived for the debounce interval, and then only those paths are synced. If the watch service
+ * drops events for a directory, that directory is rescanned as a whole.
+ */
+public class SyncDaemon {
+
+    // Flush a batch after this many debounce intervals even if events keep arriving
+    private static final int MAX_DEBOUNCE_ROUNDS = 10;
+
+    private final FileSynchronizer synchronizer;
+    private final FileSyncRoot localRoot, remoteRoot;
+    private final long debounceMillis;
+    private final boolean verbose;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final SortedSet<Path> pendingConflicts = new TreeSet<>();
+
+    private long lastSyncMillis;
+
+    public SyncDaemon(FileSynchronizer synchronizer, long lastSyncMillis, long debounceMillis, boolean verbose) throws IOException {
+        this.synchronizer = synchronizer;
+        this.lastSyncMillis = lastSyncMillis;
+        this.debounceMillis = debounceMillis;
+        this.verbose = verbose;
+
+        localRoot = synchronizer.getLocalRoot();
+        remoteRoot = synchronizer.getRemoteRoot();
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watches both roots and syncs changes until {@link #stop()} is called
+     */
+    public void run() {
+        try {
+            watchTree(localRoot, Path.of(""));
+            watchTree(remoteRoot, Path.of(""));
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not watch '" + localRoot.getRoot() + "' and '" + remoteRoot.getRoot() + "'. Exiting...");
+            System.exit(1);
+        }
+
+        if (verbose) System.out.println("WATCH: Watching " + localRoot.getNickname() + " and " + remoteRoot.getNickname() + " for changes");
+
+        try {
+            while (true) {
+                SortedSet<Path> changedPaths = new TreeSet<>();
+
+                // Block until something changes, then keep collecting until the trees have been quiet for the debounce interval
+                collectEvents(watcher.take(), changedPaths);
+                for (int round = 0; round < MAX_DEBOUNCE_ROUNDS; round++) {
+                    WatchKey key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                    if (key == null) break;
+
+                    collectEvents(key, changedPaths);
+                }
+
+                // Pick up anything already queued so no event is left behind the new sync time
+                WatchKey queued;
+                while ((queued = watcher.poll()) != null) {
+                    collectEvents(queued, changedPaths);
+                }
+
+                synchronizeChanges(changedPaths);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            if (verbose) System.out.println("WATCH: Stopped watching " + localRoot.getNickname() + " and " + remoteRoot.getNickname());
+        }
+    }
+
+    public void stop() {
+        try {
+            watcher.close();
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not stop watching '" + localRoot.getRoot() + "' and '" + remoteRoot.getRoot() + "'");
+        }
+    }
+
+    private void synchronizeChanges(SortedSet<Path> changedPaths) {
+        SortedSet<Path> scopes = syncScopes(changedPaths);
+        if (scopes.isEmpty()) return;
+
+        long batchStartMillis = System.currentTimeMillis();
+        if (verbose) System.out.println("SYNC: " + scopes.size() + " changed path(s)");
+
+        // Watch new directories before syncing them, so nothing created inside them in the meantime goes unnoticed
+        watchScopes(scopes);
+
+        SortedSet<Path> conflicts = synchronizer.synchronizePaths(scopes, lastSyncMillis);
+        pendingConflicts.removeIf(conflict -> scopes.stream().anyMatch(conflict::startsWith));
+        pendingConflicts.addAll(conflicts);
+
+        for (Path conflict : conflicts) {
+            System.out.println("CONFLICT: '" + conflict + "' was modified in both " + localRoot.getNickname() + " and " + remoteRoot.getNickname() + ". Both versions are kept until the next interactive sync");
+        }
+
+        // Watch directories that this sync created
+        watchScopes(scopes);
+
+        lastSyncMillis = batchStartMillis;
+
+        // Holding back the sync record keeps unresolved conflicts visible to the next interactive sync
+        if (pendingConflicts.isEmpty()) synchronizer.recordSync(batchStartMillis);
+    }
+
+    /**
+     * Reduces the changed paths to the smallest set of subtrees that covers them. Each path is widened to its nearest
+     * ancestor that exists in both roots, since anything below a missing directory is copied or trashed as a whole
+     */
+    private SortedSet<Path> syncScopes(SortedSet<Path> changedPaths) {
+        SortedSet<Path> widened = new TreeSet<>();
+        for (Path changed : changedPaths) {
+            Path scope = changed;
+            while (scope.getParent() != null && !(Files.isDirectory(localRoot.resolve(scope.getParent())) && Files.isDirectory(remoteRoot.resolve(scope.getParent())))) {
+                scope = scope.getParent();
+            }
+            widened.add(scope);
+        }
+
+        SortedSet<Path> scopes = new TreeSet<>();
+        for (Path scope : widened) {
+            if (scopes.stream().noneMatch(scope::startsWith)) scopes.add(scope);
+        }
+
+        return scopes;
+    }
+
+    private void watchScopes(SortedSet<Path> scopes) {
+        for (Path scope : scopes) {
+            try {
+                if (Files.isDirectory(localRoot.resolve(scope))) watchTree(localRoot, scope);
+                if (Files.isDirectory(remoteRoot.resolve(scope))) watchTree(remoteRoot, scope);
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Could not watch new directory '" + scope + "'");
+            }
+        }
+    }
+
+    private void collectEvents(WatchKey key, SortedSet<Path> changedPaths) {
+        Path relativeDirectory = watchedDirectories.get(key);
+        if (relativeDirectory == null) {
+            key.cancel();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Events were dropped, so rescan the whole directory they belonged to
+                changedPaths.add(relativeDirectory);
+                continue;
+            }
+
+            Path changed = relativeDirectory.resolve((Path) event.context());
+            if (!synchronizer.getExclusions().isExcluded(changed)) changedPaths.add(changed);
+        }
+
+        if (!key.reset()) {
+            // The directory itself is gone, so sync it as a whole
+            watchedDirectories.remove(key);
+            changedPaths.add(relativeDirectory);
+        }
+    }
+
+    private void watchTree(FileSyncRoot root, Path relativeDirectory) throws IOException {
+        Files.walkFileTree(root.resolve(relativeDirectory), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
+                Path relativePath = root.getRoot().relativize(path);
+                if (synchronizer.getExclusions().isExcluded(relativePath)) return FileVisitResult.SKIP_SUBTREE;
+
+                watchedDirectories.put(path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), relativePath);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
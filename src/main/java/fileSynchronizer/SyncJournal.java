@@ -0,0 +1,219 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only record of the copies, trashes and moves a sync has made into a root since its last completed sync. The
+ * journal is deleted once a sync is recorded in .sync_log, so finding one at startup means the previous sync was
+ * interrupted. Copies that were started but never finished are remembered, so the next sync can finish them instead of
+ * mistaking their half-written files for conflicts or trashing the parts that were not copied yet.
+ * <p>
+ * Records are written in batches and forced to disk every few hundred milliseconds rather than once per operation. The
+ * start of a copy that may take a while (a directory or a large file) is forced right away, since losing that record
+ * is what would leave a partial copy unrecognized.
+ */
+public final class SyncJournal {
+
+    // Copies of files at least this large have their start forced to disk immediately
+    private static final long DURABLE_BEGIN_BYTES = 1024 * 1024;
+    private static final int MAX_PENDING_RECORDS = 512;
+
+    private final Path journalFile;
+    private final long syncIntervalMillis;
+
+    // Relative path -> nickname of the source root, for every copy that was started but not finished
+    private final Map<Path, String> interruptedCopies = new ConcurrentHashMap<>();
+    private int completedBeforeInterruption = 0;
+
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingRecords = 0;
+    private FileChannel channel;
+    private Thread flusher;
+
+    private SyncJournal(Path journalFile, long syncIntervalMillis) {
+        this.journalFile = journalFile;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Reads the journal left behind by an interrupted sync at journalFile, if there is one
+     */
+    public static SyncJournal load(Path journalFile, long syncIntervalMillis) {
+        SyncJournal journal = new SyncJournal(journalFile, syncIntervalMillis);
+        if (!Files.isRegularFile(journalFile)) return journal;
+
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not read journal '" + journalFile + "'. Interrupted copies will not be recognized");
+            return journal;
+        }
+
+        for (String line : lines) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 2) continue; // A record cut off by the interruption
+
+            Path relativePath = Path.of(unescape(fields[fields.length - 1]));
+            switch (fields[0]) {
+                case "BEGIN" -> {
+                    if (fields.length == 3) journal.interruptedCopies.put(relativePath, unescape(fields[1]));
+                }
+                case "DONE" -> {
+                    journal.interruptedCopies.remove(relativePath);
+                    journal.completedBeforeInterruption++;
+                }
+                case "TRASH", "MOVE" -> journal.completedBeforeInterruption++;
+            }
+        }
+
+        return journal;
+    }
+
+    /**
+     * Returns true if the last sync into this root stopped before it finished
+     */
+    public boolean wasInterrupted() {
+        return completedBeforeInterruption > 0 || !interruptedCopies.isEmpty();
+    }
+
+    public int getCompletedBeforeInterruption() {
+        return completedBeforeInterruption;
+    }
+
+    public Map<Path, String> getInterruptedCopies() {
+        return Map.copyOf(interruptedCopies);
+    }
+
+    /**
+     * Returns the nickname of the root that relativePath, or a directory above it, was being copied from when the last
+     * sync was interrupted, or null if no such copy was left unfinished
+     */
+    public String interruptedCopySource(Path relativePath) {
+        if (interruptedCopies.isEmpty()) return null;
+
+        for (Path path = relativePath; path != null; path = path.getParent()) {
+            String source = interruptedCopies.get(path);
+            if (source != null) return source;
+        }
+
+        return interruptedCopies.get(Path.of(""));
+    }
+
+    public void beginCopy(Path relativePath, String sourceNickname, boolean directory, long bytes) {
+        append("BEGIN\t" + escape(sourceNickname) + "\t" + escape(relativePath.toString()), directory || bytes >= DURABLE_BEGIN_BYTES);
+    }
+
+    public void completeCopy(Path relativePath) {
+        interruptedCopies.remove(relativePath);
+        append("DONE\t" + escape(relativePath.toString()), false);
+    }
+
+    public void trashed(Path relativePath) {
+        append("TRASH\t" + escape(relativePath.toString()), false);
+    }
+
+    public void moved(Path fromRelativePath, Path toRelativePath) {
+        append("MOVE\t" + escape(fromRelativePath.toString()) + "\t" + escape(toRelativePath.toString()), false);
+    }
+
+    private synchronized void append(String record, boolean durableNow) {
+        pending.append(record).append('\n');
+        pendingRecords++;
+
+        if (durableNow || pendingRecords >= MAX_PENDING_RECORDS) flush();
+        else if (flusher == null) startFlusher();
+    }
+
+    /**
+     * Writes every pending record and forces the journal to disk
+     */
+    public synchronized void flush() {
+        if (pendingRecords == 0) return;
+
+        try {
+            if (channel == null) channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+            ByteBuffer bytes = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not write journal '" + journalFile + "'");
+        }
+
+        pending.setLength(0);
+        pendingRecords = 0;
+    }
+
+    private void startFlusher() {
+        flusher = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(syncIntervalMillis);
+                    flush();
+                }
+            } catch (InterruptedException iE) {
+                // Stopped by finish()
+            }
+        }, "filesync-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Deletes the journal once the sync it covers has been recorded, so the next sync starts with an empty one
+     */
+    public void finish() {
+        Thread stoppedFlusher;
+        synchronized (this) {
+            stoppedFlusher = flusher;
+            flusher = null;
+            pending.setLength(0);
+            pendingRecords = 0;
+
+            try {
+                if (channel != null) channel.close();
+                Files.deleteIfExists(journalFile);
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Could not delete journal '" + journalFile + "'");
+            }
+
+            channel = null;
+            interruptedCopies.clear();
+            completedBeforeInterruption = 0;
+        }
+
+        if (stoppedFlusher != null) stoppedFlusher.interrupt();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                unescaped.append(c);
+                continue;
+            }
+
+            char escaped = value.charAt(++i);
+            unescaped.append((escaped == 't') ? '\t' : (escaped == 'n') ? '\n' : escaped);
+        }
+        return unescaped.toString();
+    }
+
+}
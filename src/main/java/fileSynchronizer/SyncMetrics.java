@@ -0,0 +1,280 @@
+package fileSynchronizer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, phase times and latency histograms for every sync run by this process. All updates are lock-free, so the
+ * comparison and transfer threads can record into one instance without contending. The totals are cumulative: a
+ * daemon keeps adding to them with every batch it syncs.
+ */
+public final class SyncMetrics implements SyncMetricsMXBean {
+
+    /**
+     * Where a sync spends its time. Scan, copy and trash are summed over all threads, so with several threads they can
+     * add up to more than the wall time. Compare, conflict resolution and trash clearing are wall times
+     */
+    public enum Phase {
+        SCAN, COMPARE, COPY, TRASH, CONFLICT_RESOLUTION, TRASH_CLEARING
+    }
+
+    /**
+     * Individual operations whose latency is recorded in a histogram, and the phase their time counts towards
+     */
+    public enum Operation {
+        STAT(Phase.SCAN), LIST(Phase.SCAN), COPY(Phase.COPY), TRASH(Phase.TRASH), CLEAR_TRASH(Phase.TRASH_CLEARING);
+
+        private final Phase phase;
+
+        Operation(Phase phase) {
+            this.phase = phase;
+        }
+    }
+
+    private final Instant startedAt = Instant.now();
+
+    private final LongAdder filesScanned = new LongAdder();
+    private final LongAdder directoriesScanned = new LongAdder();
+    private final LongAdder filesCopied = new LongAdder();
+    private final LongAdder bytesCopied = new LongAdder();
+    private final LongAdder pathsTrashed = new LongAdder();
+    private final LongAdder pathsMoved = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder exclusionsHit = new LongAdder();
+
+    private final Map<Phase, LongAdder> phaseNanos = new LinkedHashMap<>();
+    private final Map<Operation, Histogram> histograms = new LinkedHashMap<>();
+
+    public SyncMetrics() {
+        for (Phase phase : Phase.values()) phaseNanos.put(phase, new LongAdder());
+        for (Operation operation : Operation.values()) histograms.put(operation, new Histogram());
+    }
+
+    public void scannedFile() {
+        filesScanned.increment();
+    }
+
+    public void scannedDirectory() {
+        directoriesScanned.increment();
+    }
+
+    public void copiedFile(long bytes) {
+        filesCopied.increment();
+        bytesCopied.add(bytes);
+    }
+
+    public void trashedPath() {
+        pathsTrashed.increment();
+    }
+
+    public void movedPath() {
+        pathsMoved.increment();
+    }
+
+    public void conflict() {
+        conflicts.increment();
+    }
+
+    public void excluded() {
+        exclusionsHit.increment();
+    }
+
+    /**
+     * Records an operation that started at startNanos, as returned by {@link System#nanoTime()}, and ended now
+     */
+    public void recordOperation(Operation operation, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        histograms.get(operation).record(elapsedNanos);
+        phaseNanos.get(operation.phase).add(elapsedNanos);
+    }
+
+    /**
+     * Records a phase that started at startNanos, as returned by {@link System#nanoTime()}, and ended now
+     */
+    public void recordPhase(Phase phase, long startNanos) {
+        phaseNanos.get(phase).add(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getFilesScanned() {
+        return filesScanned.sum();
+    }
+
+    @Override
+    public long getDirectoriesScanned() {
+        return directoriesScanned.sum();
+    }
+
+    @Override
+    public long getFilesCopied() {
+        return filesCopied.sum();
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    @Override
+    public long getPathsTrashed() {
+        return pathsTrashed.sum();
+    }
+
+    @Override
+    public long getPathsMoved() {
+        return pathsMoved.sum();
+    }
+
+    @Override
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    @Override
+    public long getExclusionsHit() {
+        return exclusionsHit.sum();
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        phaseNanos.forEach((phase, nanos) -> millis.put(name(phase), nanos.sum() / 1_000_000));
+        return millis;
+    }
+
+    @Override
+    public String getSummaryJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"startedAt\": \"").append(startedAt).append("\",\n");
+        json.append("  \"writtenAt\": \"").append(Instant.now()).append("\",\n");
+
+        json.append("  \"counters\": {\n");
+        json.append("    \"filesScanned\": ").append(getFilesScanned()).append(",\n");
+        json.append("    \"directoriesScanned\": ").append(getDirectoriesScanned()).append(",\n");
+        json.append("    \"filesCopied\": ").append(getFilesCopied()).append(",\n");
+        json.append("    \"bytesCopied\": ").append(getBytesCopied()).append(",\n");
+        json.append("    \"pathsTrashed\": ").append(getPathsTrashed()).append(",\n");
+        json.append("    \"pathsMoved\": ").append(getPathsMoved()).append(",\n");
+        json.append("    \"conflicts\": ").append(getConflicts()).append(",\n");
+        json.append("    \"exclusionsHit\": ").append(getExclusionsHit()).append("\n");
+        json.append("  },\n");
+
+        json.append("  \"phaseMillis\": {\n");
+        int remaining = phaseNanos.size();
+        for (Map.Entry<Phase, LongAdder> entry : phaseNanos.entrySet()) {
+            json.append("    \"").append(name(entry.getKey())).append("\": ").append(millis(entry.getValue().sum()));
+            json.append((--remaining > 0) ? ",\n" : "\n");
+        }
+        json.append("  },\n");
+
+        json.append("  \"operations\": {\n");
+        remaining = histograms.size();
+        for (Map.Entry<Operation, Histogram> entry : histograms.entrySet()) {
+            json.append("    \"").append(name(entry.getKey())).append("\": ").append(entry.getValue().toJson());
+            json.append((--remaining > 0) ? ",\n" : "\n");
+        }
+        json.append("  }\n");
+
+        return json.append("}\n").toString();
+    }
+
+    /**
+     * Writes the summary to file, replacing it atomically so a reader never sees a partial summary
+     */
+    public void writeSummary(Path file) {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try {
+            Files.writeString(temporaryFile, getSummaryJson(), StandardCharsets.UTF_8);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not write metrics to '" + file + "'");
+        }
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("fileSynchronizer:type=SyncMetrics"));
+        } catch (JMException jmE) {
+            System.err.println("ERROR: Could not register metrics with JMX: " + jmE.getMessage());
+        }
+    }
+
+    private static String name(Enum<?> constant) {
+        // CONFLICT_RESOLUTION -> conflictResolution
+        String[] words = constant.name().toLowerCase(Locale.ROOT).split("_");
+        StringBuilder name = new StringBuilder(words[0]);
+        for (int i = 1; i < words.length; i++) {
+            name.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+        }
+
+        return name.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    /**
+     * Latency histogram with power-of-two buckets. Percentiles are reported as the upper bound of the bucket they fall
+     * in, so they are accurate to within a factor of two, which is enough to tell a slow disk from a slow network
+     */
+    private static final class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            long clamped = Math.max(1, nanos);
+            buckets[63 - Long.numberOfLeadingZeros(clamped)].increment();
+            count.increment();
+            totalNanos.add(clamped);
+            maxNanos.accumulate(clamped);
+        }
+
+        long percentileNanos(double quantile, long total) {
+            long threshold = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= threshold) return Math.min((i == 62) ? Long.MAX_VALUE : (1L << (i + 1)), maxNanos.get());
+            }
+
+            return maxNanos.get();
+        }
+
+        String toJson() {
+            long total = count.sum();
+            if (total == 0) return "{\"count\": 0}";
+
+            return "{\"count\": " + total
+                    + ", \"totalMillis\": " + millis(totalNanos.sum())
+                    + ", \"p50Millis\": " + millis(percentileNanos(0.50, total))
+                    + ", \"p90Millis\": " + millis(percentileNanos(0.90, total))
+                    + ", \"p99Millis\": " + millis(percentileNanos(0.99, total))
+                    + ", \"maxMillis\": " + millis(maxNanos.get()) + "}";
+        }
+    }
+
+}
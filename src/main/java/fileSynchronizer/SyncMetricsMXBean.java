@@ -0,0 +1,36 @@
+package fileSynchronizer;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SyncMetrics}. Registered as {@code fileSynchronizer:type=SyncMetrics} when FileSync runs with {@code --jmx}
+ */
+public interface SyncMetricsMXBean {
+
+    long getFilesScanned();
+
+    long getDirectoriesScanned();
+
+    long getFilesCopied();
+
+    long getBytesCopied();
+
+    long getPathsTrashed();
+
+    long getPathsMoved();
+
+    long getConflicts();
+
+    long getExclusionsHit();
+
+    /**
+     * Milliseconds spent in each phase, keyed by phase name
+     */
+    Map<String, Long> getPhaseMillis();
+
+    /**
+     * The full summary, including latency histograms, in the same JSON format as the metrics file
+     */
+    String getSummaryJson();
+
+}
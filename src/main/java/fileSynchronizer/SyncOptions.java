@@ -0,0 +1,518 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tunables for a sync run. Every option has a default that matches the behaviour of a plain
+ * {@code filesync <dir1> <dir2> <nick1> <nick2>} invocation, so callers only set what they need.
+ */
+public final class SyncOptions {
+
+    private int comparisonThreads = Runtime.getRuntime().availableProcessors();
+    private boolean daemon = false;
+    private long debounceMillis = 500;
+    private boolean verifyContent = false;
+    private boolean deltaTransfer = false;
+    private long deltaMinimumSize = 8L * 1024 * 1024;
+    private CopyEngine.Strategy copyStrategy = CopyEngine.Strategy.FILES;
+    private int copyChunkSize = 8 * 1024 * 1024;
+    private CopyEngine copyEngine;
+    private boolean verboseCopies = false;
+    private long resumableCopyMinimumSize = 256L * 1024 * 1024;
+    private int transferThreads = 4;
+    private int maxQueuedTransfers = 1024;
+    private long maxBytesInFlight = 256L * 1024 * 1024;
+    private boolean detectMoves = false;
+    private ConflictPolicy.Resolution defaultConflictResolution = ConflictPolicy.Resolution.ASK;
+    private Path metricsFile;
+    private boolean jmx = false;
+    private boolean dryRun = false;
+    private boolean executePlan = false;
+    private Path planFile;
+    private long journalSyncMillis = 200;
+    private int agentPort = 0;
+    private InetAddress agentBindAddress = InetAddress.getLoopbackAddress();
+    private String agentSecret;
+    private int compressionLevel = 0;
+    private Path versionStoreDirectory;
+    private int keepVersions = 0;
+    private long versionMaxAgeMillis = 0;
+    private long versionStoreMaxBytes = 0;
+    private VersionHistory versionHistory;
+    private long maxBytesPerSecond = 0;
+    private long maxOperationsPerSecond = 0;
+    private Path rateLimitFile;
+    private RateLimiter rateLimiter;
+    private boolean listVersions = false;
+    private long restoreMillis = -1;
+    private final SyncMetrics metrics = new SyncMetrics();
+
+    public int getComparisonThreads() {
+        return comparisonThreads;
+    }
+
+    /**
+     * Number of threads used to compare the two file trees. Directory metadata is read in parallel,
+     * which pays off most when the roots live on fast storage or high-latency network mounts
+     */
+    public void setComparisonThreads(int comparisonThreads) {
+        if (comparisonThreads < 1) throw new IllegalArgumentException("Comparison thread count must be at least 1");
+        this.comparisonThreads = comparisonThreads;
+    }
+
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    /**
+     * Keep running after the initial sync and sync every change as it happens
+     */
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    /**
+     * How long the daemon waits for the trees to go quiet before it syncs the changes it has collected
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        if (debounceMillis < 0) throw new IllegalArgumentException("Debounce interval cannot be negative");
+        this.debounceMillis = debounceMillis;
+    }
+
+    public boolean isVerifyContent() {
+        return verifyContent;
+    }
+
+    /**
+     * Compare file contents before copying or reporting a conflict, and skip files whose bytes are already identical
+     */
+    public void setVerifyContent(boolean verifyContent) {
+        this.verifyContent = verifyContent;
+    }
+
+    public boolean isDeltaTransfer() {
+        return deltaTransfer;
+    }
+
+    /**
+     * Update large files that already exist on the destination by writing only the blocks that changed.
+     * Files updated this way are changed in place, so their previous version is not kept in the trash
+     */
+    public void setDeltaTransfer(boolean deltaTransfer) {
+        this.deltaTransfer = deltaTransfer;
+    }
+
+    public long getDeltaMinimumSize() {
+        return deltaMinimumSize;
+    }
+
+    /**
+     * Smallest file, in bytes, that is updated with a delta transfer instead of a full copy
+     */
+    public void setDeltaMinimumSize(long deltaMinimumSize) {
+        if (deltaMinimumSize < 0) throw new IllegalArgumentException("Delta minimum size cannot be negative");
+        this.deltaMinimumSize = deltaMinimumSize;
+    }
+
+    /**
+     * Returns true if the file at destination should be brought up to date with a delta transfer from a source of sourceSize bytes
+     */
+    public boolean usesDeltaTransfer(long sourceSize, Path destination) {
+        return deltaTransfer && sourceSize >= deltaMinimumSize && Files.isRegularFile(destination);
+    }
+
+    public CopyEngine.Strategy getCopyStrategy() {
+        return copyStrategy;
+    }
+
+    /**
+     * How file contents are copied: Files.copy (FILES), FileChannel.transferTo (TRANSFER), a file system clone with
+     * transferTo as fallback (REFLINK) or a plain heap buffer (BUFFERED)
+     */
+    public synchronized void setCopyStrategy(CopyEngine.Strategy copyStrategy) {
+        this.copyStrategy = copyStrategy;
+        copyEngine = null;
+    }
+
+    public int getCopyChunkSize() {
+        return copyChunkSize;
+    }
+
+    /**
+     * Bytes moved per transferTo call or buffer fill by the TRANSFER, REFLINK and BUFFERED strategies
+     */
+    public synchronized void setCopyChunkSize(int copyChunkSize) {
+        if (copyChunkSize < 1) throw new IllegalArgumentException("Copy chunk size must be at least 1 byte");
+        this.copyChunkSize = copyChunkSize;
+        copyEngine = null;
+    }
+
+    public long getResumableCopyMinimumSize() {
+        return resumableCopyMinimumSize;
+    }
+
+    /**
+     * Smallest file that is copied through a partial file in checksummed chunks, so an interrupted copy can be resumed
+     * instead of starting over
+     */
+    public synchronized void setResumableCopyMinimumSize(long resumableCopyMinimumSize) {
+        if (resumableCopyMinimumSize < 1) throw new IllegalArgumentException("Resumable copy minimum size must be at least 1 byte");
+        this.resumableCopyMinimumSize = resumableCopyMinimumSize;
+        copyEngine = null;
+    }
+
+    /**
+     * Returns the copy engine for the configured strategy. The engine is shared by every copy of a sync
+     */
+    public synchronized CopyEngine getCopyEngine() {
+        if (copyEngine == null) copyEngine = CopyEngine.create(copyStrategy, copyChunkSize, resumableCopyMinimumSize, getRateLimiter(), verboseCopies);
+        return copyEngine;
+    }
+
+    public boolean isVerboseCopies() {
+        return verboseCopies;
+    }
+
+    /**
+     * Have the copy engine report what it does beyond the copy itself, such as resuming an interrupted copy
+     */
+    public synchronized void setVerboseCopies(boolean verboseCopies) {
+        this.verboseCopies = verboseCopies;
+        copyEngine = null;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Bytes of file contents that copies and agent transfers may move per second, or 0 for no limit
+     */
+    public synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) throw new IllegalArgumentException("Maximum bytes per second cannot be negative");
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        rateLimiter = null;
+        copyEngine = null;
+    }
+
+    public long getMaxOperationsPerSecond() {
+        return maxOperationsPerSecond;
+    }
+
+    /**
+     * Files and directories that may be copied, moved, trashed or purged from the trash per second, or 0 for no limit
+     */
+    public synchronized void setMaxOperationsPerSecond(long maxOperationsPerSecond) {
+        if (maxOperationsPerSecond < 0) throw new IllegalArgumentException("Maximum operations per second cannot be negative");
+        this.maxOperationsPerSecond = maxOperationsPerSecond;
+        rateLimiter = null;
+        copyEngine = null;
+    }
+
+    public Path getRateLimitFile() {
+        return rateLimitFile;
+    }
+
+    /**
+     * File whose max-bytes-per-second and max-operations-per-second lines override the limits while a sync runs, or
+     * null to keep the limits fixed
+     */
+    public synchronized void setRateLimitFile(Path rateLimitFile) {
+        this.rateLimitFile = rateLimitFile;
+        rateLimiter = null;
+        copyEngine = null;
+    }
+
+    /**
+     * Returns the rate limiter shared by every copy, move and trash made with these options
+     */
+    public synchronized RateLimiter getRateLimiter() {
+        if (rateLimiter == null) rateLimiter = new RateLimiter(maxBytesPerSecond, maxOperationsPerSecond, rateLimitFile);
+        return rateLimiter;
+    }
+
+    public int getTransferThreads() {
+        return transferThreads;
+    }
+
+    /**
+     * Number of threads copying and trashing files while the comparison is running
+     */
+    public void setTransferThreads(int transferThreads) {
+        if (transferThreads < 1) throw new IllegalArgumentException("Transfer thread count must be at least 1");
+        this.transferThreads = transferThreads;
+    }
+
+    public int getMaxQueuedTransfers() {
+        return maxQueuedTransfers;
+    }
+
+    /**
+     * Number of copy and trash tasks that may be waiting or running before the comparison pauses
+     */
+    public void setMaxQueuedTransfers(int maxQueuedTransfers) {
+        if (maxQueuedTransfers < 1) throw new IllegalArgumentException("Transfer queue must hold at least 1 task");
+        this.maxQueuedTransfers = maxQueuedTransfers;
+    }
+
+    public long getMaxBytesInFlight() {
+        return maxBytesInFlight;
+    }
+
+    /**
+     * Total size of the files being copied at once before the comparison pauses. A single larger file is still copied on its own
+     */
+    public void setMaxBytesInFlight(long maxBytesInFlight) {
+        if (maxBytesInFlight < 1) throw new IllegalArgumentException("Bytes in flight must be at least 1");
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    public Path getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * File that a JSON summary of the metrics is written to after every sync. No file is written if this is null
+     */
+    public void setMetricsFile(Path metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    /**
+     * Publish the metrics as an MXBean, so they can be watched with JConsole or any other JMX client while a sync runs
+     */
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Only compare the directories and print or write the plan of what a sync would do, without changing anything
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public boolean isExecutePlan() {
+        return executePlan;
+    }
+
+    /**
+     * Carry out the plan in the plan file instead of comparing the directories again
+     */
+    public void setExecutePlan(boolean executePlan) {
+        this.executePlan = executePlan;
+    }
+
+    public Path getPlanFile() {
+        return planFile;
+    }
+
+    /**
+     * File a dry run writes its plan to, or that a plan is executed from. A dry run prints the plan if this is null
+     */
+    public void setPlanFile(Path planFile) {
+        this.planFile = planFile;
+    }
+
+    public long getJournalSyncMillis() {
+        return journalSyncMillis;
+    }
+
+    /**
+     * How often the journal of completed operations is forced to disk. A sync that is killed loses at most this much of
+     * its journal, which only means those operations are checked again by the next sync
+     */
+    public void setJournalSyncMillis(long journalSyncMillis) {
+        if (journalSyncMillis < 1) throw new IllegalArgumentException("Journal sync interval must be at least 1 millisecond");
+        this.journalSyncMillis = journalSyncMillis;
+    }
+
+    public int getAgentPort() {
+        return agentPort;
+    }
+
+    /**
+     * Port to serve the root on as an agent, or 0 to sync as usual
+     */
+    public void setAgentPort(int agentPort) {
+        if (agentPort < 0 || agentPort > 65535) throw new IllegalArgumentException("Agent port must be between 0 and 65535 (0 to sync instead of serving)");
+        this.agentPort = agentPort;
+    }
+
+    public InetAddress getAgentBindAddress() {
+        return agentBindAddress;
+    }
+
+    /**
+     * Address of the interface an agent listens on. Defaults to loopback, so other machines can only reach the agent
+     * through a tunnel unless another interface is chosen
+     */
+    public void setAgentBindAddress(String host) {
+        try {
+            agentBindAddress = InetAddress.getByName(host);
+        } catch (UnknownHostException uhE) {
+            throw new IllegalArgumentException("Unknown agent bind address '" + host + "'", uhE);
+        }
+    }
+
+    public String getAgentSecret() {
+        return agentSecret;
+    }
+
+    /**
+     * Secret that a client has to present in its HELLO before an agent serves it. Agent and client need the same one
+     */
+    public void setAgentSecret(String agentSecret) {
+        if (agentSecret == null || agentSecret.isBlank()) throw new IllegalArgumentException("Agent secret cannot be empty");
+        this.agentSecret = agentSecret;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Deflater level, from 1 (fastest) to 9 (smallest), for files sent to or from an agent, or 0 to send them as they are
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+
+    public Path getVersionStoreDirectory() {
+        return versionStoreDirectory;
+    }
+
+    /**
+     * Directory that keeps generations of trashed and overwritten files, or null to delete them when the trash is
+     * cleared. Both roots share the store, so content found in either is stored once
+     */
+    public synchronized void setVersionStoreDirectory(Path versionStoreDirectory) {
+        this.versionStoreDirectory = versionStoreDirectory;
+        versionHistory = null;
+    }
+
+    public int getKeepVersions() {
+        return keepVersions;
+    }
+
+    /**
+     * Number of generations the version store keeps, or 0 to keep every generation
+     */
+    public synchronized void setKeepVersions(int keepVersions) {
+        if (keepVersions < 0) throw new IllegalArgumentException("Number of generations to keep cannot be negative");
+        this.keepVersions = keepVersions;
+        versionHistory = null;
+    }
+
+    public long getVersionMaxAgeMillis() {
+        return versionMaxAgeMillis;
+    }
+
+    /**
+     * Age after which a generation is removed from the version store, or 0 to keep generations however old they are
+     */
+    public synchronized void setVersionMaxAgeMillis(long versionMaxAgeMillis) {
+        if (versionMaxAgeMillis < 0) throw new IllegalArgumentException("Maximum version age cannot be negative");
+        this.versionMaxAgeMillis = versionMaxAgeMillis;
+        versionHistory = null;
+    }
+
+    public long getVersionStoreMaxBytes() {
+        return versionStoreMaxBytes;
+    }
+
+    /**
+     * Size the version store is pruned back to, oldest generation first, or 0 for no limit
+     */
+    public synchronized void setVersionStoreMaxBytes(long versionStoreMaxBytes) {
+        if (versionStoreMaxBytes < 0) throw new IllegalArgumentException("Maximum version store size cannot be negative");
+        this.versionStoreMaxBytes = versionStoreMaxBytes;
+        versionHistory = null;
+    }
+
+    /**
+     * Returns the version history, opening it on first use, or null if no version store is configured
+     */
+    public synchronized VersionHistory getVersionHistory() {
+        if (versionHistory == null && versionStoreDirectory != null) {
+            try {
+                versionHistory = VersionHistory.open(versionStoreDirectory, new VersionHistory.RetentionPolicy(keepVersions, versionMaxAgeMillis, versionStoreMaxBytes));
+            } catch (IOException ioE) {
+                System.err.println("ERROR: Could not open version store '" + versionStoreDirectory + "'. Exiting...");
+                System.exit(1);
+            }
+        }
+        return versionHistory;
+    }
+
+    public boolean isListVersions() {
+        return listVersions;
+    }
+
+    /**
+     * List the stored versions of one path instead of syncing
+     */
+    public void setListVersions(boolean listVersions) {
+        this.listVersions = listVersions;
+    }
+
+    public long getRestoreMillis() {
+        return restoreMillis;
+    }
+
+    /**
+     * Restore one path as it was at this time instead of syncing, or -1 to sync
+     */
+    public void setRestoreMillis(long restoreMillis) {
+        if (restoreMillis < -1) throw new IllegalArgumentException("Restore time cannot be negative");
+        this.restoreMillis = restoreMillis;
+    }
+
+    /**
+     * Metrics shared by every sync that uses these options
+     */
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isDetectMoves() {
+        return detectMoves;
+    }
+
+    /**
+     * Pair paths that vanished from one root with paths that appeared in it, and repeat the rename in the other root
+     * instead of trashing and copying the whole subtree
+     */
+    public void setDetectMoves(boolean detectMoves) {
+        this.detectMoves = detectMoves;
+    }
+
+    public ConflictPolicy.Resolution getDefaultConflictResolution() {
+        return defaultConflictResolution;
+    }
+
+    /**
+     * How to resolve conflicts that no rule in .sync_conflicts covers. Anything other than asking lets a sync run unattended
+     */
+    public void setDefaultConflictResolution(ConflictPolicy.Resolution defaultConflictResolution) {
+        this.defaultConflictResolution = defaultConflictResolution;
+    }
+
+}
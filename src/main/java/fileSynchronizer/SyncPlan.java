@@ -0,0 +1,287 @@
+package fileSynchronizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Every change a sync would make, collected by comparing the roots without touching them. A plan can be printed for
+ * review and written to a JSON-lines file, one object per line:
+ * <pre>
+ * {"plan":1,"local":"/home/me/Documents","remote":"/mnt/backup/Documents","created":1700000000000,"lastSync":1690000000000}
+ * {"op":"copy","from":"laptop","to":"backup","path":"notes/todo.txt","bytes":1024}
+ * {"op":"trash","in":"backup","path":"old/report.pdf"}
+ * {"op":"move","in":"backup","path":"Photos/2023","to":"Archive/2023"}
+ * {"op":"conflict","path":"budget.xlsx"}
+ * {"op":"total","copies":1,"bytes":1024,"trashes":1,"moves":1,"conflicts":1}
+ * </pre>
+ * A plan read back from such a file can be executed later, as long as neither root has been synced in the meantime.
+ */
+public class SyncPlan implements TaskSink {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final FileSyncRoot localRoot, remoteRoot;
+    private final long createdMillis, lastSyncMillis;
+    private final List<SyncTask> tasks = Collections.synchronizedList(new ArrayList<>());
+    private final SortedSet<Path> conflicts = new TreeSet<>();
+
+    public SyncPlan(FileSyncRoot localRoot, FileSyncRoot remoteRoot, long lastSyncMillis) {
+        this(localRoot, remoteRoot, System.currentTimeMillis(), lastSyncMillis);
+    }
+
+    private SyncPlan(FileSyncRoot localRoot, FileSyncRoot remoteRoot, long createdMillis, long lastSyncMillis) {
+        this.localRoot = localRoot;
+        this.remoteRoot = remoteRoot;
+        this.createdMillis = createdMillis;
+        this.lastSyncMillis = lastSyncMillis;
+    }
+
+    @Override
+    public void submit(SyncTask task) {
+        tasks.add(task);
+    }
+
+    /**
+     * Records the rename instead of making it, and assumes it will succeed
+     */
+    @Override
+    public boolean move(FileSyncRoot root, Path fromRelativePath, Path toRelativePath) {
+        tasks.add(SyncTask.move(fromRelativePath, toRelativePath, root));
+        return true;
+    }
+
+    public synchronized void addConflicts(Collection<Path> relativePaths) {
+        conflicts.addAll(relativePaths);
+    }
+
+    /**
+     * Returns the tasks in the order they were planned, which is the order they have to be executed in
+     */
+    public List<SyncTask> getTasks() {
+        synchronized (tasks) {
+            return List.copyOf(tasks);
+        }
+    }
+
+    public synchronized SortedSet<Path> getConflicts() {
+        return new TreeSet<>(conflicts);
+    }
+
+    /**
+     * Returns when planning started. Anything modified after this is not covered by the plan
+     */
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * Returns the time of the last sync the plan was made against
+     */
+    public long getLastSyncMillis() {
+        return lastSyncMillis;
+    }
+
+    public long getCopyCount() {
+        return count(SyncTask.Type.COPY);
+    }
+
+    public long getCopyBytes() {
+        return getTasks().stream().filter(task -> task.type() == SyncTask.Type.COPY).mapToLong(SyncTask::bytes).sum();
+    }
+
+    public long getTrashCount() {
+        return count(SyncTask.Type.TRASH);
+    }
+
+    public long getMoveCount() {
+        return count(SyncTask.Type.MOVE);
+    }
+
+    private long count(SyncTask.Type type) {
+        return getTasks().stream().filter(task -> task.type() == type).count();
+    }
+
+    public String getSummary() {
+        return "Plan: " + getCopyCount() + " copies (" + getCopyBytes() + " bytes), " + getTrashCount() + " trashes, " + getMoveCount() + " moves, " + getConflicts().size() + " conflicts";
+    }
+
+    /**
+     * Writes the plan as JSON lines to out
+     */
+    public void write(Writer out) throws IOException {
+        out.write("{\"plan\":" + FORMAT_VERSION + ",\"local\":" + quote(localRoot.getRoot().toString()) + ",\"remote\":" + quote(remoteRoot.getRoot().toString())
+                + ",\"created\":" + createdMillis + ",\"lastSync\":" + lastSyncMillis + "}\n");
+
+        for (SyncTask task : getTasks()) {
+            String path = quote(task.relativePath().toString());
+            switch (task.type()) {
+                case COPY -> out.write("{\"op\":\"copy\",\"from\":" + quote(task.source().getNickname()) + ",\"to\":" + quote(task.target().getNickname()) + ",\"path\":" + path + ",\"bytes\":" + task.bytes() + "}\n");
+                case TRASH -> out.write("{\"op\":\"trash\",\"in\":" + quote(task.target().getNickname()) + ",\"path\":" + path + "}\n");
+                case MOVE -> out.write("{\"op\":\"move\",\"in\":" + quote(task.target().getNickname()) + ",\"path\":" + path + ",\"to\":" + quote(task.movedTo().toString()) + "}\n");
+            }
+        }
+
+        for (Path conflict : getConflicts()) {
+            out.write("{\"op\":\"conflict\",\"path\":" + quote(conflict.toString()) + "}\n");
+        }
+
+        out.write("{\"op\":\"total\",\"copies\":" + getCopyCount() + ",\"bytes\":" + getCopyBytes() + ",\"trashes\":" + getTrashCount() + ",\"moves\":" + getMoveCount() + ",\"conflicts\":" + getConflicts().size() + "}\n");
+        out.flush();
+    }
+
+    /**
+     * Writes the plan to file, replacing it atomically so a reader never sees a partial plan
+     */
+    public void write(Path file) {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try {
+            try (Writer out = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+                write(out);
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioE) {
+            System.err.println("ERROR: Could not write plan '" + file + "'. Exiting...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads a plan written by {@link #write(Path)}. The plan has to have been made for localRoot and remoteRoot
+     */
+    public static SyncPlan read(Path file, FileSyncRoot localRoot, FileSyncRoot remoteRoot) {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Map<String, String> header = parseLine(in.readLine());
+            if (!String.valueOf(FORMAT_VERSION).equals(header.get("plan"))) throw new IOException("Unrecognized plan format");
+
+            if (!localRoot.getRoot().toString().equals(header.get("local")) || !remoteRoot.getRoot().toString().equals(header.get("remote"))) {
+                System.err.println("ERROR: Plan '" + file + "' was made for '" + header.get("local") + "' and '" + header.get("remote") + "'. Exiting...");
+                System.exit(1);
+            }
+
+            SyncPlan plan = new SyncPlan(localRoot, remoteRoot, Long.parseLong(header.get("created")), Long.parseLong(header.get("lastSync")));
+
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.isBlank()) continue;
+
+                Map<String, String> fields = parseLine(line);
+                Path path = Path.of(fields.getOrDefault("path", ""));
+
+                switch (fields.getOrDefault("op", "")) {
+                    case "copy" -> plan.submit(SyncTask.copy(path, rootNamed(fields.get("from"), localRoot, remoteRoot), rootNamed(fields.get("to"), localRoot, remoteRoot), Long.parseLong(fields.get("bytes"))));
+                    case "trash" -> plan.submit(SyncTask.trash(path, rootNamed(fields.get("in"), localRoot, remoteRoot)));
+                    case "move" -> plan.submit(SyncTask.move(path, Path.of(fields.get("to")), rootNamed(fields.get("in"), localRoot, remoteRoot)));
+                    case "conflict" -> plan.addConflicts(List.of(path));
+                    case "total" -> {}
+                    default -> throw new IOException("Unrecognized entry '" + line + "'");
+                }
+            }
+
+            return plan;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: Could not read plan '" + file + "': " + e.getMessage() + ". Exiting...");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static FileSyncRoot rootNamed(String nickname, FileSyncRoot localRoot, FileSyncRoot remoteRoot) throws IOException {
+        if (localRoot.getNickname().equals(nickname)) return localRoot;
+        if (remoteRoot.getNickname().equals(nickname)) return remoteRoot;
+        throw new IOException("No directory is nicknamed '" + nickname + "'");
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Parses one line of a plan, a flat JSON object whose values are strings or numbers
+     */
+    private static Map<String, String> parseLine(String line) throws IOException {
+        if (line == null) throw new IOException("Plan is empty");
+
+        Map<String, String> fields = new HashMap<>();
+        int[] position = {skipWhitespace(line, 0)};
+        expect(line, position, '{');
+
+        while (true) {
+            position[0] = skipWhitespace(line, position[0]);
+            if (position[0] < line.length() && line.charAt(position[0]) == '}') break;
+
+            String key = readString(line, position);
+            expect(line, position, ':');
+            position[0] = skipWhitespace(line, position[0]);
+
+            String value;
+            if (position[0] < line.length() && line.charAt(position[0]) == '"') value = readString(line, position);
+            else {
+                int start = position[0];
+                while (position[0] < line.length() && ",} ".indexOf(line.charAt(position[0])) < 0) position[0]++;
+                value = line.substring(start, position[0]);
+            }
+            fields.put(key, value);
+
+            position[0] = skipWhitespace(line, position[0]);
+            if (position[0] < line.length() && line.charAt(position[0]) == ',') position[0]++;
+        }
+
+        return fields;
+    }
+
+    private static String readString(String line, int[] position) throws IOException {
+        expect(line, position, '"');
+
+        StringBuilder value = new StringBuilder();
+        while (position[0] < line.length()) {
+            char c = line.charAt(position[0]++);
+            if (c == '"') return value.toString();
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+
+            if (position[0] >= line.length()) break;
+            char escaped = line.charAt(position[0]++);
+            switch (escaped) {
+                case 'u' -> {
+                    if (position[0] + 4 > line.length()) throw new IOException("Truncated escape in '" + line + "'");
+                    value.append((char) Integer.parseInt(line.substring(position[0], position[0] + 4), 16));
+                    position[0] += 4;
+                }
+                case 'n' -> value.append('\n');
+                case 't' -> value.append('\t');
+                case 'r' -> value.append('\r');
+                case 'b' -> value.append('\b');
+                case 'f' -> value.append('\f');
+                default -> value.append(escaped);
+            }
+        }
+
+        throw new IOException("Unterminated string in '" + line + "'");
+    }
+
+    private static void expect(String line, int[] position, char expected) throws IOException {
+        position[0] = skipWhitespace(line, position[0]);
+        if (position[0] >= line.length() || line.charAt(position[0]) != expected) throw new IOException("Expected '" + expected + "' in '" + line + "'");
+        position[0]++;
+    }
+
+    private static int skipWhitespace(String line, int position) {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) position++;
+        return position;
+    }
+
+}
@@ -0,0 +1,54 @@
+package fileSynchronizer;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * One change the comparator decided on: copy a path from one root to the other, move a path of one root to its trash,
+ * or rename a path within one root. A copy may carry the source attributes and the target state the comparator already
+ * read, so executing it does not have to read them again
+ */
+public record SyncTask(Type type, Path relativePath, FileSyncRoot target, FileSyncRoot source, long bytes, BasicFileAttributes sourceAttributes, boolean targetExists, Path movedTo) {
+
+    public enum Type {
+        COPY, TRASH, MOVE
+    }
+
+    public static SyncTask copy(Path relativePath, FileSyncRoot source, FileSyncRoot target, long bytes) {
+        return new SyncTask(Type.COPY, relativePath, target, source, bytes, null, true, null);
+    }
+
+    public static SyncTask copy(Path relativePath, FileSyncRoot source, FileSyncRoot target, BasicFileAttributes sourceAttributes, boolean targetExists) {
+        return new SyncTask(Type.COPY, relativePath, target, source, sourceAttributes.size(), sourceAttributes, targetExists, null);
+    }
+
+    public static SyncTask trash(Path relativePath, FileSyncRoot target) {
+        return new SyncTask(Type.TRASH, relativePath, target, null, 0, null, true, null);
+    }
+
+    public static SyncTask move(Path fromRelativePath, Path toRelativePath, FileSyncRoot target) {
+        return new SyncTask(Type.MOVE, fromRelativePath, target, null, 0, null, true, toRelativePath);
+    }
+
+    public void execute() {
+        switch (type) {
+            case COPY -> {
+                target.getJournal().beginCopy(relativePath, source.getNickname(), sourceAttributes == null || sourceAttributes.isDirectory(), bytes);
+                if (sourceAttributes == null) target.copyFromRemote(relativePath, source.getRoot());
+                else target.copyFromRemote(relativePath, source.getRoot(), source.getNickname(), sourceAttributes, targetExists);
+                target.getJournal().completeCopy(relativePath);
+
+                // The comparator already indexed the source entry itself, so only a copied directory's contents are left
+                if (sourceAttributes == null || sourceAttributes.isDirectory()) source.indexSubtree(relativePath);
+            }
+            case TRASH -> {
+                target.trash(relativePath);
+                target.getJournal().trashed(relativePath);
+            }
+            case MOVE -> {
+                if (target.move(relativePath, movedTo)) target.getJournal().moved(relativePath, movedTo);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package fileSynchronizer;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the changes a sync decides on. A TransferPipeline carries them out right away, a SyncPlan writes them down so
+ * they can be reviewed and carried out later
+ */
+public interface TaskSink {
+
+    void submit(SyncTask task);
+
+    /**
+     * Renames fromRelativePath to toRelativePath in root, or records the rename. Returns false if the rename failed
+     */
+    boolean move(FileSyncRoot root, Path fromRelativePath, Path toRelativePath);
+
+}
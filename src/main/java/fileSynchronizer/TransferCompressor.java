@@ -0,0 +1,100 @@
+package fileSynchronizer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the chunks of one file sent to or from an agent. Files whose extension marks them as already compressed are
+ * sent as they are. For other files the first chunk serves as a sample: if it does not shrink by at least a tenth, the
+ * rest of the file is sent uncompressed too, so high-entropy data costs almost no extra CPU. Every chunk is sent in
+ * whichever form is smaller, so compression never makes a transfer larger.
+ */
+public class TransferCompressor {
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "7z", "apk", "avi", "br", "bz2", "docx", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "lz4", "m4a", "mkv",
+            "mov", "mp3", "mp4", "odt", "ogg", "pdf", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+    private static final double MAXIMUM_SAMPLE_RATIO = 0.9;
+
+    private final Deflater deflater;
+    private final byte[] deflated = new byte[AgentProtocol.MAX_PAYLOAD];
+    private boolean compressing, sampled = false;
+    private long rawBytes = 0, sentBytes = 0;
+
+    /**
+     * Compresses the chunks of file at level, from 1 (fastest) to 9 (smallest). Level 0 sends everything as it is
+     */
+    public TransferCompressor(Path file, int level) {
+        compressing = level > 0 && !isCompressedFormat(file);
+        deflater = compressing ? new Deflater(level, true) : null;
+    }
+
+    public static boolean isCompressedFormat(Path file) {
+        String name = file.getFileName().toString();
+        int extensionStart = name.lastIndexOf('.');
+        return extensionStart > 0 && COMPRESSED_EXTENSIONS.contains(name.substring(extensionStart + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Sends the first length bytes of chunk on stream as a DATA frame, or as a DATA_DEFLATED frame if that is smaller
+     */
+    public void writeChunk(DataOutputStream out, int stream, byte[] chunk, int length) throws IOException {
+        rawBytes += length;
+
+        int deflatedLength = compressing ? deflate(chunk, length) : -1;
+        if (!sampled && compressing) {
+            sampled = true;
+            compressing = deflatedLength >= 0 && deflatedLength < length * MAXIMUM_SAMPLE_RATIO;
+        }
+
+        // The deflated chunk follows the four bytes that hold its inflated length
+        if (deflatedLength >= 0 && deflatedLength + 4 < length) {
+            writeLength(length);
+            AgentProtocol.writeFrame(out, stream, AgentProtocol.DATA_DEFLATED, deflated, deflatedLength + 4);
+            sentBytes += deflatedLength + 4;
+        } else {
+            AgentProtocol.writeFrame(out, stream, AgentProtocol.DATA, chunk, length);
+            sentBytes += length;
+        }
+    }
+
+    /**
+     * Deflates chunk into the buffer after room for its length, and returns the deflated size or -1 if it did not fit
+     */
+    private int deflate(byte[] chunk, int length) {
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+
+        int deflatedLength = 0;
+        while (!deflater.finished()) {
+            deflatedLength += deflater.deflate(deflated, 4 + deflatedLength, deflated.length - 4 - deflatedLength);
+            if (deflatedLength == deflated.length - 4 && !deflater.finished()) return -1;
+        }
+        return deflatedLength;
+    }
+
+    private void writeLength(int length) {
+        deflated[0] = (byte) (length >>> 24);
+        deflated[1] = (byte) (length >>> 16);
+        deflated[2] = (byte) (length >>> 8);
+        deflated[3] = (byte) length;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public void close() {
+        if (deflater != null) deflater.end();
+    }
+
+}
@@ -0,0 +1,104 @@
+package fileSynchronizer;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs copy and trash tasks on a pool of worker threads, so the comparator can keep scanning while earlier changes are
+ * still being transferred. Submitting blocks once too many tasks are queued or too many bytes are in flight, which keeps
+ * a fast scan from running arbitrarily far ahead of slow transfers.
+ */
+public class TransferPipeline implements TaskSink {
+
+    private final ExecutorService workers;
+    private final int maxQueuedTasks;
+    private final long maxBytesInFlight;
+
+    private int queuedTasks = 0;
+    private long bytesInFlight = 0;
+    private Throwable failure;
+
+    public TransferPipeline(int workerThreads, int maxQueuedTasks, long maxBytesInFlight) {
+        workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread worker = new Thread(runnable, "filesync-transfer");
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.maxQueuedTasks = maxQueuedTasks;
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    /**
+     * Queues task for execution, waiting while the queue is full or the task's bytes do not fit in the in-flight budget.
+     * A task larger than the whole budget is admitted once nothing else is in flight
+     */
+    @Override
+    public void submit(SyncTask task) {
+        synchronized (this) {
+            try {
+                while (queuedTasks >= maxQueuedTasks || (bytesInFlight > 0 && bytesInFlight + task.bytes() > maxBytesInFlight)) {
+                    wait();
+                }
+            } catch (InterruptedException iE) {
+                // A dropped task would count as applied once the sync is recorded, so the sync has to fail instead
+                if (failure == null) failure = iE;
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            queuedTasks++;
+            bytesInFlight += task.bytes();
+        }
+
+        workers.execute(() -> {
+            try {
+                task.execute();
+            } catch (Throwable t) {
+                synchronized (this) {
+                    if (failure == null) failure = t;
+                }
+            } finally {
+                synchronized (this) {
+                    queuedTasks--;
+                    bytesInFlight -= task.bytes();
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Renames right away in the calling thread, since the caller's next decisions depend on the result
+     */
+    @Override
+    public boolean move(FileSyncRoot root, Path fromRelativePath, Path toRelativePath) {
+        return root.move(fromRelativePath, toRelativePath);
+    }
+
+    /**
+     * Waits until every submitted task has finished. A failed task, or an interruption that kept a task from being
+     * queued or waited for, ends the sync before it is recorded
+     */
+    public synchronized void awaitCompletion() {
+        try {
+            while (queuedTasks > 0) {
+                wait();
+            }
+        } catch (InterruptedException iE) {
+            if (failure == null) failure = iE;
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null) {
+            System.err.println("ERROR: A transfer failed: " + failure + ". Exiting...");
+            System.exit(1);
+        }
+    }
+
+    public void shutdown() {
+        awaitCompletion();
+        workers.shutdown();
+    }
+
+}
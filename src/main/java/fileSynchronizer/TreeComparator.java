@@ -0,0 +1,318 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares the file trees of two roots and hands every non-conflicting change it finds to a transfer pipeline.
+ * Each directory pair is compared in its own fork-join task, so metadata calls for sibling
+ * directories are issued in parallel. Conflicts are collected in sorted order, so the result
+ * does not depend on thread scheduling.
+ * <p>
+ * The listings of a directory pair are sorted and walked side by side, so every child name is seen once, already
+ * knowing which roots hold it. A child known to be missing from one root is not looked up there at all.
+ */
+public class TreeComparator {
+
+    /**
+     * A path that exists in only one root, together with the task the comparator chose for it. When move detection is
+     * on, these are held back until the whole scan is done, so vanished and newly appeared paths can be paired up
+     */
+    record OneSidedChange(Path relativePath, FileSyncRoot presentIn, BasicFileAttributes attributes, FileIndex.Entry previousEntry, SyncTask task) {}
+
+    private final FileSyncRoot localRoot, remoteRoot;
+    private final ExclusionMatcher exclusions;
+    private final long lastSyncMillis;
+    // Children of one directory are compared in batches of this size, so a huge directory does not create a task per entry up front
+    private static final int CHILD_BATCH_SIZE = 1024;
+
+    private final SyncOptions options;
+    private final boolean verbose;
+    private final TaskSink pipeline;
+    private final ForkJoinPool pool;
+    private final Queue<OneSidedChange> deferredChanges = new ConcurrentLinkedQueue<>();
+
+    public TreeComparator(FileSyncRoot localRoot, FileSyncRoot remoteRoot, ExclusionMatcher exclusions, long lastSyncMillis, SyncOptions options, TaskSink pipeline, boolean verbose) {
+        this.localRoot = localRoot;
+        this.remoteRoot = remoteRoot;
+        this.exclusions = exclusions;
+        this.lastSyncMillis = lastSyncMillis;
+        this.options = options;
+        this.verbose = verbose;
+        this.pipeline = pipeline;
+        pool = new ForkJoinPool(options.getComparisonThreads());
+    }
+
+    /**
+     * Compares the subtrees at relativePaths and returns the paths of all conflicting files below them.
+     * Copies and trashes may still be running in the pipeline when this returns. Moves are passed to the pipeline too,
+     * which either makes them right away or records them in a plan
+     */
+    public SortedSet<Path> compare(Collection<Path> relativePaths) {
+        SortedSet<Path> conflicts = new TreeSet<>();
+        long startNanos = System.nanoTime();
+
+        try {
+            for (Path relativePath : relativePaths) {
+                conflicts.addAll(pool.invoke(new PathComparison(relativePath, true, true, options.isDetectMoves())));
+            }
+
+            if (options.isDetectMoves()) {
+                List<OneSidedChange> changes = new ArrayList<>(deferredChanges);
+                List<Path> movedPaths = new MoveDetector(localRoot, remoteRoot, pipeline).applyMoves(changes);
+
+                for (OneSidedChange change : changes) {
+                    pipeline.submit(change.task());
+                }
+
+                // A moved subtree may also have changed inside, so compare it again now that it exists in both roots.
+                // Moves recorded in a plan have not been made yet, so there is nothing to compare until the plan runs
+                for (Path movedPath : (pipeline instanceof SyncPlan) ? List.<Path>of() : movedPaths) {
+                    conflicts.addAll(pool.invoke(new PathComparison(movedPath, true, true, false)));
+                }
+            }
+        } finally {
+            pool.shutdown();
+            options.getMetrics().recordPhase(SyncMetrics.Phase.COMPARE, startNanos);
+        }
+
+        return conflicts;
+    }
+
+    /**
+     * Compares the subtrees at movedPaths again, without looking for moves, and returns the paths of all conflicting
+     * files below them. A plan cannot do this for the moves it records, so whoever carries the moves out does it
+     * once they are made
+     */
+    public SortedSet<Path> compareMoved(Collection<Path> movedPaths) {
+        SortedSet<Path> conflicts = new TreeSet<>();
+        long startNanos = System.nanoTime();
+
+        try {
+            for (Path movedPath : movedPaths) {
+                conflicts.addAll(pool.invoke(new PathComparison(movedPath, true, true, false)));
+            }
+        } finally {
+            pool.shutdown();
+            options.getMetrics().recordPhase(SyncMetrics.Phase.COMPARE, startNanos);
+        }
+
+        return conflicts;
+    }
+
+    /**
+     * Returns true if content verification is enabled and both files hold the same bytes
+     */
+    private boolean identicalContent(Path relativePath, BasicFileAttributes localAttributes, BasicFileAttributes remoteAttributes) {
+        if (!options.isVerifyContent() || localAttributes.size() != remoteAttributes.size()) return false;
+
+        byte[] localDigest = localRoot.getHashCache().hash(localRoot.resolve(relativePath), relativePath, localAttributes);
+        byte[] remoteDigest = remoteRoot.getHashCache().hash(remoteRoot.resolve(relativePath), relativePath, remoteAttributes);
+        if (localDigest == null || !Arrays.equals(localDigest, remoteDigest)) return false;
+
+        if (verbose) System.out.println("SKIP: '" + relativePath + "' has identical content in " + localRoot.getNickname() + " and " + remoteRoot.getNickname());
+        return true;
+    }
+
+    /**
+     * Reads the attributes of absolutePath in one call. Returns null if the path does not exist or cannot be read
+     */
+    private BasicFileAttributes readAttributes(Path absolutePath) {
+        long startNanos = System.nanoTime();
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            if (attributes.isDirectory()) options.getMetrics().scannedDirectory();
+            else options.getMetrics().scannedFile();
+
+            return attributes;
+        } catch (IOException ioE) {
+            return null;
+        } finally {
+            options.getMetrics().recordOperation(SyncMetrics.Operation.STAT, startNanos);
+        }
+    }
+
+    /**
+     * Returns the sorted names in the directory at relativePath under root, reusing the listing from the root's index
+     * if the directory has not changed
+     */
+    private String[] sortedChildNames(FileSyncRoot root, Path relativePath, BasicFileAttributes attributes) {
+        FileIndex index = root.getIndex();
+
+        String[] names = index.unchangedListing(relativePath, attributes);
+        if (names == null) {
+            long startNanos = System.nanoTime();
+            List<String> listed = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(root.resolve(relativePath))) {
+                for (Path child : children) {
+                    listed.add(child.getFileName().toString());
+                }
+            } catch (IOException ioE) {
+                // Carrying on with an empty listing would trash everything the other side holds in this directory
+                System.err.println("ERROR: Could not list '" + root.resolve(relativePath) + "'. Exclude it to sync the rest. Exiting...");
+                System.exit(1);
+            }
+
+            names = listed.toArray(String[]::new);
+            index.recordListing(relativePath, Arrays.asList(names));
+            options.getMetrics().recordOperation(SyncMetrics.Operation.LIST, startNanos);
+        }
+
+        Arrays.sort(names);
+        return names;
+    }
+
+    private boolean isExcludedPath(Path relativePath) {
+        if (!exclusions.isExcluded(relativePath)) return false;
+
+        options.getMetrics().excluded();
+        return true;
+    }
+
+    private class PathComparison extends RecursiveTask<SortedSet<Path>> {
+
+        private final Path relativePath;
+        // Whether the parent's listings showed the path in each root. The roots of a comparison are looked up in both
+        private final boolean inLocal, inRemote;
+        private final boolean deferOneSided;
+
+        PathComparison(Path relativePath, boolean inLocal, boolean inRemote, boolean deferOneSided) {
+            this.relativePath = relativePath;
+            this.inLocal = inLocal;
+            this.inRemote = inRemote;
+            this.deferOneSided = deferOneSided;
+        }
+
+        /**
+         * Merge-joins the sorted listings of both roots and compares every child that is not excluded, one batch at a time
+         */
+        private void compareChildren(String[] localNames, String[] remoteNames, SortedSet<Path> conflicts) {
+            List<PathComparison> batch = new ArrayList<>(Math.min(CHILD_BATCH_SIZE, Math.max(localNames.length, remoteNames.length)));
+            int l = 0, r = 0;
+
+            while (l < localNames.length || r < remoteNames.length) {
+                int order;
+                if (l == localNames.length) order = 1;
+                else if (r == remoteNames.length) order = -1;
+                else order = localNames[l].compareTo(remoteNames[r]);
+
+                Path child = relativePath.resolve((order <= 0) ? localNames[l] : remoteNames[r]);
+                if (!isExcludedPath(child)) batch.add(new PathComparison(child, order <= 0, order >= 0, deferOneSided));
+
+                if (order <= 0) l++;
+                if (order >= 0) r++;
+
+                if (batch.size() == CHILD_BATCH_SIZE) compareBatch(batch, conflicts);
+            }
+
+            compareBatch(batch, conflicts);
+        }
+
+        /**
+         * Makes target match source at this path, which the previous sync was copying from source to target when it
+         * stopped. A half-written file is copied again rather than reported as a conflict, and anything missing from
+         * target is copied rather than trashed from source
+         */
+        private void resumeCopy(FileSyncRoot source, BasicFileAttributes sourceAttributes, FileSyncRoot target, BasicFileAttributes targetAttributes, SortedSet<Path> conflicts) {
+            if (sourceAttributes == null) {
+                if (targetAttributes != null) pipeline.submit(SyncTask.trash(relativePath, target));
+            }
+            else if (targetAttributes != null && sourceAttributes.isDirectory() && targetAttributes.isDirectory()) {
+                String[] sourceNames = sortedChildNames(source, relativePath, sourceAttributes);
+                String[] targetNames = sortedChildNames(target, relativePath, targetAttributes);
+                if (source == localRoot) compareChildren(sourceNames, targetNames, conflicts);
+                else compareChildren(targetNames, sourceNames, conflicts);
+            }
+            else if (targetAttributes == null || sourceAttributes.size() != targetAttributes.size() || !sourceAttributes.lastModifiedTime().equals(targetAttributes.lastModifiedTime())) {
+                if (verbose) System.out.println("RESUME: copying '" + relativePath + "' from " + source.getNickname() + " again");
+                pipeline.submit(SyncTask.copy(relativePath, source, target, sourceAttributes, targetAttributes != null));
+            }
+        }
+
+        private void compareBatch(List<PathComparison> batch, SortedSet<Path> conflicts) {
+            for (PathComparison child : invokeAll(batch)) {
+                conflicts.addAll(child.join());
+            }
+
+            batch.clear();
+        }
+
+        private void scheduleOneSided(SyncTask task, FileSyncRoot presentIn, BasicFileAttributes attributes, FileIndex.Entry previousEntry) {
+            if (deferOneSided) deferredChanges.add(new OneSidedChange(relativePath, presentIn, attributes, previousEntry, task));
+            else pipeline.submit(task);
+        }
+
+        @Override
+        protected SortedSet<Path> compute() {
+            Path localPath = localRoot.resolve(relativePath);
+            Path remotePath = remoteRoot.resolve(relativePath);
+
+            BasicFileAttributes localAttributes = inLocal ? readAttributes(localPath) : null;
+            BasicFileAttributes remoteAttributes = inRemote ? readAttributes(remotePath) : null;
+
+            boolean localExists = localAttributes != null;
+            boolean remoteExists = remoteAttributes != null;
+
+            // What the index knew before this scan, which tells a newly appeared path from one that was already there
+            FileIndex.Entry previousLocal = localRoot.getIndex().get(relativePath);
+            FileIndex.Entry previousRemote = remoteRoot.getIndex().get(relativePath);
+
+            if (localExists) localRoot.getIndex().record(relativePath, localAttributes);
+            if (remoteExists) remoteRoot.getIndex().record(relativePath, remoteAttributes);
+
+            SortedSet<Path> conflicts = new TreeSet<>();
+
+            // Paths inside a copy the previous sync did not finish are finished from the copy's source
+            if (remoteRoot.getJournal().interruptedCopySource(relativePath) != null) {
+                resumeCopy(localRoot, localAttributes, remoteRoot, remoteAttributes, conflicts);
+                return conflicts;
+            }
+            if (localRoot.getJournal().interruptedCopySource(relativePath) != null) {
+                resumeCopy(remoteRoot, remoteAttributes, localRoot, localAttributes, conflicts);
+                return conflicts;
+            }
+
+            if (localExists && remoteExists) {
+                if (localAttributes.isDirectory() && remoteAttributes.isDirectory()) {
+                    compareChildren(sortedChildNames(localRoot, relativePath, localAttributes), sortedChildNames(remoteRoot, relativePath, remoteAttributes), conflicts);
+                }
+                else if (localAttributes.isRegularFile() && remoteAttributes.isRegularFile()) {
+                    long localModified = localAttributes.lastModifiedTime().toMillis();
+                    long remoteModified = remoteAttributes.lastModifiedTime().toMillis();
+
+                    boolean localChanged = localModified > lastSyncMillis;
+                    boolean remoteChanged = remoteModified > lastSyncMillis;
+
+                    if (localModified == remoteModified && localAttributes.size() == remoteAttributes.size()) ; // Case: copies carry their source's mtime, so identical size and mtime means already in sync
+                    else if ((localChanged || remoteChanged) && identicalContent(relativePath, localAttributes, remoteAttributes)) ; // Case: timestamps differ but the bytes do not
+                    else if (localChanged && remoteChanged) { // Case: both files modified since last sync. Conflict
+                        conflicts.add(relativePath);
+                        options.getMetrics().conflict();
+                    }
+                    else if (localChanged) pipeline.submit(SyncTask.copy(relativePath, localRoot, remoteRoot, localAttributes, true));
+                    else if (remoteChanged) pipeline.submit(SyncTask.copy(relativePath, remoteRoot, localRoot, remoteAttributes, true));
+                }
+                else {
+                    System.err.println("ERROR: '" +  localPath + "' AND '" + remotePath + "' are not the same type. Exiting...");
+                    System.exit(1);
+                }
+            }
+            // The attributes read above carry the creation time, so one-sided entries cost no further metadata calls
+            else if (localExists && localAttributes.creationTime().toMillis() > lastSyncMillis) scheduleOneSided(SyncTask.copy(relativePath, localRoot, remoteRoot, localAttributes, false), localRoot, localAttributes, previousLocal);
+            else if (remoteExists && remoteAttributes.creationTime().toMillis() > lastSyncMillis) scheduleOneSided(SyncTask.copy(relativePath, remoteRoot, localRoot, remoteAttributes, false), remoteRoot, remoteAttributes, previousRemote);
+            else if (remoteExists) scheduleOneSided(SyncTask.trash(relativePath, remoteRoot), remoteRoot, remoteAttributes, previousRemote);
+            else if (localExists) scheduleOneSided(SyncTask.trash(relativePath, localRoot), localRoot, localAttributes, previousLocal);
+
+            return conflicts;
+        }
+    }
+
+}
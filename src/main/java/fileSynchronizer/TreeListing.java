@@ -0,0 +1,74 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Walks a root and records the type, size and timestamps of every directory and regular file that is not excluded,
+ * keyed by relative path. A sync with an agent compares two such listings instead of reading attributes over the
+ * network one path at a time. Every directory sorts before its contents.
+ */
+public class TreeListing extends SimpleFileVisitor<Path> {
+
+    public record Entry(boolean directory, long size, long modifiedMillis, long createdMillis) {}
+
+    private final Path rootPath;
+    private final ExclusionMatcher exclusions;
+    private final SortedMap<Path, Entry> entries = new TreeMap<>();
+
+    public TreeListing(Path rootPath, ExclusionMatcher exclusions) {
+        this.rootPath = rootPath;
+        this.exclusions = exclusions;
+    }
+
+    public static SortedMap<Path, Entry> scan(Path rootPath, ExclusionMatcher exclusions) throws IOException {
+        TreeListing listing = new TreeListing(rootPath, exclusions);
+        Files.walkFileTree(rootPath, listing);
+        return listing.getEntries();
+    }
+
+    public SortedMap<Path, Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) {
+        Path relativePath = rootPath.relativize(path);
+        if (relativePath.toString().isEmpty()) return FileVisitResult.CONTINUE;
+        if (exclusions.isExcluded(relativePath)) return FileVisitResult.SKIP_SUBTREE;
+
+        entries.put(relativePath, entryOf(basicFileAttributes));
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) {
+        Path relativePath = rootPath.relativize(path);
+        if (basicFileAttributes.isRegularFile() && !exclusions.isExcluded(relativePath)) entries.put(relativePath, entryOf(basicFileAttributes));
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Fails the whole listing, since a directory left out of it would look deleted and have its contents trashed on the
+     * other side
+     */
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+        if (exclusions.isExcluded(rootPath.relativize(path))) return FileVisitResult.CONTINUE;
+
+        System.err.println("ERROR: Listing failed: '" + path + "'");
+        throw e;
+    }
+
+    private static Entry entryOf(BasicFileAttributes attributes) {
+        return new Entry(attributes.isDirectory(), attributes.isDirectory() ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.creationTime().toMillis());
+    }
+
+}
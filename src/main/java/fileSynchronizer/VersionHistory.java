@@ -0,0 +1,367 @@
+package fileSynchronizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Timestamped generations of trashed and overwritten files. Every time a root's trash is cleared, its contents become
+ * one generation: a manifest in {@code generations/} named after the time it was stored, listing each file's path,
+ * size, modification time and chunks. File contents live in a shared {@link ChunkStore}, so a generation only costs
+ * the chunks no other generation has.
+ * <p>
+ * {@code index/} holds 256 buckets keyed by a hash of the root nickname and path. Each bucket line is one version of
+ * one path, so listing or restoring a path reads a single small file however long the history is. Pruning removes
+ * whole generations, oldest first, and only reads the manifests of the generations it removes and rewrites the
+ * buckets they touch.
+ * <p>
+ * Several processes may share one history, such as two scheduled syncs of different directories or a client and an
+ * agent on one machine. Storing, pruning and restoring hold an exclusive lock on {@code lock} in the history's
+ * directory, and the chunk reference counts are brought up to date from disk once the lock is taken.
+ */
+public class VersionHistory {
+
+    public record Version(String generation, long storedMillis, String nickname, Path relativePath, long size, long modifiedMillis, List<String> chunks) {}
+
+    /**
+     * Limits on the generations kept. keepGenerations and maxBytes of 0 and maxAgeMillis of 0 mean no limit. The newest
+     * generation is always kept, even if it alone is larger than maxBytes
+     */
+    public record RetentionPolicy(int keepGenerations, long maxAgeMillis, long maxBytes) {
+
+        public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0, 0);
+
+        public RetentionPolicy {
+            if (keepGenerations < 0 || maxAgeMillis < 0 || maxBytes < 0) throw new IllegalArgumentException("Retention limits cannot be negative");
+        }
+    }
+
+    // A file lock belongs to the whole process, so threads of one process holding histories of the same directory
+    // first take turns on this lock, or the second would fail to lock a file its own process already has locked
+    private static final Map<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    @FunctionalInterface
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    private final Path directory, generationDirectory, indexDirectory, lockFile;
+    private final ChunkStore chunkStore;
+    private final RetentionPolicy retentionPolicy;
+
+    private VersionHistory(Path directory, ChunkStore chunkStore, RetentionPolicy retentionPolicy) {
+        this.directory = directory;
+        this.chunkStore = chunkStore;
+        this.retentionPolicy = retentionPolicy;
+        generationDirectory = directory.resolve("generations");
+        indexDirectory = directory.resolve("index");
+        lockFile = directory.toAbsolutePath().normalize().resolve("lock");
+    }
+
+    public static VersionHistory open(Path directory, RetentionPolicy retentionPolicy) throws IOException {
+        Files.createDirectories(directory.resolve("generations"));
+        Files.createDirectories(directory.resolve("index"));
+        return new VersionHistory(directory, ChunkStore.open(directory.resolve("chunks")), retentionPolicy);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stores every regular file below tree as one generation of the root nicknamed nickname. A file the trash numbered
+     * because it was trashed again is stored under the path it had in the root, next to the earlier version. Returns
+     * how many bytes of new chunks had to be written for the generation
+     */
+    public synchronized long storeGeneration(Path tree, String nickname, long storedMillis) throws IOException {
+        return withStoreLock(() -> writeGeneration(tree, nickname, storedMillis));
+    }
+
+    private long writeGeneration(Path tree, String nickname, long storedMillis) throws IOException {
+        List<Version> versions = new ArrayList<>();
+        long[] newBytes = {0};
+        String generation = newGenerationName(storedMillis);
+
+        Files.walkFileTree(tree, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (!attributes.isRegularFile()) return FileVisitResult.CONTINUE;
+
+                List<String> chunks = chunkStore.store(file, newBytes);
+                versions.add(new Version(generation, storedMillis, nickname, FileSyncRoot.withoutTrashedAgainSuffixes(tree.relativize(file)), attributes.size(), attributes.lastModifiedTime().toMillis(), chunks));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (versions.isEmpty()) return 0;
+
+        // The manifest is complete before the index points at it
+        StringBuilder manifest = new StringBuilder(escape(nickname)).append('\n');
+        for (Version version : versions) {
+            manifest.append(escape(version.relativePath().toString())).append('\t').append(version.size()).append('\t').append(version.modifiedMillis())
+                    .append('\t').append(String.join(",", version.chunks())).append('\n');
+        }
+        Path temporaryFile = generationDirectory.resolve("." + generation + ".tmp");
+        Files.writeString(temporaryFile, manifest, StandardCharsets.UTF_8);
+        Files.move(temporaryFile, generationDirectory.resolve(generation), StandardCopyOption.ATOMIC_MOVE);
+
+        Map<String, StringBuilder> bucketLines = new TreeMap<>();
+        for (Version version : versions) {
+            bucketLines.computeIfAbsent(bucketOf(nickname, version.relativePath()), bucket -> new StringBuilder()).append(indexLine(version));
+        }
+        for (Map.Entry<String, StringBuilder> bucket : bucketLines.entrySet()) {
+            appendToBucket(bucket.getKey(), bucket.getValue());
+        }
+
+        return newBytes[0];
+    }
+
+    /**
+     * Names a generation stored at storedMillis. The zero-padded time makes names sort by age, and the counter keeps
+     * generations stored in the same millisecond apart
+     */
+    private String newGenerationName(long storedMillis) {
+        for (int counter = 0; ; counter++) {
+            String generation = String.format("%015d-%d", storedMillis, counter);
+            if (!Files.exists(generationDirectory.resolve(generation))) return generation;
+        }
+    }
+
+    /**
+     * Returns the names of the stored generations, oldest first
+     */
+    public synchronized List<String> getGenerations() throws IOException {
+        List<String> generations = new ArrayList<>();
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(generationDirectory)) {
+            for (Path manifest : manifests) {
+                String generation = manifest.getFileName().toString();
+                if (!generation.startsWith(".")) generations.add(generation);
+            }
+        }
+
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Returns the stored versions of relativePath in the root nicknamed nickname, oldest first
+     */
+    public synchronized List<Version> getVersions(String nickname, Path relativePath) throws IOException {
+        Path bucket = indexDirectory.resolve(bucketOf(nickname, relativePath));
+        List<Version> versions = new ArrayList<>();
+        if (!Files.isRegularFile(bucket)) return versions;
+
+        for (String line : Files.readAllLines(bucket, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 7) continue; // A line cut off by an interruption
+
+            Version version = new Version(fields[0], Long.parseLong(fields[1]), unescape(fields[2]), Path.of(unescape(fields[3])),
+                    Long.parseLong(fields[4]), Long.parseLong(fields[5]), fields[6].isEmpty() ? List.of() : List.of(fields[6].split(",")));
+            if (version.nickname().equals(nickname) && version.relativePath().equals(relativePath)) versions.add(version);
+        }
+
+        versions.sort(Comparator.comparing(Version::generation));
+        return versions;
+    }
+
+    /**
+     * Returns the version of relativePath that was current at timeMillis, meaning the stored version modified most
+     * recently at or before then, or null if every stored version is newer or none is stored
+     */
+    public Version getVersionAt(String nickname, Path relativePath, long timeMillis) throws IOException {
+        Version current = null;
+        for (Version version : getVersions(nickname, relativePath)) {
+            if (version.modifiedMillis() <= timeMillis && (current == null || version.modifiedMillis() >= current.modifiedMillis())) current = version;
+        }
+        return current;
+    }
+
+    /**
+     * Reassembles version at destination, with the modification time it had when it was stored
+     */
+    public void restore(Version version, Path destination) throws IOException {
+        Files.createDirectories(destination.toAbsolutePath().getParent());
+        Path temporaryFile = destination.resolveSibling("." + destination.getFileName() + ".sync_partial");
+
+        // Locked, so another process cannot prune the chunks while they are read
+        try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+            withStoreLock(() -> {
+                chunkStore.copyTo(version.chunks(), out);
+                return null;
+            });
+        } catch (IOException ioE) {
+            Files.deleteIfExists(temporaryFile);
+            throw ioE;
+        }
+
+        if (Files.size(temporaryFile) != version.size()) {
+            Files.deleteIfExists(temporaryFile);
+            throw new IOException("Version of '" + version.relativePath() + "' in generation " + version.generation() + " is incomplete");
+        }
+
+        Files.setLastModifiedTime(temporaryFile, FileTime.fromMillis(version.modifiedMillis()));
+        Files.move(temporaryFile, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the oldest generations until the history meets its retention policy, and returns how many were removed
+     */
+    public synchronized int prune() throws IOException {
+        return prune(System.currentTimeMillis());
+    }
+
+    synchronized int prune(long nowMillis) throws IOException {
+        return withStoreLock(() -> removeExpiredGenerations(nowMillis));
+    }
+
+    private int removeExpiredGenerations(long nowMillis) throws IOException {
+        List<String> generations = getGenerations();
+        int pruned = 0;
+
+        while (!generations.isEmpty()) {
+            String oldest = generations.get(0);
+            boolean tooMany = retentionPolicy.keepGenerations() > 0 && generations.size() > retentionPolicy.keepGenerations();
+            boolean tooOld = retentionPolicy.maxAgeMillis() > 0 && storedMillisOf(oldest) < nowMillis - retentionPolicy.maxAgeMillis();
+            boolean tooLarge = retentionPolicy.maxBytes() > 0 && generations.size() > 1 && chunkStore.getStoredBytes() > retentionPolicy.maxBytes();
+            if (!tooMany && !tooOld && !tooLarge) break;
+
+            removeGeneration(oldest);
+            generations.remove(0);
+            pruned++;
+        }
+
+        return pruned;
+    }
+
+    /**
+     * Drops the generation from the buckets it appears in, then deletes its manifest and releases its chunks. A crash
+     * in between leaves chunks that nothing uses, never a version whose chunks are gone
+     */
+    private void removeGeneration(String generation) throws IOException {
+        Path manifest = generationDirectory.resolve(generation);
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        String nickname = lines.isEmpty() ? "" : unescape(lines.get(0));
+
+        Set<String> buckets = new TreeSet<>();
+        List<String> chunks = new ArrayList<>();
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 4) continue;
+
+            buckets.add(bucketOf(nickname, Path.of(unescape(fields[0]))));
+            if (!fields[3].isEmpty()) chunks.addAll(List.of(fields[3].split(",")));
+        }
+
+        for (String bucket : buckets) {
+            removeFromBucket(bucket, generation);
+        }
+        Files.delete(manifest);
+        chunkStore.release(chunks);
+    }
+
+    /**
+     * Returns the total size of the chunks kept for every generation
+     */
+    public long getStoredBytes() throws IOException {
+        return withStoreLock(chunkStore::getStoredBytes);
+    }
+
+    /**
+     * Runs action while holding the lock on the history, with the chunk reference counts read again first if another
+     * process has changed them
+     */
+    private <T> T withStoreLock(LockedAction<T> action) throws IOException {
+        ReentrantLock processLock = PROCESS_LOCKS.computeIfAbsent(lockFile, path -> new ReentrantLock());
+        processLock.lock();
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            chunkStore.refresh();
+            return action.run();
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private static long storedMillisOf(String generation) {
+        return Long.parseLong(generation.substring(0, generation.indexOf('-')));
+    }
+
+    private static String indexLine(Version version) {
+        return version.generation() + '\t' + version.storedMillis() + '\t' + escape(version.nickname()) + '\t' + escape(version.relativePath().toString())
+                + '\t' + version.size() + '\t' + version.modifiedMillis() + '\t' + String.join(",", version.chunks()) + '\n';
+    }
+
+    private void appendToBucket(String bucket, CharSequence lines) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexDirectory.resolve(bucket), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+    }
+
+    private void removeFromBucket(String bucket, String generation) throws IOException {
+        Path bucketFile = indexDirectory.resolve(bucket);
+        if (!Files.isRegularFile(bucketFile)) return;
+
+        StringBuilder kept = new StringBuilder();
+        for (String line : Files.readAllLines(bucketFile, StandardCharsets.UTF_8)) {
+            if (!line.startsWith(generation + "\t")) kept.append(line).append('\n');
+        }
+
+        if (kept.isEmpty()) {
+            Files.delete(bucketFile);
+            return;
+        }
+
+        Path temporaryFile = indexDirectory.resolve("." + bucket + ".tmp");
+        Files.writeString(temporaryFile, kept, StandardCharsets.UTF_8);
+        Files.move(temporaryFile, bucketFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the name of the index bucket holding the versions of relativePath in the root nicknamed nickname
+     */
+    private static String bucketOf(String nickname, Path relativePath) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(nickname.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(relativePath.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().toHexDigits(digest.digest()[0]);
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IllegalStateException("SHA-256 is not available", nsaE);
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                unescaped.append(c);
+                continue;
+            }
+
+            char escaped = value.charAt(++i);
+            unescaped.append((escaped == 't') ? '\t' : (escaped == 'n') ? '\n' : escaped);
+        }
+        return unescaped.toString();
+    }
+
+}
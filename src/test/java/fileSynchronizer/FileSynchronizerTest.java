@@ -7,8 +7,13 @@ import org.junit.jupiter.api.Test;
 import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -187,7 +192,7 @@ public final class FileSynchronizerTest {
         String[] localDirFilenames = localDir.list();
         boolean localHasUserFiles = false;
         for (String filename : localDirFilenames) {
-            if (!filename.equals(".sync_trash") && !filename.equals(".sync_log") && !filename.equals(".sync_exclude")) {
+            if (!filename.equals(".sync_trash") && !filename.equals(".sync_log") && !filename.equals(".sync_exclude") && !filename.equals(".sync_index") && !filename.equals(".sync_tombstones")) {
                 localHasUserFiles = true;
                 break;
             }
@@ -197,7 +202,7 @@ public final class FileSynchronizerTest {
         String[] remoteDirFilenames = remoteDir.list();
         boolean remoteHasUserFiles = false;
         for (String filename : remoteDirFilenames) {
-            if (!filename.equals(".sync_trash") && !filename.equals(".sync_log") && !filename.equals(".sync_exclude")) {
+            if (!filename.equals(".sync_trash") && !filename.equals(".sync_log") && !filename.equals(".sync_exclude") && !filename.equals(".sync_index") && !filename.equals(".sync_tombstones")) {
                 remoteHasUserFiles = true;
                 break;
             }
@@ -484,6 +489,73 @@ public final class FileSynchronizerTest {
         assertFalse(allFilesExist(testingRemoteDirectory, excludedFile));
     }
 
+    @Test
+    void globPatternsInExclusionListShouldBeIgnored() {
+        Path localLog = Path.of("debug.log");
+        Path localNestedLog = Path.of("sub").resolve("trace.log");
+        Path localBuildFile = Path.of("build").resolve("out.txt");
+        Path localNestedBuildFile = Path.of("sub").resolve("build").resolve("kept.txt");
+        Path localCacheFile = Path.of("x").resolve("cache").resolve("a.bin");
+        Path localKeptFile = Path.of("kept.txt");
+        createFiles(testingLocalDirectory, localLog, localNestedLog, localBuildFile, localNestedBuildFile, localCacheFile, localKeptFile);
+        createFiles(testingLocalDirectory, Path.of(".sync_exclude"));
+        appendLineToFile(testingLocalDirectory.resolve(".sync_exclude"), "*.log");
+        appendLineToFile(testingLocalDirectory.resolve(".sync_exclude"), "/build");
+        appendLineToFile(testingLocalDirectory.resolve(".sync_exclude"), "**/cache/*.bin");
+        appendLineToFile(testingLocalDirectory.resolve(".sync_exclude"), "tmp/");
+        Path localTmpFile = Path.of("tmp").resolve("scratch.txt");
+        createFiles(testingLocalDirectory, localTmpFile);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+
+        assertFalse(allFilesExist(testingRemoteDirectory, localTmpFile));
+        assertTrue(getFileLines(testingRemoteDirectory.resolve(".sync_exclude")).contains("tmp/"));
+
+        assertTrue(allFilesExist(testingRemoteDirectory, localKeptFile, localNestedBuildFile));
+        assertFalse(allFilesExist(testingRemoteDirectory, localLog));
+        assertFalse(allFilesExist(testingRemoteDirectory, localNestedLog));
+        assertFalse(allFilesExist(testingRemoteDirectory, localBuildFile));
+        assertFalse(allFilesExist(testingRemoteDirectory, localCacheFile));
+    }
+
+    @Test
+    void leftoverTemporaryFilesShouldNotBeSynced() {
+        // Left behind by a delta transfer and a resumable copy that were both interrupted
+        Path leftoverDelta = Path.of(".report.txt.sync_delta");
+        Path leftoverPartial = Path.of(".video.mp4.sync_partial");
+        Path keptFile = Path.of("kept.txt");
+        createFiles(testingLocalDirectory, leftoverDelta, leftoverPartial, keptFile);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+
+        assertTrue(allFilesExist(testingRemoteDirectory, keptFile));
+        assertFalse(allFilesExist(testingRemoteDirectory, leftoverDelta));
+        assertFalse(allFilesExist(testingRemoteDirectory, leftoverPartial));
+    }
+
+    @Test
+    void absoluteEntriesFromOlderVersionsShouldBeMigrated() {
+        // Older versions matched entries against absolute paths and wrote the merged list to both directories
+        Path localSecret = Path.of("secret");
+        Path remotePrivate = Path.of("private");
+        createFiles(testingLocalDirectory, localSecret, Path.of(".sync_exclude"));
+        createFiles(testingRemoteDirectory, remotePrivate, Path.of(".sync_exclude"));
+        for (Path directory : List.of(testingLocalDirectory, testingRemoteDirectory)) {
+            appendLineToFile(directory.resolve(".sync_exclude"), testingLocalDirectory.resolve(localSecret).toAbsolutePath().toString());
+            appendLineToFile(directory.resolve(".sync_exclude"), testingRemoteDirectory.resolve(remotePrivate).toAbsolutePath().toString());
+        }
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+
+        assertFalse(allFilesExist(testingRemoteDirectory, localSecret));
+        assertFalse(allFilesExist(testingLocalDirectory, remotePrivate));
+        assertTrue(getFileLines(testingLocalDirectory.resolve(".sync_exclude")).containsAll(List.of("/secret", "/private")));
+        assertTrue(getFileLines(testingLocalDirectory.resolve(".sync_exclude")).stream().noneMatch(line -> line.startsWith(testingParentDirectory.toAbsolutePath().toString())));
+    }
+
     @Test
     void directoriesInExclusionListShouldBeIgnored() {
         FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
@@ -696,6 +768,744 @@ public final class FileSynchronizerTest {
         assertEquals("Local", getFileContents(testingRemoteDirectory.resolve(conflict)));
     }
 
+    @Test
+    void syncedFilesShouldBeRecordedInIndex() {
+        Path localDir1 = Path.of("localDir1");
+        Path localFile1 = localDir1.resolve("localFile1");
+        createFiles(testingLocalDirectory, localFile1);
+        appendLineToFile(testingLocalDirectory.resolve(localFile1), "Indexed");
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+
+        FileIndex remoteIndex = FileIndex.load(testingRemoteDirectory.resolve(".sync_index"));
+        assertTrue(remoteIndex.get(localDir1).directory());
+        assertEquals(("Indexed" + System.lineSeparator()).length(), remoteIndex.get(localFile1).size());
+        assertNotNull(FileIndex.load(testingLocalDirectory.resolve(".sync_index")).get(localDir1));
+    }
+
+    @Test
+    void parallelComparisonShouldPromptConflictsInSortedOrder() {
+        Path conflict1 = Path.of("a").resolve("conflictFile1");
+        Path conflict2 = Path.of("b").resolve("conflictFile2");
+        Path conflict3 = Path.of("c").resolve("conflictFile3");
+        createFiles(testingLocalDirectory, conflict1, conflict2, conflict3);
+        createFiles(testingRemoteDirectory, conflict1, conflict2, conflict3);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true, "1!");
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        appendLineToFile(testingLocalDirectory.resolve(conflict1), "Local1");
+        appendLineToFile(testingLocalDirectory.resolve(conflict2), "Local2");
+        appendLineToFile(testingLocalDirectory.resolve(conflict3), "Local3");
+
+        appendLineToFile(testingRemoteDirectory.resolve(conflict1), "Remote1");
+        appendLineToFile(testingRemoteDirectory.resolve(conflict2), "Remote2");
+        appendLineToFile(testingRemoteDirectory.resolve(conflict3), "Remote3");
+
+        SyncOptions options = new SyncOptions();
+        options.setComparisonThreads(4);
+        passUserInput("1", "2", "1", "y");
+        FileSynchronizer secondSync = new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options);
+        secondSync.synchronizeFileTrees();
+
+        assertEquals("Local1", getFileContents(testingRemoteDirectory.resolve(conflict1)));
+        assertEquals("Remote2", getFileContents(testingLocalDirectory.resolve(conflict2)));
+        assertEquals("Local3", getFileContents(testingRemoteDirectory.resolve(conflict3)));
+    }
+
+    @Test
+    void identicalContentShouldNotBeReportedAsConflict() {
+        Path conflict = Path.of("conflictFile");
+        createFiles(testingLocalDirectory, conflict);
+        createFiles(testingRemoteDirectory, conflict);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true, "1");
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        appendLineToFile(testingLocalDirectory.resolve(conflict), "Same");
+        delay(10);
+        appendLineToFile(testingRemoteDirectory.resolve(conflict), "Same");
+
+        SyncOptions options = new SyncOptions();
+        options.setVerifyContent(true);
+        passUserInput("y");
+        FileSynchronizer secondSync = new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options);
+        secondSync.synchronizeFileTrees();
+
+        assertEquals("Same", getFileContents(testingLocalDirectory.resolve(conflict)));
+        assertEquals("Same", getFileContents(testingRemoteDirectory.resolve(conflict)));
+        assertFalse(allFilesExist(testingLocalDirectory.resolve(".sync_trash"), conflict));
+        assertFalse(allFilesExist(testingRemoteDirectory.resolve(".sync_trash"), conflict));
+        assertTrue(allFilesExist(testingLocalDirectory, Path.of(".sync_hashes")));
+    }
+
+    @Test
+    void deltaTransferShouldReproduceModifiedFiles() throws IOException {
+        Path largeFile = Path.of("largeFile");
+        byte[] original = new byte[200 * 1024];
+        new java.util.Random(42).nextBytes(original);
+        Files.write(testingLocalDirectory.resolve(largeFile), original);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        SyncOptions options = new SyncOptions();
+        options.setDeltaTransfer(true);
+        options.setDeltaMinimumSize(0);
+
+        // Overwrite a region in place, which keeps every unchanged block at its offset
+        byte[] modified = original.clone();
+        java.util.Arrays.fill(modified, 50_000, 60_000, (byte) 7);
+        Files.write(testingLocalDirectory.resolve(largeFile), modified);
+        boolean posix = Files.getFileAttributeView(testingLocalDirectory.resolve(largeFile), PosixFileAttributeView.class) != null;
+        if (posix) Files.setPosixFilePermissions(testingLocalDirectory.resolve(largeFile), PosixFilePermissions.fromString("rwxr-x---"));
+
+        passUserInput("y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+        assertArrayEquals(modified, Files.readAllBytes(testingRemoteDirectory.resolve(largeFile)));
+        if (posix) assertEquals(PosixFilePermissions.fromString("rwxr-x---"), Files.getPosixFilePermissions(testingRemoteDirectory.resolve(largeFile)));
+        delay(10);
+
+        // Insert bytes at the front, which shifts every block, so the file is rebuilt next to the destination
+        byte[] shifted = new byte[modified.length + 100];
+        System.arraycopy(modified, 0, shifted, 100, modified.length);
+        Files.write(testingLocalDirectory.resolve(largeFile), shifted);
+        if (posix) Files.setPosixFilePermissions(testingLocalDirectory.resolve(largeFile), PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        passUserInput("y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+        assertArrayEquals(shifted, Files.readAllBytes(testingRemoteDirectory.resolve(largeFile)));
+        if (posix) assertEquals(PosixFilePermissions.fromString("rwxr-xr-x"), Files.getPosixFilePermissions(testingRemoteDirectory.resolve(largeFile)));
+    }
+
+    @Test
+    void everyCopyEngineShouldProduceIdenticalCopies() throws IOException {
+        Path source = testingLocalDirectory.resolve("source");
+        byte[] contents = new byte[3 * 1024 * 1024 + 17];
+        new java.util.Random(7).nextBytes(contents);
+        Files.write(source, contents);
+        Files.setLastModifiedTime(source, java.nio.file.attribute.FileTime.fromMillis(1_000_000_000_000L));
+        boolean posix = Files.getFileAttributeView(source, PosixFileAttributeView.class) != null;
+        if (posix) Files.setPosixFilePermissions(source, PosixFilePermissions.fromString("rwxr-x---"));
+
+        for (CopyEngine.Strategy strategy : CopyEngine.Strategy.values()) {
+            for (long resumableMinimumSize : new long[]{Long.MAX_VALUE, 1}) {
+                Path destination = testingRemoteDirectory.resolve(strategy.name() + "-" + resumableMinimumSize);
+                CopyEngine.create(strategy, 1024 * 1024, resumableMinimumSize).copy(source, destination, Files.readAttributes(source, BasicFileAttributes.class));
+
+                assertArrayEquals(contents, Files.readAllBytes(destination), strategy.name());
+                assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(destination), strategy.name());
+                if (posix) assertEquals(Files.getPosixFilePermissions(source), Files.getPosixFilePermissions(destination), strategy.name());
+            }
+        }
+
+        // While a byte rate is set, FILES copies through a buffer instead of Files.copy
+        Path throttledDestination = testingRemoteDirectory.resolve("throttled");
+        CopyEngine.create(CopyEngine.Strategy.FILES, 1024 * 1024, Long.MAX_VALUE, new RateLimiter(1L << 40, 0, null), false)
+                .copy(source, throttledDestination, Files.readAttributes(source, BasicFileAttributes.class));
+        assertArrayEquals(contents, Files.readAllBytes(throttledDestination));
+        if (posix) assertEquals(Files.getPosixFilePermissions(source), Files.getPosixFilePermissions(throttledDestination));
+    }
+
+    @Test
+    void resumableCopyShouldContinueAfterLastVerifiedChunk() throws IOException {
+        Path source = testingLocalDirectory.resolve("large");
+        Path destination = testingRemoteDirectory.resolve("large");
+        byte[] contents = new byte[10 * 1024 + 5];
+        new java.util.Random(11).nextBytes(contents);
+        Files.write(source, contents);
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+
+        // An interrupted copy: two chunks recorded, the second of them torn, and the first differing from the source
+        // so it shows whether the engine reused it instead of copying it again
+        byte[] partial = Arrays.copyOf(contents, 2048);
+        Arrays.fill(partial, 0, 1024, (byte) 'x');
+        partial[1500] ^= 1;
+        Files.write(testingRemoteDirectory.resolve(".large.sync_partial"), partial);
+
+        java.util.zip.CRC32C firstChunk = new java.util.zip.CRC32C();
+        firstChunk.update(partial, 0, 1024);
+        java.util.zip.CRC32C secondChunk = new java.util.zip.CRC32C();
+        secondChunk.update(contents, 1024, 1024);
+        Files.writeString(testingRemoteDirectory.resolve(".large.sync_partial.progress"), "source " + attributes.size() + " " + attributes.lastModifiedTime().toMillis() + "\n"
+                + "0 1024 " + firstChunk.getValue() + "\n1024 1024 " + secondChunk.getValue() + "\n");
+
+        new ResumableCopyEngine(new FilesCopyEngine(), 1, 1024).copy(source, destination, attributes);
+
+        byte[] expected = contents.clone();
+        Arrays.fill(expected, 0, 1024, (byte) 'x');
+        assertArrayEquals(expected, Files.readAllBytes(destination));
+        assertEquals(attributes.lastModifiedTime(), Files.getLastModifiedTime(destination));
+        assertFalse(allFilesExist(testingRemoteDirectory, Path.of(".large.sync_partial")));
+        assertFalse(allFilesExist(testingRemoteDirectory, Path.of(".large.sync_partial.progress")));
+    }
+
+    @Test
+    void boundedTransferPipelineShouldStillSyncEveryChange() {
+        Path localFile1 = Path.of("localFile1");
+        Path localDir1 = Path.of("localDir1");
+        Path localFile2 = localDir1.resolve("localFile2");
+        Path remoteFile1 = Path.of("remoteFile1");
+        Path remoteFile2 = Path.of("remoteFile2");
+        createFiles(testingLocalDirectory, localFile1, localFile2);
+        createFiles(testingRemoteDirectory, remoteFile1, remoteFile2);
+
+        SyncOptions options = new SyncOptions();
+        options.setTransferThreads(2);
+        options.setMaxQueuedTransfers(1);
+        options.setMaxBytesInFlight(1);
+        passUserInput("1", "y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        assertTrue(allFilesExist(testingRemoteDirectory, localFile1, localDir1, localFile2));
+        assertTrue(allFilesExist(testingLocalDirectory, remoteFile1, remoteFile2));
+    }
+
+    @Test
+    void metricsShouldCountWhatTheSyncDid() throws IOException {
+        Path localFile1 = Path.of("localFile1");
+        Path excludedFile = Path.of("excluded");
+        Path remoteFile1 = Path.of("remoteFile1");
+        createFiles(testingLocalDirectory, localFile1, excludedFile, Path.of(".sync_exclude"));
+        createFiles(testingRemoteDirectory, remoteFile1);
+        appendLineToFile(testingLocalDirectory.resolve(localFile1), "Metrics");
+        appendLineToFile(testingLocalDirectory.resolve(".sync_exclude"), "excluded");
+
+        Path metricsFile = testingParentDirectory.resolve("metrics.json");
+        SyncOptions options = new SyncOptions();
+        options.setMetricsFile(metricsFile);
+        passUserInput("1", "y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        SyncMetrics metrics = options.getMetrics();
+        assertEquals(2, metrics.getFilesCopied());
+        assertEquals(("Metrics" + System.lineSeparator()).length(), metrics.getBytesCopied());
+        // .sync_exclude and .sync_trash are excluded along with the listed file
+        assertEquals(3, metrics.getExclusionsHit());
+        assertEquals(0, metrics.getConflicts());
+
+        String summary = Files.readString(metricsFile);
+        assertTrue(summary.contains("\"filesCopied\": 2"));
+        assertTrue(summary.contains("\"conflictResolution\""));
+        Files.delete(metricsFile);
+    }
+
+    @Test
+    void movedDirectoryShouldBeMovedInsteadOfCopied() throws IOException {
+        Path photos = Path.of("Photos").resolve("2023");
+        Path photo1 = photos.resolve("photo1");
+        Path photo2 = photos.resolve("photo2");
+        createFiles(testingLocalDirectory, photo1, photo2);
+        appendLineToFile(testingLocalDirectory.resolve(photo1), "Photo1");
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        Path archive = Path.of("Archive").resolve("2023");
+        Files.createDirectories(testingLocalDirectory.resolve(archive).getParent());
+        Files.move(testingLocalDirectory.resolve(photos), testingLocalDirectory.resolve(archive));
+
+        SyncOptions options = new SyncOptions();
+        options.setDetectMoves(true);
+        passUserInput("y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        assertTrue(allFilesExist(testingRemoteDirectory, archive.resolve("photo1"), archive.resolve("photo2")));
+        assertFalse(allFilesExist(testingRemoteDirectory, photos));
+        assertFalse(allFilesExist(testingRemoteDirectory.resolve(".sync_trash"), photo1));
+        assertEquals("Photo1", getFileContents(testingRemoteDirectory.resolve(archive.resolve("photo1"))));
+        assertEquals(1, options.getMetrics().getPathsMoved());
+        assertEquals(0, options.getMetrics().getFilesCopied());
+    }
+
+    @Test
+    void trashingAPathAlreadyInTrashShouldMergeBothVersions() {
+        Path dir = Path.of("dir");
+        Path firstFile = dir.resolve("firstFile");
+        Path secondFile = dir.resolve("secondFile");
+        FileSyncRoot root = new FileSyncRoot(testingLocalDirectory.toString(), "local", "remote", true);
+
+        createFiles(testingLocalDirectory, firstFile);
+        root.trash(dir);
+        createFiles(testingLocalDirectory, secondFile);
+        root.trash(dir);
+
+        assertFalse(allFilesExist(testingLocalDirectory, dir));
+        assertTrue(allFilesExist(testingLocalDirectory.resolve(".sync_trash"), firstFile, secondFile));
+    }
+
+    @Test
+    void oldTrashShouldBeEmptiedWithoutBlockingStartup() {
+        Path trashedFile = Path.of("dir").resolve("trashedFile");
+        createFiles(testingLocalDirectory.resolve(".sync_trash"), trashedFile);
+
+        FileSyncRoot root = new FileSyncRoot(testingLocalDirectory.toString(), "local", "remote", true);
+        assertTrue(allFilesExist(testingLocalDirectory, Path.of(".sync_trash")));
+        assertFalse(allFilesExist(testingLocalDirectory.resolve(".sync_trash"), trashedFile));
+
+        root.awaitTrashPurge();
+        assertFalse(allFilesExist(testingLocalDirectory, Path.of(".sync_tombstones")));
+    }
+
+    @Test
+    void conflictPoliciesShouldResolveConflictsWithoutPrompting() {
+        Path newestConflict = Path.of("newest.txt");
+        Path keepBothConflict = Path.of("notes.keep");
+        Path defaultConflict = Path.of("data.bin");
+        createFiles(testingLocalDirectory, newestConflict, keepBothConflict, defaultConflict);
+        createFiles(testingRemoteDirectory, newestConflict, keepBothConflict, defaultConflict);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true, "1!");
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        appendLineToFile(testingLocalDirectory.resolve(newestConflict), "Local");
+        appendLineToFile(testingLocalDirectory.resolve(keepBothConflict), "Local");
+        appendLineToFile(testingLocalDirectory.resolve(defaultConflict), "Local");
+        delay(10);
+        appendLineToFile(testingRemoteDirectory.resolve(newestConflict), "Remote");
+        appendLineToFile(testingRemoteDirectory.resolve(keepBothConflict), "Remote");
+        appendLineToFile(testingRemoteDirectory.resolve(defaultConflict), "Remote");
+
+        createFiles(testingLocalDirectory, Path.of(".sync_conflicts"));
+        appendLineToFile(testingLocalDirectory.resolve(".sync_conflicts"), "*.txt newest");
+        appendLineToFile(testingLocalDirectory.resolve(".sync_conflicts"), "*.keep keep-both");
+
+        SyncOptions options = new SyncOptions();
+        options.setDefaultConflictResolution(ConflictPolicy.Resolution.parse("prefer:local"));
+        passUserInput("y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        Path keptRemoteVersion = Path.of("notes.remote-conflict.keep");
+        assertEquals("Remote", getFileContents(testingLocalDirectory.resolve(newestConflict)));
+        assertEquals("Local", getFileContents(testingRemoteDirectory.resolve(keepBothConflict)));
+        assertEquals("Remote", getFileContents(testingLocalDirectory.resolve(keptRemoteVersion)));
+        assertEquals("Remote", getFileContents(testingRemoteDirectory.resolve(keptRemoteVersion)));
+        assertEquals("Local", getFileContents(testingRemoteDirectory.resolve(defaultConflict)));
+    }
+
+    @Test
+    void dryRunShouldOnlyPlanAndPlanShouldRunLater() throws IOException {
+        Path file1 = Path.of("file1");
+        Path file2 = Path.of("Dir1").resolve("file2");
+        createFiles(testingLocalDirectory, file1);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        createFiles(testingLocalDirectory, file2);
+        appendLineToFile(testingLocalDirectory.resolve(file2), "Planned");
+        Files.delete(testingRemoteDirectory.resolve(file1));
+
+        passUserInput();
+        SyncPlan plan = new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, new SyncOptions()).plan();
+
+        assertEquals(1, plan.getCopyCount());
+        assertEquals(1, plan.getTrashCount());
+        assertFalse(allFilesExist(testingRemoteDirectory, file2));
+        assertTrue(allFilesExist(testingLocalDirectory, file1));
+
+        Path planFile = testingParentDirectory.resolve("plan.jsonl");
+        plan.write(planFile);
+
+        passUserInput("n");
+        FileSynchronizer executor = new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, new SyncOptions());
+        executor.executePlan(SyncPlan.read(planFile, executor.getLocalRoot(), executor.getRemoteRoot()));
+
+        assertEquals("Planned", getFileContents(testingRemoteDirectory.resolve(file2)));
+        assertFalse(allFilesExist(testingLocalDirectory, file1));
+        assertTrue(allFilesExist(testingLocalDirectory.resolve(".sync_trash"), file1));
+        assertEquals(plan.getCreatedMillis(), executor.getLastSyncMillis());
+    }
+
+    @Test
+    void plannedMoveShouldCarryChangesMadeInsideTheMovedDirectory() throws IOException {
+        Path oldDir = Path.of("P");
+        Path newDir = Path.of("Q");
+        createFiles(testingLocalDirectory, oldDir.resolve("old.txt"));
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        Files.move(testingLocalDirectory.resolve(oldDir), testingLocalDirectory.resolve(newDir));
+        createFiles(testingLocalDirectory, newDir.resolve("new.txt"));
+        appendLineToFile(testingLocalDirectory.resolve(newDir.resolve("new.txt")), "New");
+
+        SyncOptions options = new SyncOptions();
+        options.setDetectMoves(true);
+        passUserInput();
+        Path planFile = testingParentDirectory.resolve("plan.jsonl");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).plan().write(planFile);
+
+        passUserInput("n");
+        FileSynchronizer executor = new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options);
+        executor.executePlan(SyncPlan.read(planFile, executor.getLocalRoot(), executor.getRemoteRoot()));
+        assertEquals("New", getFileContents(testingRemoteDirectory.resolve(newDir.resolve("new.txt"))));
+
+        // The next sync sees both copies as already in sync instead of the new file as deleted
+        delay(10);
+        passUserInput("y");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, new SyncOptions()).synchronizeFileTrees();
+        assertTrue(allFilesExist(testingLocalDirectory, newDir.resolve("new.txt"), newDir.resolve("old.txt")));
+        assertTrue(allFilesExist(testingRemoteDirectory, newDir.resolve("new.txt"), newDir.resolve("old.txt")));
+        assertFalse(allFilesExist(testingRemoteDirectory, oldDir));
+    }
+
+    @Test
+    void interruptedCopyShouldBeFinishedByNextSync() {
+        Path dir1 = Path.of("Dir1");
+        Path file1 = dir1.resolve("file1");
+        Path file2 = dir1.resolve("file2");
+        createFiles(testingLocalDirectory, file1, file2);
+        appendLineToFile(testingLocalDirectory.resolve(file1), "Original");
+
+        // Only record a sync, so Dir1 is older than the last sync and would be trashed if nothing said it was being copied
+        FileSynchronizer firstSync = testingFileSynchronizer(true, false, true);
+        firstSync.synchronizeFileTrees();
+        delay(10);
+
+        // A sync that was killed while copying Dir1, after writing part of file1
+        SyncJournal.load(testingRemoteDirectory.resolve(".sync_journal"), 200).beginCopy(dir1, "local", true, 0);
+        createFiles(testingRemoteDirectory, file1);
+        appendLineToFile(testingRemoteDirectory.resolve(file1), "Partial");
+
+        FileSynchronizer resumedSync = testingFileSynchronizer(false, false, true);
+        resumedSync.synchronizeFileTrees();
+
+        assertEquals("Original", getFileContents(testingLocalDirectory.resolve(file1)));
+        assertEquals("Original", getFileContents(testingRemoteDirectory.resolve(file1)));
+        assertTrue(allFilesExist(testingRemoteDirectory, file2));
+        assertTrue(allFilesExist(testingLocalDirectory, file2));
+        assertFalse(allFilesExist(testingRemoteDirectory, Path.of(".sync_journal")));
+    }
+
+    @Test
+    void threeDirectoriesShouldBeSyncedInOnePass() {
+        Path testingThirdDirectory = testingParentDirectory.resolve("third");
+        Path fileA = Path.of("fileA");
+        Path fileB = Path.of("fileB");
+        Path fileC = Path.of("Dir1").resolve("fileC");
+        createDirectories(testingParentDirectory, Path.of("third"));
+        createFiles(testingLocalDirectory, fileA);
+        createFiles(testingRemoteDirectory, fileB);
+        createFiles(testingThirdDirectory, fileC);
+
+        List<String> paths = List.of(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), testingThirdDirectory.toString());
+        List<String> nicknames = List.of("local", "remote", "third");
+
+        passUserInput();
+        new MultiRootSynchronizer(paths, nicknames, userInput, true, new SyncOptions()).synchronizeFileTrees();
+        for (Path directory : List.of(testingLocalDirectory, testingRemoteDirectory, testingThirdDirectory)) {
+            assertTrue(allFilesExist(directory, fileA, fileB, fileC));
+        }
+        delay(10);
+
+        appendLineToFile(testingRemoteDirectory.resolve(fileA), "Remote");
+        testingThirdDirectory.resolve(fileB).toFile().delete();
+
+        passUserInput("y");
+        new MultiRootSynchronizer(paths, nicknames, userInput, true, new SyncOptions()).synchronizeFileTrees();
+        for (Path directory : List.of(testingLocalDirectory, testingRemoteDirectory, testingThirdDirectory)) {
+            assertEquals("Remote", getFileContents(directory.resolve(fileA)));
+            assertFalse(allFilesExist(directory, fileB));
+        }
+    }
+
+    @Test
+    void agentOnLoopbackShouldSyncLikeAMountedDirectory() throws IOException {
+        Path localFile = Path.of("localFile");
+        Path remoteFile = Path.of("Dir1").resolve("remoteFile");
+        createFiles(testingLocalDirectory, localFile);
+        createFiles(testingRemoteDirectory, remoteFile);
+        appendLineToFile(testingRemoteDirectory.resolve(remoteFile), "Remote");
+
+        SyncOptions options = new SyncOptions();
+        options.setAgentSecret("correct horse");
+        SyncAgent agent = new SyncAgent(testingRemoteDirectory.toString(), "remote", 0, true, options);
+        agent.start();
+        String address = "filesync://localhost:" + agent.getPort();
+
+        try {
+            passUserInput("1");
+            new RemoteSynchronizer(testingLocalDirectory.toString(), address, "local", "remote", userInput, true, options).synchronizeFileTrees();
+            assertTrue(allFilesExist(testingLocalDirectory, localFile, remoteFile));
+            assertTrue(allFilesExist(testingRemoteDirectory, localFile, remoteFile));
+            assertEquals("Remote", getFileContents(testingLocalDirectory.resolve(remoteFile)));
+            delay(10);
+
+            appendLineToFile(testingLocalDirectory.resolve(localFile), "Local");
+            deleteFiles(testingRemoteDirectory, remoteFile);
+
+            passUserInput("y");
+            new RemoteSynchronizer(testingLocalDirectory.toString(), address, "local", "remote", userInput, true, options).synchronizeFileTrees();
+            assertEquals("Local", getFileContents(testingRemoteDirectory.resolve(localFile)));
+            assertFalse(allFilesExist(testingLocalDirectory, remoteFile));
+        } finally {
+            agent.close();
+        }
+    }
+
+    @Test
+    void agentShouldOnlyServeClientsWithItsSecretAndKeepItsOwnFiles() throws IOException {
+        Path remoteFile = Path.of("remoteFile");
+        createFiles(testingRemoteDirectory, remoteFile);
+
+        SyncOptions options = new SyncOptions();
+        options.setAgentSecret("correct horse");
+        SyncAgent agent = new SyncAgent(testingRemoteDirectory.toString(), "remote", 0, true, options);
+        agent.start();
+        String address = "filesync://localhost:" + agent.getPort();
+        assertTrue(options.getAgentBindAddress().isLoopbackAddress());
+
+        try {
+            // A wrong secret is refused and the connection closed, so nothing else can be asked on it
+            try (AgentConnection connection = AgentConnection.connect(address)) {
+                assertThrows(IOException.class, () -> connection.hello("battery staple", "local", 0));
+                assertThrows(IOException.class, () -> connection.trash(remoteFile));
+            }
+            assertTrue(allFilesExist(testingRemoteDirectory, remoteFile));
+
+            try (AgentConnection connection = AgentConnection.connect(address)) {
+                assertEquals("remote", connection.hello("correct horse", "local", 0).nickname());
+                assertThrows(IOException.class, () -> connection.trash(Path.of("")));
+                assertThrows(IOException.class, () -> connection.trash(Path.of(".sync_index")));
+                assertThrows(IOException.class, () -> connection.createDirectory(Path.of(".sync_trash", "dir")));
+                assertThrows(IOException.class, () -> connection.upload(testingRemoteDirectory.resolve(remoteFile), Path.of(".sync_exclude"), 0, 0));
+
+                connection.trash(remoteFile);
+            }
+            assertFalse(allFilesExist(testingRemoteDirectory, remoteFile));
+            assertFalse(allFilesExist(testingRemoteDirectory.resolve(".sync_trash"), Path.of("dir")));
+        } finally {
+            agent.close();
+        }
+    }
+
+    @Test
+    void compressedTransfersShouldArriveIntact() throws IOException {
+        Path logFile = Path.of("server.log");
+        Path archive = Path.of("Dir1").resolve("logs.zip");
+        String text = "INFO request served in 12 ms\n".repeat(20000);
+        createFiles(testingRemoteDirectory, logFile, archive);
+        Files.writeString(testingRemoteDirectory.resolve(logFile), text);
+        Files.writeString(testingRemoteDirectory.resolve(archive), text);
+
+        SyncOptions options = new SyncOptions();
+        options.setCompressionLevel(6);
+        options.setAgentSecret("correct horse");
+        SyncAgent agent = new SyncAgent(testingRemoteDirectory.toString(), "remote", 0, true, options);
+        agent.start();
+
+        try {
+            passUserInput("1");
+            new RemoteSynchronizer(testingLocalDirectory.toString(), "filesync://localhost:" + agent.getPort(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+            assertEquals(text, Files.readString(testingLocalDirectory.resolve(logFile)));
+            assertEquals(text, Files.readString(testingLocalDirectory.resolve(archive)));
+        } finally {
+            agent.close();
+        }
+
+        // Text shrinks, while a file named like an archive is sent as it is
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        byte[] chunk = text.substring(0, AgentProtocol.MAX_PAYLOAD).getBytes();
+        TransferCompressor textCompressor = new TransferCompressor(logFile, 6);
+        textCompressor.writeChunk(new DataOutputStream(sink), 1, chunk, chunk.length);
+        assertTrue(textCompressor.getSentBytes() < chunk.length / 10);
+
+        TransferCompressor archiveCompressor = new TransferCompressor(archive, 6);
+        archiveCompressor.writeChunk(new DataOutputStream(sink), 1, chunk, chunk.length);
+        assertEquals(chunk.length, archiveCompressor.getSentBytes());
+    }
+
+    @Test
+    void overwrittenVersionsShouldBeKeptDeduplicated() throws IOException {
+        Path report = Path.of("report.txt");
+        StringBuilder original = new StringBuilder();
+        for (int line = 0; line < 40000; line++) {
+            original.append("line ").append(line).append(" of the quarterly report\n");
+        }
+        createFiles(testingRemoteDirectory, report);
+        Files.writeString(testingRemoteDirectory.resolve(report), original);
+
+        SyncOptions options = new SyncOptions();
+        options.setVersionStoreDirectory(testingParentDirectory.resolve("versions"));
+
+        passUserInput("1");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        // Every sync overwrites the local copy with a slightly longer version, and the old one is trashed and kept
+        for (int edit = 0; edit < 3; edit++) {
+            delay(10);
+            appendLineToFile(testingRemoteDirectory.resolve(report), "Edit " + edit);
+
+            passUserInput("y");
+            new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+        }
+
+        VersionHistory history = options.getVersionHistory();
+        List<VersionHistory.Version> versions = history.getVersions("local", report);
+        assertEquals(3, versions.size());
+        assertTrue(history.getStoredBytes() < original.length() * 1.5);
+
+        Path restored = testingParentDirectory.resolve("restored.txt");
+        history.restore(versions.get(0), restored);
+        assertEquals(original.toString(), Files.readString(restored));
+    }
+
+    @Test
+    void versionStoreShouldKeepTheNewestGenerationsAndRestoreByTime() throws IOException {
+        Path notes = Path.of("notes.txt");
+        createFiles(testingRemoteDirectory, notes);
+        Files.writeString(testingRemoteDirectory.resolve(notes), "version 0\n");
+
+        SyncOptions options = new SyncOptions();
+        options.setVersionStoreDirectory(testingParentDirectory.resolve("versions"));
+        options.setKeepVersions(2);
+
+        passUserInput("1");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        // Versions 0 to 3 are overwritten in turn, and only the generations holding 2 and 3 are kept
+        long[] modifiedMillis = new long[5];
+        modifiedMillis[0] = Files.getLastModifiedTime(testingLocalDirectory.resolve(notes)).toMillis();
+        for (int edit = 1; edit <= 4; edit++) {
+            delay(10);
+            Files.writeString(testingRemoteDirectory.resolve(notes), "version " + edit + "\n");
+            modifiedMillis[edit] = Files.getLastModifiedTime(testingRemoteDirectory.resolve(notes)).toMillis();
+
+            passUserInput("y");
+            new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+        }
+
+        VersionHistory history = options.getVersionHistory();
+        assertEquals(2, history.getGenerations().size());
+        assertEquals(2, history.getVersions("local", notes).size());
+        assertNull(history.getVersionAt("local", notes, modifiedMillis[1]));
+
+        Path restored = testingParentDirectory.resolve("restored.txt");
+        history.restore(history.getVersionAt("local", notes, modifiedMillis[3] - 1), restored);
+        assertEquals("version 2\n", Files.readString(restored));
+        assertEquals(modifiedMillis[2], Files.getLastModifiedTime(restored).toMillis());
+    }
+
+    @Test
+    void trashingTheSamePathTwiceShouldKeepBothVersions() throws IOException {
+        Path notes = Path.of("dir", "notes.txt");
+        Path dir = Path.of("dir");
+        SyncOptions options = new SyncOptions();
+        options.setVersionStoreDirectory(testingParentDirectory.resolve("versions"));
+        FileSyncRoot root = new FileSyncRoot(testingLocalDirectory.toString(), "local", "remote", true, options);
+
+        // A daemon can overwrite a file twice before the trash is cleared, and trashing its directory merges in a third
+        createDirectories(testingLocalDirectory, dir);
+        for (int edit = 0; edit < 3; edit++) {
+            createFiles(testingLocalDirectory, notes);
+            Files.writeString(testingLocalDirectory.resolve(notes), "version " + edit + "\n");
+            if (edit < 2) root.trash(notes);
+        }
+        root.trash(dir);
+
+        Path trash = root.getSyncTrash();
+        assertEquals("version 0\n", Files.readString(trash.resolve(notes)));
+        assertEquals("version 1\n", Files.readString(trash.resolve("dir/notes.txt" + FileSyncRoot.TRASHED_AGAIN_SUFFIX + "1")));
+        assertEquals("version 2\n", Files.readString(trash.resolve("dir/notes.txt" + FileSyncRoot.TRASHED_AGAIN_SUFFIX + "2")));
+
+        root.clearTrash();
+        root.awaitTrashPurge();
+        List<String> stored = new ArrayList<>();
+        for (VersionHistory.Version version : options.getVersionHistory().getVersions("local", notes)) {
+            Path restored = testingParentDirectory.resolve("restored.txt");
+            options.getVersionHistory().restore(version, restored);
+            stored.add(Files.readString(restored));
+        }
+        Collections.sort(stored);
+        assertEquals(List.of("version 0\n", "version 1\n", "version 2\n"), stored);
+    }
+
+    @Test
+    void versionStoreSharedByTwoProcessesShouldKeepChunksBothUse() throws IOException {
+        Path notes = Path.of("notes.txt");
+        Path firstTree = testingParentDirectory.resolve("first");
+        Path secondTree = testingParentDirectory.resolve("second");
+        createFiles(firstTree, notes);
+        createFiles(secondTree, notes);
+        Files.writeString(firstTree.resolve(notes), "shared contents\n");
+        Files.writeString(secondTree.resolve(notes), "shared contents\n");
+
+        // Two histories of one directory stand in for two processes, each counting references as it last read them
+        Path store = testingParentDirectory.resolve("versions");
+        VersionHistory first = VersionHistory.open(store, new VersionHistory.RetentionPolicy(1, 0, 0));
+        first.storeGeneration(firstTree, "local", 1000);
+        VersionHistory second = VersionHistory.open(store, VersionHistory.RetentionPolicy.KEEP_ALL);
+        second.storeGeneration(secondTree, "remote", 2000);
+
+        // Pruning the first generation must not delete the chunk the second one still uses
+        assertEquals(1, first.prune(3000));
+        Path restored = testingParentDirectory.resolve("restored.txt");
+        second.restore(second.getVersions("remote", notes).get(0), restored);
+        assertEquals("shared contents\n", Files.readString(restored));
+    }
+
+    @Test
+    void rateLimitFileShouldSlowCopiesDown() throws IOException {
+        Path large = Path.of("large.bin");
+        byte[] contents = new byte[300_000];
+        new Random(42).nextBytes(contents);
+        createFiles(testingRemoteDirectory, large);
+        Files.write(testingRemoteDirectory.resolve(large), contents);
+
+        Path rateLimitFile = testingParentDirectory.resolve("limits");
+        Files.writeString(rateLimitFile, "max-bytes-per-second=100000\n");
+        SyncOptions options = new SyncOptions();
+        options.setRateLimitFile(rateLimitFile);
+
+        // The bucket starts with one second of bytes, so the other 200000 take at least two seconds
+        long startMillis = System.currentTimeMillis();
+        passUserInput("1");
+        new FileSynchronizer(testingLocalDirectory.toString(), testingRemoteDirectory.toString(), "local", "remote", userInput, true, options).synchronizeFileTrees();
+
+        assertTrue(System.currentTimeMillis() - startMillis >= 1800);
+        assertArrayEquals(contents, Files.readAllBytes(testingLocalDirectory.resolve(large)));
+        assertEquals(100_000, options.getRateLimiter().getBytesPerSecond());
+    }
+
+    @Test
+    void daemonShouldSyncChangesAsTheyHappen() throws Exception {
+        Path remoteFile1 = Path.of("remoteFile1");
+        createFiles(testingRemoteDirectory, remoteFile1);
+
+        FileSynchronizer firstSync = testingFileSynchronizer(true, true, true);
+        firstSync.synchronizeFileTrees();
+
+        SyncDaemon daemon = new SyncDaemon(firstSync, firstSync.getLastSyncMillis(), 50, true);
+        Thread daemonThread = new Thread(daemon::run);
+        daemonThread.start();
+        delay(200);
+
+        Path newLocalDir = Path.of("newLocalDir");
+        Path newLocalFile = newLocalDir.resolve("newLocalFile");
+        createFiles(testingLocalDirectory, newLocalFile);
+        deleteFiles(testingRemoteDirectory, remoteFile1);
+
+        for (int attempt = 0; attempt < 100 && !(allFilesExist(testingRemoteDirectory, newLocalFile) && !allFilesExist(testingLocalDirectory, remoteFile1)); attempt++) {
+            delay(50);
+        }
+
+        daemon.stop();
+        daemonThread.join();
+
+        assertTrue(allFilesExist(testingRemoteDirectory, newLocalDir, newLocalFile));
+        assertFalse(allFilesExist(testingLocalDirectory, remoteFile1));
+        assertTrue(allFilesExist(testingLocalDirectory.resolve(".sync_trash"), remoteFile1));
+    }
+
 //    @Test
 //    void directoryAndFileAtTheSamePathShouldExitWithError() {
 //        Path conflict = Path.of("conflictFile");